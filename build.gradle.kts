@@ -17,6 +17,7 @@ plugins {
     id("com.parmet.buf") version "0.5.1"
     id("com.google.protobuf") version "0.8.18"
     id("idea")
+    id("me.champeau.jmh") version "0.6.6"
 }
 
 buildscript {
@@ -53,6 +54,7 @@ dependencies {
     implementation("org.apache.tika:tika-parsers:$tikaVersion")
     implementation("org.apache.tika:tika-core:$tikaVersion")
     implementation("org.apache.tika:tika-langdetect-optimaize:$tikaVersion")
+    implementation("com.github.rholder:snowball-stemmer:1.3.0.581.1")
 //    implementation("org.apache.tika:tika-parsers-scientific-module:$tikaVersion")
 
     implementation("com.github.hypfvieh:dbus-java:3.3.1")
@@ -86,6 +88,9 @@ tasks {
     compileJava {
         options.compilerArgs.add("--enable-preview")
     }
+    named<JavaCompile>("compileJmhJava") {
+        options.compilerArgs.add("--enable-preview")
+    }
     test {
         useJUnitPlatform()
         jvmArgs("--enable-preview")
@@ -128,6 +133,11 @@ tasks {
     }
 }
 
+jmh {
+    jmhVersion.set("1.35")
+    jvmArgs.set(listOf("--enable-preview"))
+}
+
 // Inform IDEs like IntelliJ IDEA, Eclipse or NetBeans about the generated code.
 sourceSets {
     main {
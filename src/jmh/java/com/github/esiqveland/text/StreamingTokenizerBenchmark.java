@@ -0,0 +1,76 @@
+package com.github.esiqveland.text;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// StreamingTokenizerBenchmark tokenizes TEXT_CHARS of generated text per operation, so
+// MB/s is TEXT_CHARS / 1e6 times ops/s. Run with: ./gradlew jmh
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class StreamingTokenizerBenchmark {
+    private static final int TEXT_CHARS = 1 << 20;
+
+    // chars per append, about what a SAX parser hands out
+    private static final int CHUNK_CHARS = 8192;
+
+    private static final String[] WORDS = {
+            "rødgrøt", "med", "fløte", "Blåbærsyltetøy", "pølse", "i", "lompe", "ÆRFUGL", "søknad",
+            "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "2022", "v1.3.0",
+            "https://example.com/søk?q=æøå", "Straße", "naïve", "façade", "ΣΊΣΥΦΟΣ", "東京",
+    };
+    private static final String[] SEPARATORS = {" ", " ", " ", ", ", ". ", "\n", " - ", "; "};
+
+    @Param({"mixed", "ascii"})
+    public String corpus;
+
+    private String text;
+    private char[] chars;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        var words = corpus.equals("ascii")
+                ? List.of(WORDS).stream().filter(w -> w.chars().allMatch(c -> c < 0x80)).toArray(String[]::new)
+                : WORDS;
+        var sb = new StringBuilder(TEXT_CHARS + 64);
+        while (sb.length() < TEXT_CHARS) {
+            sb.append(words[random.nextInt(words.length)]);
+            sb.append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+        }
+        sb.setLength(TEXT_CHARS);
+        text = sb.toString();
+        chars = text.toCharArray();
+    }
+
+    @Benchmark
+    public List<Tokenizers.Token> chunks() {
+        try (var tokenizer = StreamingTokenizer.open()) {
+            for (int from = 0; from < chars.length; from += CHUNK_CHARS) {
+                tokenizer.append(chars, from, Math.min(CHUNK_CHARS, chars.length - from));
+            }
+            return tokenizer.finish();
+        }
+    }
+
+    @Benchmark
+    public List<Tokenizers.Token> string() {
+        return Tokenizers.WordTokenizer.create().textToTokens(text);
+    }
+}
@@ -1,23 +1,33 @@
 package com.github.esiqveland;
 
 import com.github.esiqveland.app.CrawlingParser;
+import com.github.esiqveland.app.CrawlingParser.CrawledItem;
 import com.github.esiqveland.crawler.Crawler.IndexableFile;
 import com.github.esiqveland.crawler.Crawler.IndexableFolder;
+import com.github.esiqveland.crawler.FileSystemCrawler;
+import com.github.esiqveland.crawler.FileSystemWatcher;
+import com.github.esiqveland.crawler.IgnoreRules;
 import com.github.esiqveland.dbus.DbusSearchProvider;
 import com.github.esiqveland.dbus.DbusService;
 import com.github.esiqveland.parsers.FileContentParser;
+import com.github.esiqveland.store.CrawlStateStore;
+import com.github.esiqveland.store.DocumentStore;
+import com.github.esiqveland.store.DocumentStore.DocMetadata;
+import com.github.esiqveland.store.DocumentStore.InsertDocument;
 import com.github.esiqveland.store.IndexBuilderStore;
+import com.github.esiqveland.store.ParseCacheStore;
 import com.github.esiqveland.store.SearchIndexStore;
 import com.github.esiqveland.store.SearchIndexStore.SearchHits;
 import com.github.esiqveland.store.SearchIndexStore.SearchRequest;
 import com.github.esiqveland.text.TextTokenizer;
 import com.github.esiqveland.text.Tokenizers.Token;
-import com.github.esiqveland.types.Documents.DocumentWithContent;
 import com.github.esiqveland.types.Documents.DocumentWithTokens;
 import com.github.esiqveland.types.Documents.IndexDocument;
+import io.reactivex.rxjava3.core.Completable;
 import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,17 +36,20 @@ import sun.misc.Signal;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
-import static com.google.common.hash.Hashing.md5;
+import static com.google.common.hash.Hashing.murmur3_128;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class Main {
@@ -67,11 +80,10 @@ public class Main {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        var crawlingParser = new CrawlingParser(new FileContentParser());
-
         Files.createDirectories(Paths.get("./mytemp/store"));
         Files.createDirectories(Paths.get("./mytemp/db"));
         Files.createDirectories(Paths.get("./mytemp/db2"));
+        Files.createDirectories(Paths.get("./mytemp/crawlstate"));
 
         // a static method that loads the RocksDB C++ library.
         RocksDB.loadLibrary();
@@ -83,13 +95,24 @@ public class Main {
 
         var now = Instant.now();
 
+        var root = Path.of("./");
+        // the crawl starts where the stores live, which are not to be indexed
+        var ignoreRules = IgnoreRules.global(root, List.of("/mytemp/"));
+
         // a factory method that returns a RocksDB instance
         try (
                 var db = SearchIndexStore.open("mytemp/db");
-                var indexWriter = IndexBuilderStore.open("mytemp/db2/" + now.getEpochSecond() + ".sst");
+                var documentStore = DocumentStore.open("mytemp/store");
+                var crawlState = CrawlStateStore.open("mytemp/crawlstate");
+                var parseCache = ParseCacheStore.open("mytemp/parsecache");
+                var indexWriter = IndexBuilderStore.open(db, Path.of("mytemp/db2", String.valueOf(now.getEpochSecond())));
+                var watcher = FileSystemWatcher.open(root, ignoreRules);
+                // documents are parsed in worker JVMs, away from the stores and the D-Bus service
+                var contentParser = FileContentParser.forked();
         ) {
+            var crawlingParser = new CrawlingParser(contentParser, crawlState, documentStore, parseCache);
 
-            runMain(username, crawlingParser, indexWriter, db);
+            runMain(username, crawlingParser, indexWriter, db, documentStore, crawlState, root, ignoreRules, watcher);
         } catch (Exception err) {
             log.error("err: {}", err.getMessage(), err);
         }
@@ -100,9 +123,22 @@ public class Main {
             String username,
             CrawlingParser crawlingParser,
             IndexBuilderStore indexWriter,
-            SearchIndexStore db
+            SearchIndexStore db,
+            DocumentStore documentStore,
+            CrawlStateStore crawlState,
+            Path root,
+            IgnoreRules ignoreRules,
+            FileSystemWatcher watcher
     ) throws Exception {
         var textTokenizer = new TextTokenizer();
+        // a first-time crawl is bulk loaded, later crawls update the index in place
+        var bulkLoad = db.isEmpty();
+        if (bulkLoad) {
+            // nothing the crawl state says is indexed is there anymore
+            crawlState.clear();
+        }
+        // bulk loaded files are recorded once ingested, so an interrupted load is crawled again
+        var bulkState = new ArrayList<CrawlStateStore.Entry>();
         List<String> namespaces = List.of(username);
 
         var owner1 = randomOwner();
@@ -161,20 +197,19 @@ public class Main {
         );
         log.info("batch1={}", batch1);
 
-        var crawlSource = crawlingParser
-                .runCrawl(Path.of("./"))
+        // storeBatches maps crawled items to documents, and stores them in batches
+        Function<Flowable<CrawledItem>, Flowable<List<CrawledDocument>>> storeBatches = items -> items
                 .map(item -> switch (item.object()) {
                     case IndexableFolder f -> {
                         var path = f.path();
                         var doc = new IndexDocument(
                                 username,
                                 ns1,
-                                md5().hashString(path, UTF_8).toString(),
-                                //f.id(),
+                                f.id(),
                                 f.name(),
                                 path
                         );
-                        yield new DocumentWithContent(doc, item.content());
+                        yield new CrawledDocument(doc, item);
                     }
                     case IndexableFile f -> {
                         var path = f.path();
@@ -182,37 +217,78 @@ public class Main {
                         var doc = new IndexDocument(
                                 username,
                                 ns1,
-                                md5().hashString(path.toString(), UTF_8).toString(),
-                                //f.id(),
+                                f.id(),
                                 f.name(),
                                 path.toString()
                         );
 
-                        yield new DocumentWithContent(doc, item.content());
+                        yield new CrawledDocument(doc, item);
                     }
                 })
-                .map(item -> textTokenizer.tokenize(item.doc(), item.content()))
                 .buffer(100)
-                .flatMap(batch -> db.insertBatch(batch)
-                        .flatMap(ignored -> Flowable.fromIterable(batch).map(DocumentWithTokens::doc), 1), 1)
+                .concatMap(batch -> Flowable.fromCompletionStage(documentStore
+                        .insertBatch(batch.stream().map(Main::toInsertDocument).toList())
+                        .thenApply(stored -> batch)));
+        Function<List<CrawledDocument>, List<DocumentWithTokens>> tokenize = batch -> batch.stream()
+                .map(c -> textTokenizer.tokenize(c.doc(), c.item().tokens(), c.item().language()))
+                .toList();
+
+        var crawlSource = storeBatches.apply(crawlingParser.runCrawl(root, ignoreRules))
+                .flatMap(batch -> (bulkLoad ? indexWriter.insertBatch(tokenize.apply(batch)) : db.insertBatch(tokenize.apply(batch)))
+                        .map(ignored -> batch), 1)
+                .concatMap(batch -> {
+                    if (bulkLoad) {
+                        batch.forEach(c -> bulkState.add(FileSystemCrawler.stateOf(c.item().object())));
+                        return Flowable.fromIterable(batch).map(CrawledDocument::doc);
+                    }
+                    return record(db, documentStore, crawlState, batch);
+                })
+                .doOnComplete(() -> {
+                    if (bulkLoad) {
+                        indexWriter.ingest();
+                        deleteOrphans(db, documentStore, crawlState.update(bulkState)).blockingLast();
+                    }
+                    deleteOrphans(db, documentStore, crawlState.sweep(root)).blockingLast();
+                })
                 .subscribeOn(Schedulers.newThread());
 
+        // once crawled, the changes the watcher saw meanwhile and from then on are indexed
+        // as they happen
+        var watchSource = watcher.changes()
+                .concatMap(paths -> storeBatches.apply(crawlingParser.runCrawl(root, paths, ignoreRules))
+                        .concatMap(batch -> db.insertBatch(tokenize.apply(batch)).map(ignored -> batch))
+                        .concatMap(batch -> record(db, documentStore, crawlState, batch))
+                        .concatWith(Completable.fromAction(() -> {
+                            for (var path : paths) {
+                                if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                                    deleteOrphans(db, documentStore, crawlState.sweep(path)).blockingLast();
+                                }
+                            }
+                        }))
+                        .onErrorResumeNext(e -> {
+                            log.warn("error indexing changes paths={}", paths.size(), e);
+                            return Flowable.empty();
+                        }));
+
+        var liveSource = crawlSource.concatWith(watchSource);
+
         var count = new AtomicLong();
-//        var cancelCrawl = crawlSource.subscribe(
-//                item -> {
-//                    count.incrementAndGet();
-//                    String name = item.docName();
-//                    log.info("crawled item name={} uri={}", name, item.uri());
-//                },
-//                throwable -> {
-//                    log.error("error: ", throwable);
-//                },
-//                () -> {
-//                    log.info("crawl done count={}", count.get());
-//                }
-//        );
+        var cancelCrawl = liveSource.subscribe(
+                item -> {
+                    count.incrementAndGet();
+                    String name = item.docName();
+                    log.info("crawled item name={} uri={}", name, item.uri());
+                },
+                throwable -> {
+                    log.error("error: ", throwable);
+                },
+                () -> {
+                    log.info("crawl done count={}", count.get());
+                }
+        );
 
         var latch = new CountDownLatch(1);
+        var stopped = new CountDownLatch(1);
 
         Signal.handle(
                 new Signal("INT"),  // catches SIGINT
@@ -229,6 +305,8 @@ public class Main {
                         Thread.sleep(200);
                         log.warn("Interrupted by shutdown hook");
                         latch.countDown();
+                        // the JVM halts once the hooks return, so wait for the crawl to stop
+                        stopped.await(5, TimeUnit.SECONDS);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         e.printStackTrace();
@@ -244,17 +322,57 @@ public class Main {
 
         logHits(hits1);
 
-        var sp2 = new DbusSearchProvider(db, namespaces);
+        var sp2 = new DbusSearchProvider(db, documentStore, namespaces);
         try (var dbus = new DbusService(sp2)) {
             latch.await();
-//            if (!cancelCrawl.isDisposed()) {
-//                cancelCrawl.dispose();
-//            }
         } finally {
+            // stop crawling and watching before the caller closes the watcher and the stores
+            if (!cancelCrawl.isDisposed()) {
+                cancelCrawl.dispose();
+            }
+            stopped.countDown();
         }
 
     }
 
+    private record CrawledDocument(IndexDocument doc, CrawledItem item) {
+    }
+
+    // record stores the crawl state of an indexed batch.
+    private static Flowable<IndexDocument> record(SearchIndexStore db, DocumentStore documentStore, CrawlStateStore crawlState, List<CrawledDocument> batch) throws RocksDBException {
+        var entries = batch.stream().map(c -> FileSystemCrawler.stateOf(c.item().object())).toList();
+        return deleteOrphans(db, documentStore, crawlState.update(entries))
+                .concatMap(ignored -> Flowable.fromIterable(batch).map(CrawledDocument::doc));
+    }
+
+    // deleteOrphans deletes the documents no crawled path refers to anymore, from the index
+    // and then from the document store.
+    private static Flowable<List<String>> deleteOrphans(SearchIndexStore db, DocumentStore documentStore, List<String> orphans) {
+        if (orphans.isEmpty()) {
+            return Flowable.just(orphans);
+        }
+        log.info("deleting orphaned docs={}", orphans.size());
+        return db.deleteBatch(orphans)
+                .concatMap(deleted -> Flowable.fromCompletionStage(documentStore
+                        .deleteBatch(deleted)
+                        .thenApply(stored -> deleted)));
+    }
+
+    private static InsertDocument toInsertDocument(CrawledDocument crawled) {
+        var doc = crawled.doc();
+        var content = crawled.item().content().getBytes(UTF_8);
+        var now = Instant.now();
+        return new InsertDocument(
+                doc.docId(),
+                doc.owner(),
+                murmur3_128().hashBytes(content).asBytes(),
+                content,
+                crawled.item().truncated(),
+                crawled.item().language(),
+                new DocMetadata(doc.docName(), now, now)
+        );
+    }
+
     private static void logHits(SearchHits hits1) {
         log.info("hits1={}", hits1);
     }
@@ -5,12 +5,22 @@ import com.github.esiqveland.crawler.Crawler.IndexableFile;
 import com.github.esiqveland.crawler.Crawler.IndexableFolder;
 import com.github.esiqveland.crawler.Crawler.IndexableObject;
 import com.github.esiqveland.crawler.FileSystemCrawler;
+import com.github.esiqveland.crawler.IgnoreRules;
 import com.github.esiqveland.parsers.FileContentParser;
+import com.github.esiqveland.parsers.FileContentParser.Extracted;
+import com.github.esiqveland.parsers.ParseDeadlineException;
+import com.github.esiqveland.parsers.ParseScheduler;
+import com.github.esiqveland.parsers.ParseScheduler.Budget;
+import com.github.esiqveland.store.CrawlStateStore;
+import com.github.esiqveland.store.DocumentStore;
+import com.github.esiqveland.store.DocumentStore.GetDocumentRequest;
+import com.github.esiqveland.store.ParseCacheStore;
+import com.github.esiqveland.text.Languages;
+import com.github.esiqveland.text.Tokenizers;
+import com.github.esiqveland.text.Tokenizers.Token;
 import com.github.esiqveland.utils.Utils;
 import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Observable;
-import io.reactivex.rxjava3.core.Scheduler;
-import io.reactivex.rxjava3.schedulers.Schedulers;
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.io.TikaInputStream;
 import org.slf4j.Logger;
@@ -19,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -31,38 +42,139 @@ public class CrawlingParser {
     public static final long megabyte = 1024 * kbyte;
 
     private final FileContentParser parser;
-    private final Scheduler scheduler = Schedulers.io();
+    private final CrawlStateStore crawlState;
+    private final DocumentStore documents;
+    private final ParseCacheStore parseCache;
+    private final ParseScheduler scheduler;
 
-    public CrawlingParser(FileContentParser parser) {
+    public CrawlingParser(FileContentParser parser, CrawlStateStore crawlState, DocumentStore documents, ParseCacheStore parseCache) {
         this.parser = parser;
+        this.crawlState = crawlState;
+        this.documents = documents;
+        this.parseCache = parseCache;
+        this.scheduler = new ParseScheduler(parser.maxConcurrency());
     }
 
+    // CrawledItem is a crawled object with the tokens of its content. content is what is
+    // stored of it, only the start when truncated. language is that of the content, which
+    // its tokens are stemmed in.
     public record CrawledItem(
             IndexableObject object,
-            String content
+            String content,
+            boolean truncated,
+            List<Token> tokens,
+            String language
     ) {
+        // of describes an object by content that is not its text, such as its name, which
+        // is too short to detect the language of.
+        static CrawledItem of(IndexableObject object, String content) {
+            return of(object, content, Languages.DEFAULT_LANGUAGE);
+        }
+
+        static CrawledItem of(IndexableObject object, String content, String language) {
+            return new CrawledItem(object, content, false, TOKENIZER.textToTokens(content), language);
+        }
     }
 
-    public Flowable<CrawledItem> runCrawl(Path root) {
-        var crawler = new FileSystemCrawler(root);
+    private static final Tokenizers.Tokenizer TOKENIZER = Tokenizers.WordTokenizer.create();
+
+    public Flowable<CrawledItem> runCrawl(Path root, IgnoreRules ignoreRules) {
+        var crawler = new FileSystemCrawler(root, crawlState, ignoreRules);
         try {
-            return crawler.crawl()
-                    .parallel(2, 1)
-                    .runOn(scheduler)
-                    .map(item -> switch (item) {
-                        case IndexableFolder p -> handleFolder(item, p);
-                        case IndexableFile f -> handleFile(item, f);
-                    })
-                    .sequential();
+            return parse(crawler.crawl());
         } catch (IOException e) {
             throw new RuntimeException("error crawling path=" + root, e);
         }
     }
 
-    private CrawledItem handleFile(IndexableObject item, IndexableFile f) {
-        if (f.size() > 10 * megabyte) {
-            log.info("skipping too large file name={} size={}", f.name(), f.size());
-            return new CrawledItem(item, expandNameToContent(f.name()));
+    // runCrawl crawls only the given paths under root, such as a batch of changes seen by
+    // a FileSystemWatcher.
+    public Flowable<CrawledItem> runCrawl(Path root, List<Path> paths, IgnoreRules ignoreRules) {
+        return parse(new FileSystemCrawler(root, crawlState, ignoreRules).crawl(paths));
+    }
+
+    // parse runs files through the ParseScheduler, which decides how many parse at once and
+    // gives up on files over their time budget.
+    private Flowable<CrawledItem> parse(Flowable<IndexableObject> objects) {
+        return objects.flatMap(item -> switch (item) {
+            case IndexableFolder p -> Flowable.just(handleFolder(item, p));
+            case IndexableFile f -> Flowable.fromCompletionStage(scheduler.submit(
+                    budget -> handleFile(item, f, budget),
+                    () -> CrawledItem.of(item, expandNameToContent(f.name()))
+            ));
+        }, scheduler.maxConcurrency());
+    }
+
+    private CrawledItem handleFile(IndexableObject item, IndexableFile f, Budget budget) {
+        if (f.movedFrom() != null) {
+            // a moved file keeps its id, so the content parsed before it moved is reused,
+            // unless only its start was stored
+            var stored = documents.Get(new GetDocumentRequest(f.id())).join()
+                    .filter(s -> !s.doc().getTruncated());
+            if (stored.isPresent()) {
+                log.debug("reusing content of moved file path={} from={}", f.path(), f.movedFrom());
+                var doc = stored.get().doc();
+                var language = doc.getLanguage().isEmpty() ? Languages.detect(doc.getContent()) : doc.getLanguage();
+                return CrawledItem.of(item, doc.getContent(), language);
+            }
+        }
+        // copies of a file parsed before reuse what was extracted from it, by content hash
+        byte[] hash = null;
+        if (f.size() > 0) {
+            try {
+                hash = ParseCacheStore.contentHash(f.path());
+            } catch (IOException e) {
+                log.info("error hashing path={}, parsing without cache", f.path(), e);
+            }
+        }
+        if (hash != null) {
+            var cached = parseCache.get(hash);
+            if (cached.isPresent()) {
+                log.debug("reusing parse of identical content path={}", f.path());
+                var c = cached.get();
+                return new CrawledItem(item, c.text(), c.truncated(), c.tokens(), c.language());
+            }
+        }
+        try {
+            var extracted = extract(f, budget);
+
+            // the language is detected once per document, from the start of its text
+            var language = extracted.nameOnly() ? Languages.DEFAULT_LANGUAGE : Languages.detect(extracted.text());
+            // documents without text are described by their name, which copies do not share
+            if (hash != null && !extracted.nameOnly()) {
+                parseCache.put(hash, new ParseCacheStore.Entry(extracted.text(), extracted.truncated(), language, extracted.tokens()));
+            }
+            return new CrawledItem(item, extracted.text(), extracted.truncated(), extracted.tokens(), language);
+        } catch (ParseDeadlineException overBudget) {
+            log.info("parse over budget for path={}: {}", f.path(), overBudget.getMessage());
+            return CrawledItem.of(item, expandNameToContent(f.name()));
+        } catch (TikaException parseError) {
+            log.info("ignoring parse error for path={}", f.path(), parseError);
+            return CrawledItem.of(item, expandNameToContent(f.name()));
+        } catch (Throwable e) {
+            if (budget.expired()) {
+                // interrupted at the file deadline
+                log.info("parse over budget for path={}", f.path());
+                return CrawledItem.of(item, expandNameToContent(f.name()));
+            }
+            throw new RuntimeException("error on file=" + f.path().toString(), e);
+        }
+    }
+
+    // extract extracts the file with the extractor that recognizes it, or else with Tika.
+    private Extracted extract(IndexableFile f, Budget budget) throws Throwable {
+        var recognized = parser.extractors.recognize(f);
+        if (recognized.isPresent()) {
+            var r = recognized.get();
+            var deadline = budget.forType(r.type());
+            return timed(
+                    () -> r.extract(f, deadline),
+                    duration -> {
+                        if (duration.toMillis() > 10) {
+                            log.info("extractor type={} took {}ms", r.type(), duration.toMillis());
+                        }
+                    }
+            );
         }
         try (var stream = TikaInputStream.get(f.path())) {
             var type = timed(
@@ -74,22 +186,16 @@ public class CrawlingParser {
                     }
             );
 
+            var deadline = budget.forType(type);
             stream.reset();
-            var content = timed(
-                    () -> parser.parse(f, stream, type),
+            return timed(
+                    () -> parser.extract(f, stream, type, deadline),
                     duration -> {
                         if (duration.toMillis() > 10) {
                             log.info("parser type={} took {}ms", type, duration.toMillis());
                         }
                     }
             );
-
-            return new CrawledItem(item, content);
-        } catch (TikaException parseError) {
-            log.info("ignoring parse error for path={}", f.path(), parseError);
-            return new CrawledItem(item, expandNameToContent(f.name()));
-        } catch (Throwable e) {
-            throw new RuntimeException("error on file=" + f.path().toString(), e);
         }
     }
 
@@ -104,6 +210,6 @@ public class CrawlingParser {
     }
 
     private CrawledItem handleFolder(IndexableObject item, IndexableFolder p) {
-        return new CrawledItem(item, expandNameToContent(p.name()));
+        return CrawledItem.of(item, expandNameToContent(p.name()));
     }
 }
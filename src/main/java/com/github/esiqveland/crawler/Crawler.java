@@ -1,6 +1,7 @@
 package com.github.esiqveland.crawler;
 
 import io.reactivex.rxjava3.core.Flowable;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -20,13 +21,16 @@ public interface Crawler {
 
     EnumSet<? extends OpenOption> READ = EnumSet.of(StandardOpenOption.READ);
 
+    // IndexableFile is a new or changed file. id is the docId of the file. movedFrom is the
+    // path it was indexed at, when it moved without changing.
     record IndexableFile(
-            //String id,
+            String id,
             String name,
             Path path,
             long size,
             Instant modifiedAt,
-            Instant createdAt
+            Instant createdAt,
+            @Nullable Path movedFrom
     ) implements IndexableObject {
         public Optional<ReadableByteChannel> reader() throws IOException {
             try {
@@ -38,7 +42,7 @@ public interface Crawler {
     }
 
     record IndexableFolder(
-            //String id,
+            String id,
             String name,
             String path
     ) implements IndexableObject {
@@ -1,6 +1,9 @@
 package com.github.esiqveland.crawler;
 
+import com.github.esiqveland.hugin.crawlstate.v1.Crawlstate.FileState;
+import com.github.esiqveland.store.CrawlStateStore;
 import io.reactivex.rxjava3.core.Flowable;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,45 +11,84 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.google.common.hash.Hashing.md5;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// FileSystemCrawler walks a directory tree and emits the files and folders that changed
+// since the last crawl, as recorded in the CrawlStateStore.
+//
+// Files are identified by their user:objectid xattr, which they are tagged with when first
+// seen, so a moved file keeps its id. Whether a file changed is decided from its size and
+// modification time alone, without opening it.
+//
+// Paths the IgnoreRules ignore are skipped, and so are hidden files.
 public class FileSystemCrawler implements Crawler {
     private final Logger log = LoggerFactory.getLogger(FileSystemCrawler.class);
     private final Path crawlPath;
+    private final CrawlStateStore state;
+    private final IgnoreRules ignoreRules;
+
+    public FileSystemCrawler(Path crawlPath, CrawlStateStore state) {
+        this(crawlPath, state, IgnoreRules.global(crawlPath));
+    }
 
-    public FileSystemCrawler(Path crawlPath) {
+    public FileSystemCrawler(Path crawlPath, CrawlStateStore state, IgnoreRules ignoreRules) {
         this.crawlPath = crawlPath;
+        this.state = state;
+        this.ignoreRules = ignoreRules;
     }
 
     @Override
     public Flowable<IndexableObject> crawl() throws IOException {
-        return Flowable.using(
-                        () -> Files.walk(crawlPath),
-                        Flowable::fromStream,
-                        Stream::close
-                )
-                .flatMap((Path item) -> {
-                    var f = item.toFile();
-                    if (f.isDirectory()) {
+        return crawl(List.of(crawlPath));
+    }
+
+    // crawl walks only the given paths, files or directories, such as the paths a
+    // FileSystemWatcher saw change. Paths that no longer exist are skipped.
+    //
+    // Entries come from a ParallelWalker, with attributes read once during the walk, and
+    // ignored subtrees pruned before they are listed.
+    public Flowable<IndexableObject> crawl(List<Path> paths) {
+        // ids handed out by this crawl, to tell apart copies that carry the same xattr
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+        return ParallelWalker.walk(paths, ignoreRules)
+                .flatMap(entry -> {
+                    var item = entry.path();
+                    var attr = entry.attrs();
+                    var name = item.getFileName() == null ? item.toString() : item.getFileName().toString();
+                    if (attr.isDirectory()) {
+                        var path = item.toString();
+                        if (state.get(path).isPresent()) {
+                            return Flowable.empty();
+                        }
                         return Flowable.just(new IndexableFolder(
-                                f.getName(),
-                                item.toString()
+                                folderId(path),
+                                name,
+                                path
                         ));
-                    } else if (f.isFile() && !f.isHidden()) {
-                        BasicFileAttributes attr;
-                        try {
-                            attr = Files.readAttributes(item, BasicFileAttributes.class);
-                        } catch (IOException e) {
-                            log.warn("error reading attributes for path={}. skip.", item, e);
+                    } else if (attr.isRegularFile() && !isHidden(name)) {
+                        var known = state.get(item.toString());
+                        var tag = FileUtils.getId(item);
+                        if (known.isPresent() && unchanged(known.get(), attr)
+                                && tag.map(known.get().getId()::equals).orElse(true)) {
                             return Flowable.empty();
                         }
 
+                        var identity = identify(item, attr, known, tag, claimed);
                         return Flowable.just(new IndexableFile(
-                                f.getName(),
+                                identity.id(),
+                                name,
                                 item,
-                                f.length(),
+                                attr.size(),
                                 attr.lastModifiedTime().toInstant(),
-                                attr.creationTime().toInstant()
+                                attr.creationTime().toInstant(),
+                                identity.movedFrom()
                         ));
                     } else {
                         log.info("skipping unsupported path={}", item);
@@ -55,4 +97,78 @@ public class FileSystemCrawler implements Crawler {
                 }, 3);
     }
 
+    // folderId is the id of the folder at path. Folders are stored under these ids, so it
+    // stays md5, deprecated or not, to keep matching the folders indexed before.
+    @SuppressWarnings("deprecation")
+    private static String folderId(String path) {
+        return md5().hashString(path, UTF_8).toString();
+    }
+
+    // isHidden follows the unix convention, like File.isHidden, without a syscall.
+    private static boolean isHidden(String name) {
+        return name.startsWith(".");
+    }
+
+    private record Identity(String id, @Nullable Path movedFrom) {
+    }
+
+    // identify decides the id of a new or changed file, and whether it only moved.
+    private Identity identify(
+            Path item,
+            BasicFileAttributes attr,
+            Optional<FileState> known,
+            Optional<String> tag,
+            Set<String> claimed
+    ) {
+        if (tag.isPresent() && claimed.add(tag.get())) {
+            var id = tag.get();
+            var last = state.pathOf(id).filter(p -> !p.equals(item.toString()));
+            if (last.isEmpty()) {
+                return new Identity(id, null);
+            }
+            var from = Path.of(last.get());
+            if (!FileUtils.getId(from).equals(tag)) {
+                var unchanged = state.get(last.get()).map(s -> unchanged(s, attr)).orElse(false);
+                log.debug("path={} moved from={} unchanged={}", item, from, unchanged);
+                return new Identity(id, unchanged ? from : null);
+            }
+            // a copy that carries the xattr of the file it was copied from
+            claimed.remove(id);
+        }
+        // keep the id the path is indexed under, and tag the file with it
+        var id = known.map(FileState::getId).orElseGet(FileUtils::generateFileId);
+        try {
+            FileUtils.storeFileId(item, id);
+        } catch (IOException e) {
+            log.debug("can not tag path={}", item, e);
+        }
+        claimed.add(id);
+        return new Identity(id, null);
+    }
+
+    private static boolean unchanged(FileState known, BasicFileAttributes attr) {
+        return known.getSize() == attr.size()
+                && known.getModifiedAtMillis() == attr.lastModifiedTime().toMillis();
+    }
+
+    // stateOf is the state to record for an object once it has been indexed.
+    public static CrawlStateStore.Entry stateOf(IndexableObject object) {
+        return switch (object) {
+            case IndexableFolder f -> new CrawlStateStore.Entry(
+                    f.path(),
+                    FileState.newBuilder().setId(f.id()).build(),
+                    null
+            );
+            case IndexableFile f -> new CrawlStateStore.Entry(
+                    f.path().toString(),
+                    FileState.newBuilder()
+                            .setId(f.id())
+                            .setSize(f.size())
+                            .setModifiedAtMillis(f.modifiedAt().toEpochMilli())
+                            .build(),
+                    f.movedFrom() == null ? null : f.movedFrom().toString()
+            );
+        };
+    }
+
 }
@@ -0,0 +1,200 @@
+package com.github.esiqveland.crawler;
+
+import io.reactivex.rxjava3.core.BackpressureStrategy;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+// FileSystemWatcher watches every directory under a root for changes, and emits the paths
+// that changed in debounced batches.
+//
+// A burst of events, like an editor saving through temp files or a git checkout, is
+// coalesced into one batch: a batch is emitted once no event arrived for QUIET_PERIOD, or
+// MAX_DELAY after its first event while the burst goes on. Directories are registered when
+// opened and as they are created, except the ones the IgnoreRules ignore. If the event queue
+// overflows, the batch holds the root, so the whole tree is crawled again.
+public class FileSystemWatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(FileSystemWatcher.class);
+
+    // emit a batch once no event arrived for this long
+    public final static Duration QUIET_PERIOD = Duration.ofMillis(500);
+
+    // emit a batch no later than this after its first event
+    public final static Duration MAX_DELAY = Duration.ofSeconds(5);
+
+    private final Path root;
+    private final WatchService watchService;
+    private final IgnoreRules ignoreRules;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+
+    public FileSystemWatcher(Path root, WatchService watchService, IgnoreRules ignoreRules) {
+        this.root = root;
+        this.watchService = watchService;
+        this.ignoreRules = ignoreRules;
+    }
+
+    // open starts watching root. Changes made from here on are queued until changes() is
+    // subscribed to.
+    public static FileSystemWatcher open(Path root) throws IOException {
+        return open(root, IgnoreRules.global(root));
+    }
+
+    public static FileSystemWatcher open(Path root, IgnoreRules ignoreRules) throws IOException {
+        var watcher = new FileSystemWatcher(root, root.getFileSystem().newWatchService(), ignoreRules);
+        watcher.registerAll(root);
+        log.info("watching root={} directories={}", root, watcher.directories.size());
+        return watcher;
+    }
+
+    // changes emits batches of changed paths, without a path whose ancestor is in the same
+    // batch. A path may be a file or a directory, and may no longer exist.
+    public Flowable<List<Path>> changes() {
+        return Flowable.<List<Path>>create(emitter -> {
+            var pending = new LinkedHashSet<Path>();
+            long first = 0;
+            long last = 0;
+            try {
+                while (!emitter.isCancelled()) {
+                    long now = System.nanoTime();
+                    WatchKey key;
+                    if (pending.isEmpty()) {
+                        key = watchService.poll(1, TimeUnit.SECONDS);
+                    } else {
+                        var wait = Math.min(last + QUIET_PERIOD.toNanos(), first + MAX_DELAY.toNanos()) - now;
+                        key = wait > 0 ? watchService.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    }
+
+                    if (key != null) {
+                        now = System.nanoTime();
+                        if (pending.isEmpty()) {
+                            first = now;
+                        }
+                        last = now;
+                        drain(key, pending);
+                    } else if (!pending.isEmpty()) {
+                        var batch = collapse(pending);
+                        pending.clear();
+                        log.debug("changes batch={}", batch.size());
+                        emitter.onNext(batch);
+                    }
+                }
+            } catch (ClosedWatchServiceException e) {
+                emitter.onComplete();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                emitter.onComplete();
+            }
+        }, BackpressureStrategy.BUFFER).subscribeOn(Schedulers.io());
+    }
+
+    private void drain(WatchKey key, Set<Path> pending) {
+        var dir = directories.get(key);
+        for (var event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                log.warn("watch events lost, crawling root={} again", root);
+                pending.add(root);
+                continue;
+            }
+            var path = dir.resolve((Path) event.context());
+            var isDirectory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if (event.kind() == ENTRY_MODIFY && isDirectory) {
+                // the entries of the directory changed, and have events of their own
+                continue;
+            }
+            if (event.kind() == ENTRY_CREATE && isDirectory) {
+                registerAll(path);
+            }
+            pending.add(path);
+        }
+        if (!key.reset()) {
+            // the directory is gone
+            directories.remove(key);
+        }
+    }
+
+    private void registerAll(Path dir) {
+        var above = ignoreRules.rulesFor(dir);
+        if (above == null || !dir.equals(root) && above.ignored(dir, true)) {
+            return;
+        }
+        // the rules for the entries of each directory being visited
+        var rules = new ArrayDeque<IgnoreRules>();
+        rules.push(above);
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    if (!d.equals(dir) && rules.peek().ignored(d, true)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    rules.push(rules.peek().enter(d));
+                    try {
+                        directories.put(d.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), d);
+                    } catch (IOException e) {
+                        log.warn("can not watch dir={}", d, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) {
+                    rules.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    log.debug("skip unreadable path={}", file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("error registering dir={}", dir, e);
+        }
+    }
+
+    // collapse drops the paths that are below another path of the batch, which is crawled
+    // as a whole.
+    static List<Path> collapse(Set<Path> paths) {
+        return paths.stream()
+                .filter(p -> {
+                    for (var parent = p.getParent(); parent != null; parent = parent.getParent()) {
+                        if (paths.contains(parent)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                })
+                .toList();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.esiqveland.crawler;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// IgnoreRules decide which paths a crawl skips, from .gitignore style patterns: global
+// patterns for the whole crawl, and those of the .gitignore and .hgignore files found on the
+// way, which apply to the directory they are in and everything below it.
+//
+// The rules of a directory take precedence over those of its parents, and within a file the
+// last pattern that matches decides, like in git. An ignored directory is never listed, so
+// nothing below it can be included again.
+//
+// Patterns are compiled once per file: a plain name is compared as a string, "*.ext" as a
+// suffix, and only the other globs become regular expressions.
+public final class IgnoreRules {
+    private static final Logger log = LoggerFactory.getLogger(IgnoreRules.class);
+
+    // files of patterns for their directory
+    public final static List<String> IGNORE_FILES = List.of(".gitignore", ".hgignore");
+
+    // ignored in every crawl: metadata of version control, and dependencies and build
+    // outputs, which are big and rarely searched for
+    public final static List<String> DEFAULT_PATTERNS = List.of(
+            ".git/", ".hg/", ".svn/",
+            ".gradle/", ".idea/", "node_modules/", "target/", "build/",
+            "__pycache__/", ".venv/", ".cache/"
+    );
+
+    // patterns of the user for every crawl, in .gitignore syntax
+    public final static Path USER_PATTERNS = Optional.ofNullable(System.getenv("XDG_CONFIG_HOME"))
+            .map(Path::of)
+            .orElseGet(() -> Path.of(System.getProperty("user.home"), ".config"))
+            .resolve("hugin")
+            .resolve("ignore");
+
+    private enum Kind {
+        // the name equals the pattern
+        NAME,
+        // the name ends with the pattern
+        SUFFIX,
+        // the name matches the pattern
+        NAME_GLOB,
+        // the path below the base matches the pattern
+        PATH_GLOB,
+        // the path below the base contains a match of the pattern, as in .hgignore
+        PATH_REGEX,
+    }
+
+    private record Rule(Kind kind, String literal, @Nullable Pattern pattern, boolean negated, boolean directoryOnly) {
+        boolean matches(String name, String relative, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+            return switch (kind) {
+                case NAME -> name.equals(literal);
+                case SUFFIX -> name.endsWith(literal);
+                case NAME_GLOB -> pattern.matcher(name).matches();
+                case PATH_GLOB -> pattern.matcher(relative).matches();
+                case PATH_REGEX -> pattern.matcher(relative).find();
+            };
+        }
+
+        boolean needsPath() {
+            return kind == Kind.PATH_GLOB || kind == Kind.PATH_REGEX;
+        }
+    }
+
+    @Nullable
+    private final IgnoreRules parent;
+    private final Path base;
+    // in the order they were written
+    private final List<Rule> rules;
+    private final boolean needsPath;
+
+    private IgnoreRules(@Nullable IgnoreRules parent, Path base, List<Rule> rules) {
+        this.parent = parent;
+        this.base = base;
+        this.rules = rules;
+        this.needsPath = rules.stream().anyMatch(Rule::needsPath);
+    }
+
+    // global compiles DEFAULT_PATTERNS, the USER_PATTERNS and patterns, relative to root.
+    public static IgnoreRules global(Path root, List<String> patterns) {
+        var rules = new ArrayList<Rule>();
+        DEFAULT_PATTERNS.forEach(p -> parseGitLine(p, rules));
+        read(USER_PATTERNS).forEach(p -> parseGitLine(p, rules));
+        patterns.forEach(p -> parseGitLine(p, rules));
+        return new IgnoreRules(null, root, List.copyOf(rules));
+    }
+
+    public static IgnoreRules global(Path root) {
+        return global(root, List.of());
+    }
+
+    // enter returns the rules for the entries of dir, a directory these rules apply to,
+    // with those of its ignore files.
+    public IgnoreRules enter(Path dir) {
+        return enter(dir, IGNORE_FILES.stream()
+                .map(dir::resolve)
+                .filter(Files::isRegularFile)
+                .toList());
+    }
+
+    // enter returns the rules for the entries of dir, a directory these rules apply to,
+    // given its entries as listed.
+    public IgnoreRules enter(Path dir, Collection<Path> entries) {
+        var rules = new ArrayList<Rule>();
+        for (var entry : entries) {
+            var name = entry.getFileName().toString();
+            if (name.equals(".gitignore")) {
+                read(entry).forEach(line -> parseGitLine(line, rules));
+            } else if (name.equals(".hgignore")) {
+                parseHg(read(entry), rules);
+            }
+        }
+        return rules.isEmpty() ? this : new IgnoreRules(this, dir, List.copyOf(rules));
+    }
+
+    // rulesFor returns the rules for path, a path at or below the base of these rules, with
+    // those of the directories between. Returns null if one of them is ignored.
+    @Nullable
+    public IgnoreRules rulesFor(Path path) {
+        if (!path.startsWith(base) || path.equals(base)) {
+            return this;
+        }
+        var relative = base.relativize(path);
+        var rules = this;
+        var dir = base;
+        for (int i = 0; i < relative.getNameCount() - 1; i++) {
+            rules = rules.enter(dir);
+            dir = dir.resolve(relative.getName(i));
+            if (rules.ignored(dir, true)) {
+                return null;
+            }
+        }
+        return rules.enter(dir);
+    }
+
+    // ignored tells whether path, an entry of the directory these rules are for, is ignored.
+    public boolean ignored(Path path, boolean directory) {
+        var name = path.getFileName() == null ? path.toString() : path.getFileName().toString();
+        for (var rules = this; rules != null; rules = rules.parent) {
+            var relative = rules.needsPath ? rules.relative(path) : "";
+            if (relative == null) {
+                continue;
+            }
+            for (int i = rules.rules.size() - 1; i >= 0; i--) {
+                var rule = rules.rules.get(i);
+                if (rule.matches(name, relative, directory)) {
+                    return !rule.negated();
+                }
+            }
+        }
+        return false;
+    }
+
+    // relative is path below base, or null if it is not below it.
+    @Nullable
+    private String relative(Path path) {
+        return path.startsWith(base) ? base.relativize(path).toString() : null;
+    }
+
+    private static List<String> read(Path file) {
+        try {
+            return Files.readAllLines(file, UTF_8);
+        } catch (NoSuchFileException e) {
+            return List.of();
+        } catch (IOException e) {
+            log.warn("can not read ignore file={}", file, e);
+            return List.of();
+        }
+    }
+
+    // parseGitLine compiles a line of a .gitignore, see gitignore(5).
+    private static void parseGitLine(String line, List<Rule> rules) {
+        var pattern = trimTrailingSpaces(line);
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        var negated = pattern.startsWith("!");
+        if (negated) {
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+        var directoryOnly = pattern.endsWith("/");
+        if (directoryOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        // a slash anywhere but at the end anchors the pattern to its directory
+        var anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("**/") && !pattern.substring(3).contains("/")) {
+            pattern = pattern.substring(3);
+            anchored = false;
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+        rules.add(compile(pattern, anchored, negated, directoryOnly));
+    }
+
+    private static Rule compile(String glob, boolean anchored, boolean negated, boolean directoryOnly) {
+        if (!anchored && !hasWildcard(glob)) {
+            return new Rule(Kind.NAME, glob.replace("\\", ""), null, negated, directoryOnly);
+        }
+        if (!anchored && glob.startsWith("*") && !hasWildcard(glob.substring(1))) {
+            return new Rule(Kind.SUFFIX, glob.substring(1).replace("\\", ""), null, negated, directoryOnly);
+        }
+        var kind = anchored ? Kind.PATH_GLOB : Kind.NAME_GLOB;
+        return new Rule(kind, glob, Pattern.compile(globToRegex(glob)), negated, directoryOnly);
+    }
+
+    // parseHg compiles a .hgignore, see hgignore(5). Patterns are regular expressions until
+    // a "syntax: glob" line. Globs match at any depth, like unanchored .gitignore patterns.
+    private static void parseHg(List<String> lines, List<Rule> rules) {
+        var glob = false;
+        for (var line : lines) {
+            var pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            if (pattern.startsWith("syntax:")) {
+                glob = pattern.substring("syntax:".length()).strip().equals("glob");
+                continue;
+            }
+            var lineGlob = glob;
+            if (pattern.startsWith("glob:")) {
+                lineGlob = true;
+                pattern = pattern.substring("glob:".length());
+            } else if (pattern.startsWith("re:") || pattern.startsWith("regexp:")) {
+                lineGlob = false;
+                pattern = pattern.substring(pattern.indexOf(':') + 1);
+            }
+            if (lineGlob) {
+                var anchored = pattern.contains("/");
+                rules.add(anchored
+                        ? new Rule(Kind.PATH_GLOB, pattern, Pattern.compile("(?:.*/)?" + globToRegex(pattern) + "(?:/.*)?"), false, false)
+                        : compile(pattern, false, false, false));
+            } else {
+                try {
+                    rules.add(new Rule(Kind.PATH_REGEX, pattern, Pattern.compile(pattern), false, false));
+                } catch (PatternSyntaxException e) {
+                    log.warn("skipping invalid .hgignore pattern={}", pattern);
+                }
+            }
+        }
+    }
+
+    private static boolean hasWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            var c = glob.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // globToRegex translates a glob to a regular expression over a path with / separators.
+    // "*", "?" and classes do not match a slash, and "**" as a segment matches any number of
+    // segments.
+    private static String globToRegex(String glob) {
+        var regex = new StringBuilder();
+        var n = glob.length();
+        for (int i = 0; i < n; i++) {
+            var c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    var segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+                    if (i + 1 < n && glob.charAt(i + 1) == '*' && segmentStart && (i + 2 == n || glob.charAt(i + 2) == '/')) {
+                        if (i + 2 == n) {
+                            regex.append(".*");
+                        } else {
+                            regex.append("(?:.*/)?");
+                        }
+                        i += 2;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    var end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        continue;
+                    }
+                    var set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                }
+                case '\\' -> {
+                    if (i + 1 < n) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                }
+                default -> {
+                    if ("<([{^-=$!|]})+.>".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+        }
+        return regex.toString();
+    }
+
+    // trimTrailingSpaces drops trailing spaces, unless escaped with a backslash.
+    private static String trimTrailingSpaces(String line) {
+        var end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.esiqveland.crawler;
+
+import io.reactivex.rxjava3.core.Flowable;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// ParallelWalker walks directory trees on a fork/join pool, with one task per directory, so
+// idle workers steal the subdirectories of busy ones. Each entry is stat'ed exactly once,
+// and emitted with its attributes through a bounded queue: the walk stalls while the
+// subscriber falls behind, instead of buffering millions of entries.
+//
+// Symbolic links are emitted with the attributes of their target, but never descended
+// into, like Files.walk. Entries that vanish or can not be read during the walk are logged
+// and skipped.
+//
+// Entries the IgnoreRules ignore are skipped by name as the directory is listed, before
+// they are stat'ed when the rule does not depend on whether they are directories, so an
+// ignored subtree is neither listed nor stat'ed.
+final class ParallelWalker {
+    private static final Logger log = LoggerFactory.getLogger(ParallelWalker.class);
+
+    // directories listed at once. Listing is bound by syscall latency rather than CPU, most
+    // of all on network filesystems, so this is well above the number of cores.
+    public final static int PARALLELISM = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    // entries walked ahead of the subscriber
+    public final static int QUEUE_SIZE = 4096;
+
+    record Entry(Path path, BasicFileAttributes attrs) {
+    }
+
+    private static final Entry END = new Entry(null, null);
+
+    private ParallelWalker() {
+    }
+
+    // walk emits every entry under the roots, the roots included.
+    static Flowable<Entry> walk(List<Path> roots) {
+        return walk(roots, null);
+    }
+
+    // walk emits every entry under the roots that ignoreRules do not ignore, the roots
+    // included. Roots are taken to be below the base of ignoreRules.
+    static Flowable<Entry> walk(List<Path> roots, @Nullable IgnoreRules ignoreRules) {
+        return Flowable.generate(
+                () -> new Walk(roots, ignoreRules),
+                (walk, emitter) -> {
+                    var entry = walk.queue.take();
+                    if (entry == END) {
+                        emitter.onComplete();
+                    } else {
+                        emitter.onNext(entry);
+                    }
+                },
+                Walk::cancel
+        );
+    }
+
+    private static final class Walk {
+        private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        private volatile boolean cancelled = false;
+
+        Walk(List<Path> roots, @Nullable IgnoreRules ignoreRules) {
+            pool.execute(() -> {
+                try {
+                    var tasks = new ArrayList<DirectoryTask>();
+                    for (var root : roots) {
+                        var rules = ignoreRules == null ? null : ignoreRules.rulesFor(root);
+                        if (ignoreRules != null && rules == null) {
+                            continue;
+                        }
+                        var entry = stat(root);
+                        if (entry == null || rules != null && rules.ignored(root, entry.attrs().isDirectory())) {
+                            continue;
+                        }
+                        if (emit(entry) && isDirectory(entry)) {
+                            tasks.add(new DirectoryTask(root, rules));
+                        }
+                    }
+                    ForkJoinTask.invokeAll(tasks);
+                } finally {
+                    emit(END);
+                    pool.shutdown();
+                }
+            });
+        }
+
+        // emit blocks until the subscriber makes room, and returns false once cancelled.
+        private boolean emit(Entry entry) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        // cancel stops the walk: blocked workers see the flag and return.
+        void cancel() {
+            cancelled = true;
+            pool.shutdown();
+            queue.clear();
+        }
+
+        // DirectoryTask is Serializable only because ForkJoinTask is. It is never serialized,
+        // so its fields are transient.
+        private final class DirectoryTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final transient Path dir;
+            // the rules dir was found by, or null to walk everything
+            @Nullable
+            private final transient IgnoreRules rules;
+
+            DirectoryTask(Path dir, @Nullable IgnoreRules rules) {
+                this.dir = dir;
+                this.rules = rules;
+            }
+
+            @Override
+            protected void compute() {
+                // listed up front, as the ignore files among the entries apply to them all
+                var paths = new ArrayList<Path>();
+                try (var entries = Files.newDirectoryStream(dir)) {
+                    entries.forEach(paths::add);
+                } catch (IOException | DirectoryIteratorException e) {
+                    log.warn("error listing dir={}. skip.", dir, e);
+                }
+                var inner = rules == null ? null : rules.enter(dir, paths);
+
+                var subdirectories = new ArrayList<DirectoryTask>();
+                for (var path : paths) {
+                    var ignoredFile = inner != null && inner.ignored(path, false);
+                    var ignoredDirectory = inner != null && inner.ignored(path, true);
+                    if (ignoredFile && ignoredDirectory) {
+                        continue;
+                    }
+                    var entry = stat(path);
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.attrs().isDirectory() ? ignoredDirectory : ignoredFile) {
+                        continue;
+                    }
+                    if (!emit(entry)) {
+                        return;
+                    }
+                    if (isDirectory(entry)) {
+                        subdirectories.add(new DirectoryTask(path, inner));
+                    }
+                }
+                invokeAll(subdirectories);
+            }
+        }
+    }
+
+    private static boolean isDirectory(Entry entry) {
+        return entry.attrs().isDirectory() && !entry.attrs().isSymbolicLink();
+    }
+
+    // stat reads the attributes of path without following links, and only follows a link to
+    // learn what it points at.
+    private static Entry stat(Path path) {
+        try {
+            var attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isSymbolicLink()) {
+                var target = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Entry(path, new LinkAttributes(target));
+            }
+            return new Entry(path, attrs);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("error reading attributes for path={}. skip.", path, e);
+            return null;
+        }
+    }
+
+    // LinkAttributes are the attributes of the target of a link, which still report the
+    // entry as a link so it is not descended into.
+    private record LinkAttributes(BasicFileAttributes target) implements BasicFileAttributes {
+        @Override
+        public FileTime lastModifiedTime() {
+            return target.lastModifiedTime();
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return target.lastAccessTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return target.creationTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return target.isRegularFile();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return target.isDirectory();
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return true;
+        }
+
+        @Override
+        public boolean isOther() {
+            return target.isOther();
+        }
+
+        @Override
+        public long size() {
+            return target.size();
+        }
+
+        @Override
+        public Object fileKey() {
+            return target.fileKey();
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package com.github.esiqveland.dbus;
 
+import com.github.esiqveland.store.DocumentStore;
 import com.github.esiqveland.store.SearchIndexStore;
+import com.github.esiqveland.store.SearchIndexStore.Match;
+import com.github.esiqveland.store.SearchIndexStore.SearchHits;
+import com.github.esiqveland.store.SearchIndexStore.SearchRequest;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.freedesktop.dbus.types.UInt32;
 import org.freedesktop.dbus.types.Variant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -15,20 +24,66 @@ public class DbusSearchProvider implements SearchProvider2 {
 
     private static final String OBJECT_PATH = "/com/github/esiqveland/Hugin/SearchProvider";
 
+    // gnome-shell only shows a handful of results per provider
+    private static final int MAX_RESULTS = 20;
+
+    // result metas kept in memory, so repeated keystrokes showing the same results
+    // do not read the document store again
+    private static final int MAX_CACHED_METAS = 4096;
+
+    // descriptions are cut to this many characters of content
+    private static final int DESCRIPTION_LENGTH = 120;
+
+    private static final String DEFAULT_ICON = "text-x-generic";
+
     private final SearchIndexStore store;
+    private final DocumentStore documents;
     private final List<String> allowedNamespaces;
+    private final Cache<String, ResultMeta> metas = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_METAS)
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .build();
 
-    public DbusSearchProvider(SearchIndexStore store, List<String> allowedNamespaces) {
+    public DbusSearchProvider(SearchIndexStore store, DocumentStore documents, List<String> allowedNamespaces) {
         this.store = store;
+        this.documents = documents;
         this.allowedNamespaces = allowedNamespaces;
     }
 
-    public static Map<String, Variant<?>> getResult(String id) {
-        return Map.of(
-                "id", new Variant<>(id),
-                "name", new Variant<>("display name"),
-                "description", new Variant<>("my test results")
-        );
+    // ResultMeta is what gnome-shell shows for a result. icon is a themed icon name.
+    record ResultMeta(String name, String description, String icon) {
+        static ResultMeta of(DocumentStore.LookupResult result) {
+            var doc = result.doc();
+            var name = doc.getMetadata().getTitle().isEmpty() ? result.docId() : doc.getMetadata().getTitle();
+            return new ResultMeta(name, description(doc.getContent()), icon(name));
+        }
+
+        static ResultMeta unknown(String id) {
+            return new ResultMeta(id, "", DEFAULT_ICON);
+        }
+
+        private static String description(String content) {
+            // only the start of the content can end up in the description
+            var head = content.length() > DESCRIPTION_LENGTH * 4 ? content.substring(0, DESCRIPTION_LENGTH * 4) : content;
+            var collapsed = head.strip().replaceAll("\\s+", " ");
+            return collapsed.length() <= DESCRIPTION_LENGTH ? collapsed : collapsed.substring(0, DESCRIPTION_LENGTH) + "…";
+        }
+
+        // icon maps the content type guessed from the name to its freedesktop icon name,
+        // eg. text/html to text-html.
+        private static String icon(String name) {
+            var contentType = URLConnection.guessContentTypeFromName(name);
+            return contentType == null ? DEFAULT_ICON : contentType.replace('/', '-');
+        }
+
+        Map<String, Variant<?>> toDbus(String id) {
+            return Map.of(
+                    "id", new Variant<>(id),
+                    "name", new Variant<>(name),
+                    "description", new Variant<>(description),
+                    "gicon", new Variant<>(icon)
+            );
+        }
     }
 
     /**
@@ -52,7 +107,25 @@ public class DbusSearchProvider implements SearchProvider2 {
     public List<Map<String, Variant<?>>> GetResultMetas(List<String> identifiers) {
         log.info("GetResultMetas terms={}", identifiers);
 
-        return List.of(getResult("eivindtest"));
+        var found = new HashMap<>(metas.getAllPresent(identifiers));
+        var missing = identifiers.stream().filter(id -> !found.containsKey(id)).distinct().toList();
+        if (!missing.isEmpty()) {
+            var results = documents.getAll(missing).join();
+            for (int i = 0; i < missing.size(); i++) {
+                var id = missing.get(i);
+                var meta = results.get(i).map(ResultMeta::of).orElseGet(() -> ResultMeta.unknown(id));
+                if (results.get(i).isPresent()) {
+                    metas.put(id, meta);
+                }
+                found.put(id, meta);
+            }
+        }
+
+        var res = new ArrayList<Map<String, Variant<?>>>(identifiers.size());
+        for (var id : identifiers) {
+            res.add(found.get(id).toDbus(id));
+        }
+        return res;
     }
 
     /**
@@ -69,10 +142,7 @@ public class DbusSearchProvider implements SearchProvider2 {
     public List<String> GetInitialResultSet(List<String> terms) {
         log.info("GetInitialResultSet terms={}", terms);
 
-        var res = store.query(new SearchIndexStore.SearchRequest(
-                allowedNamespaces,
-                terms.get(0)
-        )).join();
+        var res = search(terms);
 
         log.info("GetInitialResultSet terms={} res={}", terms, res);
 
@@ -83,16 +153,38 @@ public class DbusSearchProvider implements SearchProvider2 {
     public List<String> GetSubsearchResultSet(List<String> previous_results, List<String> terms) {
         log.info("GetSubsearchResultSet terms={} previous_results={}", terms, previous_results);
 
-        var res = store.query(new SearchIndexStore.SearchRequest(
-                allowedNamespaces,
-                terms.get(0)
-        )).join();
+        var res = refine(previous_results, terms);
 
         log.info("GetSubsearchResultSet terms={} previous_results={} res={}", terms, previous_results, res);
 
         return res.hits().stream().map(s -> s.docId()).toList();
     }
 
+    // search matches the terms as prefixes, and falls back to fuzzy matching when
+    // nothing matches, which is usually a typo.
+    private SearchHits search(List<String> terms) {
+        var query = String.join(" ", terms);
+
+        var res = store.query(new SearchRequest(allowedNamespaces, query, new Match.Prefix(), MAX_RESULTS)).join();
+        if (!res.hits().isEmpty()) {
+            return res;
+        }
+        return store.query(new SearchRequest(allowedNamespaces, query, new Match.Fuzzy(), MAX_RESULTS)).join();
+    }
+
+    // refine narrows the previous results to those matching the terms. gnome-shell only
+    // calls it when the terms narrow the previous search, so when that search was not cut
+    // off at MAX_RESULTS no other document can match. Otherwise the store searches anew.
+    private SearchHits refine(List<String> previousResults, List<String> terms) {
+        var query = String.join(" ", terms);
+
+        var res = store.refine(new SearchRequest(allowedNamespaces, query, new Match.Prefix(), MAX_RESULTS), previousResults).join();
+        if (!res.hits().isEmpty()) {
+            return res;
+        }
+        return store.refine(new SearchRequest(allowedNamespaces, query, new Match.Fuzzy(), MAX_RESULTS), previousResults).join();
+    }
+
     /**
      * ActivateResult :: (s,as,u) → ()
      * ActivateResult is called when the user clicks on an individual result to open it in the application.
@@ -0,0 +1,23 @@
+package com.github.esiqveland.parsers;
+
+import com.github.esiqveland.crawler.Crawler.IndexableFile;
+import com.github.esiqveland.parsers.FileContentParser.Extracted;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.mime.MediaType;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// ContentExtractor extracts the content of the files it recognizes without Tika. Register
+// it in an ExtractorRegistry.
+public interface ContentExtractor {
+    // recognize returns the media type of the file if this extractor handles it, or null.
+    // head is the start of the content, at most ExtractorRegistry.HEAD_BYTES long.
+    @Nullable
+    MediaType recognize(IndexableFile f, ByteBuffer head);
+
+    // extract returns the content of a file recognized as type. content is all of the file.
+    // Stops with a ParseDeadlineException once System.nanoTime() passes deadline.
+    Extracted extract(IndexableFile f, ByteBuffer content, MediaType type, long deadline) throws IOException, TikaException;
+}
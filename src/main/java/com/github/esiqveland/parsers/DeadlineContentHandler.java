@@ -0,0 +1,50 @@
+package com.github.esiqveland.parsers;
+
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+// DeadlineContentHandler fails the parse feeding it once System.nanoTime() passes the
+// deadline. Parsers emit content as they go, so this stops long parses well before they
+// would end by themselves.
+class DeadlineContentHandler extends ContentHandlerDecorator {
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long deadline;
+    private volatile boolean expired = false;
+
+    DeadlineContentHandler(ContentHandler handler, long deadline) {
+        super(handler);
+        this.deadline = deadline;
+    }
+
+    boolean expired() {
+        return expired;
+    }
+
+    private void check() throws SAXException {
+        if (deadline != NO_DEADLINE && System.nanoTime() - deadline > 0) {
+            expired = true;
+            throw new SAXException("parse deadline passed");
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes atts) throws SAXException {
+        check();
+        super.startElement(uri, localName, name, atts);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        check();
+        super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        check();
+        super.ignorableWhitespace(ch, start, length);
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.esiqveland.parsers;
+
+import com.github.esiqveland.crawler.Crawler.IndexableFile;
+import com.github.esiqveland.parsers.FileContentParser.Extracted;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.mime.MediaType;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+// ExtractorRegistry picks a ContentExtractor for a file ahead of Tika, from its name and the
+// first bytes of its content. Files that no extractor recognizes are left to Tika to detect
+// and parse.
+//
+// A file is memory mapped once: the extractors recognize it by the head of the mapping and
+// extract it straight from the mapping, so it is neither read through a stream nor reset
+// between detecting and parsing.
+public class ExtractorRegistry {
+    // bytes of the head extractors recognize a file by
+    public final static int HEAD_BYTES = 8192;
+
+    // larger files are left to Tika, which streams them
+    public final static long MAX_MAPPED_BYTES = 1L << 30;
+
+    private final List<ContentExtractor> extractors;
+
+    public ExtractorRegistry(List<ContentExtractor> extractors) {
+        this.extractors = List.copyOf(extractors);
+    }
+
+    // defaults extracts plain text and source code.
+    public static ExtractorRegistry defaults() {
+        return new ExtractorRegistry(List.of(new TextExtractor()));
+    }
+
+    // Recognized is a file an extractor recognized, with its mapped content.
+    public record Recognized(ContentExtractor extractor, MediaType type, MappedByteBuffer content) {
+        public Extracted extract(IndexableFile f, long deadline) throws IOException, TikaException {
+            try {
+                return extractor.extract(f, content.duplicate(), type, deadline);
+            } catch (InternalError e) {
+                throw truncated(f, e);
+            }
+        }
+    }
+
+    // recognize returns the file with the extractor that recognized it, if any did.
+    public Optional<Recognized> recognize(IndexableFile f) throws IOException {
+        if (extractors.isEmpty() || f.size() == 0 || f.size() > MAX_MAPPED_BYTES) {
+            return Optional.empty();
+        }
+        MappedByteBuffer content;
+        try (var channel = FileChannel.open(f.path(), StandardOpenOption.READ)) {
+            // the file may have changed since it was crawled
+            var size = channel.size();
+            if (size == 0 || size > MAX_MAPPED_BYTES) {
+                return Optional.empty();
+            }
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        var head = content.slice(0, Math.min(content.limit(), HEAD_BYTES));
+        try {
+            for (var extractor : extractors) {
+                var type = extractor.recognize(f, head.duplicate());
+                if (type != null) {
+                    return Optional.of(new Recognized(extractor, type, content));
+                }
+            }
+        } catch (InternalError e) {
+            throw truncated(f, e);
+        }
+        return Optional.empty();
+    }
+
+    // reading a mapping past the end of a file that was truncated meanwhile faults, which
+    // the JVM throws as an InternalError
+    private static IOException truncated(IndexableFile f, InternalError e) {
+        return new IOException("file truncated while reading path=" + f.path(), e);
+    }
+}
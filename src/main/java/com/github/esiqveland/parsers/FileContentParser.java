@@ -1,29 +1,94 @@
 package com.github.esiqveland.parsers;
 
 import com.github.esiqveland.crawler.Crawler.IndexableFile;
+import com.github.esiqveland.text.StreamingTokenizer;
+import com.github.esiqveland.text.Tokenizers.Token;
 import org.apache.poi.EmptyFileException;
 import org.apache.tika.detect.DefaultDetector;
 import org.apache.tika.detect.Detector;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
 import org.apache.tika.exception.WriteLimitReachedException;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.metadata.TikaCoreProperties;
 import org.apache.tika.mime.MediaType;
-import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.DefaultParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
 
 //See: https://tika.apache.org/2.1.0/parser.html
-public class FileContentParser {
+//
+// By default documents are parsed in this JVM. forked() parses them in a pool of worker
+// JVMs instead, so a document that makes Tika allocate without bound or spin forever only
+// takes down its worker, never the stores or the D-Bus service. Detection reads just the
+// first bytes of a file, and stays in this JVM either way.
+//
+// Files that one of its extractors recognizes, such as plain text and source code, are extracted
+// by that instead, in this JVM, and never reach Tika.
+public class FileContentParser implements AutoCloseable {
+    // worker JVMs of a forked parser
+    public final static int FORK_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    // heap of each worker JVM
+    public final static String FORK_MAX_HEAP = "512m";
+
+    // a worker is replaced after this many parses, to shed what parsers leak
+    public final static int FORK_MAX_FILES_PER_WORKER = 10_000;
+
+    // extract keeps this many characters of a document as its text
+    public final static int EXTRACT_KEEP_CHARS = 1 << 16;
+
     public final Detector detector = new DefaultDetector();
-    public final Parser parser = new DefaultParser();
-    public final Parser parser2 = new AutoDetectParser();
+    public final Parser parser;
+    // extract the files they recognize instead of Tika
+    public final ExtractorRegistry extractors;
+
+    public FileContentParser() {
+        this(new DefaultParser());
+    }
+
+    public FileContentParser(Parser parser) {
+        this(parser, ExtractorRegistry.defaults());
+    }
+
+    public FileContentParser(Parser parser, ExtractorRegistry extractors) {
+        this.parser = parser;
+        this.extractors = extractors;
+    }
+
+    // forked parses in FORK_POOL_SIZE reused worker JVMs. A worker that runs out of heap,
+    // or spends longer than ParseScheduler.FILE_BUDGET on a document, exits and is started
+    // again for the next one, and the document fails with a TikaException. Text is streamed
+    // back as SAX events while the worker parses.
+    public static FileContentParser forked() {
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var forkParser = new ForkParser(FileContentParser.class.getClassLoader(), new DefaultParser());
+        forkParser.setJavaCommand(List.of(
+                java,
+                "-Xmx" + FORK_MAX_HEAP,
+                "-XX:+ExitOnOutOfMemoryError",
+                "-Djava.awt.headless=true"
+        ));
+        forkParser.setPoolSize(FORK_POOL_SIZE);
+        forkParser.setMaxFilesProcessedPerServer(FORK_MAX_FILES_PER_WORKER);
+        forkParser.setServerParseTimeoutMillis(ParseScheduler.FILE_BUDGET.toMillis());
+        return new FileContentParser(forkParser);
+    }
+
+    // maxConcurrency is how many parses this parser can run at once: one per worker JVM when
+    // forked, since more would wait for a worker on their time budget.
+    public int maxConcurrency() {
+        return parser instanceof ForkParser ? FORK_POOL_SIZE : ParseScheduler.MAX_CONCURRENCY;
+    }
 
     public MediaType detect(IndexableFile f, TikaInputStream inputStream) throws IOException {
         var meta = new Metadata();
@@ -34,7 +99,35 @@ public class FileContentParser {
         return detector.detect(inputStream, meta);
     }
 
-    public String parse(IndexableFile f, TikaInputStream inputStream, MediaType mediaType) throws IOException, TikaException {
+    // Extracted is the content of a document. text is at most EXTRACT_KEEP_CHARS of it, and
+    // truncated tells whether there was more. tokens are those of the whole document. A
+    // document without text is described by its name instead, and is nameOnly.
+    public record Extracted(String text, boolean truncated, List<Token> tokens, boolean nameOnly) {
+    }
+
+    // extract parses the document straight into a StreamingTokenizer, without holding its
+    // text in memory, so documents of any size are tokenized fully. Stops with a
+    // ParseDeadlineException once System.nanoTime() passes deadline.
+    public Extracted extract(IndexableFile f, TikaInputStream inputStream, MediaType mediaType, long deadline) throws IOException, TikaException {
+        try (var tokenizer = StreamingTokenizer.open()) {
+            var handler = new TokenizingContentHandler(tokenizer, EXTRACT_KEEP_CHARS);
+            if (f.size() == 0 || !parseInto(f, inputStream, mediaType, deadline, new BodyContentHandler(handler))) {
+                tokenizer.append(f.name());
+                return new Extracted(f.name(), false, tokenizer.finish(), true);
+            }
+            return new Extracted(handler.text(), handler.truncated(), tokenizer.finish(), false);
+        }
+    }
+
+    // parseInto parses the document into handler. Returns false if the document turned
+    // out to be empty.
+    private boolean parseInto(
+            IndexableFile f,
+            TikaInputStream inputStream,
+            MediaType mediaType,
+            long deadline,
+            ContentHandler handler
+    ) throws IOException, TikaException {
         var meta = new Metadata();
         meta.set(TikaCoreProperties.RESOURCE_NAME_KEY, f.name());
         //meta.set(Metadata.TITLE, );
@@ -43,27 +136,42 @@ public class FileContentParser {
         meta.set(Metadata.CONTENT_TYPE, mediaType.toString());
         meta.set(Metadata.CONTENT_LENGTH, Long.toString(f.size()));
 
-        BodyContentHandler handler = new BodyContentHandler();
+        var deadlineHandler = new DeadlineContentHandler(handler, deadline);
         try {
-            if (f.size() == 0) {
-                return f.name();
-            }
             ParseContext ctx = new ParseContext();
 
-            parser.parse(inputStream, handler, meta, ctx);
+            parser.parse(inputStream, deadlineHandler, meta, ctx);
 
-            return handler.toString();
+            return true;
         } catch (WriteLimitReachedException e) {
-            // document had too much text, just return what we have:
-            return handler.toString();
+            // document had too much text, just keep what we have:
+            return true;
         } catch (TikaException e) {
+            // parsers may wrap the exception of the handler in their own
+            if (deadlineHandler.expired()) {
+                throw overDeadline(f, mediaType);
+            }
             if (e.getCause() instanceof EmptyFileException) {
-                return f.name();
+                return false;
             } else {
                 throw e;
             }
         } catch (SAXException e) {
+            if (deadlineHandler.expired()) {
+                throw overDeadline(f, mediaType);
+            }
             throw new RuntimeException("error parsing", e);
         }
     }
+
+    @Override
+    public void close() throws IOException {
+        if (parser instanceof Closeable c) {
+            c.close();
+        }
+    }
+
+    static ParseDeadlineException overDeadline(IndexableFile f, MediaType mediaType) {
+        return new ParseDeadlineException("parse deadline passed for name=" + f.name() + " type=" + mediaType);
+    }
 }
@@ -0,0 +1,12 @@
+package com.github.esiqveland.parsers;
+
+import org.apache.tika.exception.TikaException;
+
+// ParseDeadlineException is thrown when a parse runs past its deadline.
+public class ParseDeadlineException extends TikaException {
+    private static final long serialVersionUID = 1L;
+
+    public ParseDeadlineException(String msg) {
+        super(msg);
+    }
+}
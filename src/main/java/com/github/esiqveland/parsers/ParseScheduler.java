@@ -0,0 +1,249 @@
+package com.github.esiqveland.parsers;
+
+import org.apache.tika.mime.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// ParseScheduler runs blocking parse work, such as Tika, on virtual threads.
+//
+// How many parses run at once adapts between MIN_CONCURRENCY and MAX_CONCURRENCY, to where
+// parse throughput stops growing: parses that mostly wait on disk get more threads, and
+// parses that keep the cores busy get about one per core. A parser that can only run so many
+// parses at once, such as a pool of worker JVMs, lowers the maximum to that.
+//
+// Every parse gets a time budget: FILE_BUDGET for the whole file, narrowed to the budget of
+// its media type once detected. Parsers check the deadline cooperatively. At the file
+// deadline the thread is also interrupted, which aborts blocking reads, and the parse is
+// given up on with its fallback result. Its slot stays taken until the parse returns, as
+// parsers may ignore the interrupt, so a parse that runs on still counts against the limit.
+public class ParseScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ParseScheduler.class);
+
+    public final static int MIN_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    public final static int MAX_CONCURRENCY = 4 * Runtime.getRuntime().availableProcessors();
+
+    // budget of a file, from detecting its media type to the end of the parse
+    public final static Duration FILE_BUDGET = Duration.ofSeconds(60);
+
+    // budget of a parse of a media type not in TYPE_BUDGETS
+    public final static Duration DEFAULT_TYPE_BUDGET = Duration.ofSeconds(20);
+
+    public final static Map<MediaType, Duration> TYPE_BUDGETS = Map.of(
+            MediaType.TEXT_PLAIN, Duration.ofSeconds(5),
+            MediaType.TEXT_HTML, Duration.ofSeconds(10),
+            MediaType.APPLICATION_XML, Duration.ofSeconds(10),
+            MediaType.application("pdf"), Duration.ofSeconds(45),
+            MediaType.application("zip"), Duration.ofSeconds(45)
+    );
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "parse-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Limit limit;
+    private final Duration fileBudget;
+
+    public ParseScheduler() {
+        this(MAX_CONCURRENCY);
+    }
+
+    // ParseScheduler runs at most maxConcurrency parses at once.
+    public ParseScheduler(int maxConcurrency) {
+        this(maxConcurrency, FILE_BUDGET);
+    }
+
+    ParseScheduler(int maxConcurrency, Duration fileBudget) {
+        this.limit = new Limit(Math.min(MIN_CONCURRENCY, maxConcurrency), maxConcurrency);
+        this.fileBudget = fileBudget;
+    }
+
+    public interface Task<T> {
+        T run(Budget budget) throws Exception;
+    }
+
+    // Budget is the time a parse has left.
+    public static final class Budget {
+        private final long fileDeadline;
+        private volatile long deadline;
+        private volatile String mediaType = "";
+
+        Budget(long fileDeadline) {
+            this.fileDeadline = fileDeadline;
+            this.deadline = fileDeadline;
+        }
+
+        // forType narrows the budget to that of the media type, and returns the deadline
+        // in System.nanoTime() terms.
+        public long forType(MediaType type) {
+            var budget = TYPE_BUDGETS.getOrDefault(type.getBaseType(), DEFAULT_TYPE_BUDGET);
+            mediaType = type.getBaseType().toString();
+            deadline = Math.min(fileDeadline, System.nanoTime() + budget.toNanos());
+            return deadline;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+
+        public boolean expired() {
+            return System.nanoTime() - deadline > 0;
+        }
+    }
+
+    // submit runs the task once a slot is free. If it is still running at the file deadline,
+    // it is interrupted and the future completes with fallback instead. The slot is freed
+    // when the task returns either way.
+    public <T> CompletableFuture<T> submit(Task<T> task, Supplier<T> fallback) {
+        var result = new CompletableFuture<T>();
+        executor.execute(() -> {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            var finished = new AtomicBoolean();
+            var start = System.nanoTime();
+            var budget = new Budget(start + fileBudget.toNanos());
+            var thread = Thread.currentThread();
+            var deadline = timer.schedule(() -> {
+                if (finished.compareAndSet(false, true)) {
+                    log.warn("parse over budget mediaType={}, interrupting", budget.mediaType);
+                    thread.interrupt();
+                    result.complete(fallback.get());
+                }
+            }, fileBudget.toNanos(), TimeUnit.NANOSECONDS);
+            try {
+                var value = task.run(budget);
+                if (finished.compareAndSet(false, true)) {
+                    result.complete(value);
+                }
+            } catch (Throwable e) {
+                if (finished.compareAndSet(false, true)) {
+                    result.completeExceptionally(e);
+                }
+            } finally {
+                deadline.cancel(false);
+                // a parse given up on at the deadline is sampled at its real latency too
+                limit.release(budget.mediaType, System.nanoTime() - start);
+            }
+        });
+        return result;
+    }
+
+    public int concurrency() {
+        return limit.current();
+    }
+
+    public int maxConcurrency() {
+        return limit.max;
+    }
+
+    // Limit is a concurrency limit that hill climbs on parse throughput: every window it
+    // steps the limit, keeps going while throughput improves, and turns around once it
+    // drops. When a step makes no difference it steps down, to use fewer threads for the
+    // same throughput. A parse counts by how slow its media type usually is compared to all
+    // parses, so a window of slow types does not read as a drop, while latencies that all
+    // grow with the limit do not read as more work. Waiting uses a ReentrantLock, which does
+    // not pin the carrier of a virtual thread.
+    private static final class Limit {
+        // ignore throughput changes smaller than this
+        private static final double TOLERANCE = 0.05;
+        private static final long MIN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+        private final int min;
+        private final int max;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        // usual latency per media type and of all parses, in nanos
+        private final Map<String, Double> usual = new HashMap<>();
+        private double overall = 0;
+        private int limit;
+        private int direction = 1;
+        private int inFlight = 0;
+        private int completions = 0;
+        private double work = 0;
+        private long windowStart = System.nanoTime();
+        private double lastThroughput = 0;
+
+        Limit(int min, int max) {
+            this.min = min;
+            this.max = max;
+            this.limit = min;
+        }
+
+        void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                while (inFlight >= limit) {
+                    available.await();
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(String mediaType, long latencyNanos) {
+            lock.lock();
+            try {
+                inFlight--;
+                sample(mediaType, latencyNanos);
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void sample(String mediaType, long latencyNanos) {
+            var latency = Math.max(1.0, latencyNanos);
+            var typical = usual.merge(mediaType, latency, (old, l) -> old * 0.95 + l * 0.05);
+            overall = overall == 0 ? latency : overall * 0.95 + latency * 0.05;
+            work += typical / overall;
+            completions++;
+
+            var now = System.nanoTime();
+            var elapsed = now - windowStart;
+            if (completions < limit || elapsed < MIN_WINDOW_NANOS) {
+                return;
+            }
+            var throughput = work / elapsed;
+            if (throughput < lastThroughput * (1 - TOLERANCE)) {
+                direction = -direction;
+            } else if (throughput < lastThroughput * (1 + TOLERANCE)) {
+                direction = -1;
+            }
+            lastThroughput = throughput;
+            limit = Math.max(min, Math.min(max, limit + direction * Math.max(1, limit / 8)));
+
+            completions = 0;
+            work = 0;
+            windowStart = now;
+        }
+
+        int current() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
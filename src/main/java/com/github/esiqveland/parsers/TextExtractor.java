@@ -0,0 +1,196 @@
+package com.github.esiqveland.parsers;
+
+import com.github.esiqveland.crawler.Crawler.IndexableFile;
+import com.github.esiqveland.parsers.FileContentParser.Extracted;
+import com.github.esiqveland.text.StreamingTokenizer;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.txt.CharsetDetector;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Locale;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// TextExtractor decodes plain text and source code straight into the tokenizer, skipping
+// Tika's detection, SAX events and handler chain. A file is recognized by its extension or
+// name, or by a shebang or byte order mark, and only if its head has no NUL bytes or binary
+// signature, so binaries named like text still go to Tika.
+//
+// The charset is picked from the head: a byte order mark, else UTF-8 if the head is valid
+// UTF-8, else what Tika's CharsetDetector guesses. Bytes that do not decode are replaced.
+//
+// All of it is reported as text/plain, as it costs the same to extract whatever the language.
+public class TextExtractor implements ContentExtractor {
+    // chars decoded at a time into the tokenizer
+    private final static int CHUNK_CHARS = 8192;
+
+    // used when the charset guessed is not supported
+    private final static Charset FALLBACK_CHARSET = Charset.forName("windows-1252");
+
+    private final static Set<String> EXTENSIONS = Set.of(
+            "txt", "text", "log", "md", "markdown", "rst", "adoc", "org", "tex",
+            "csv", "tsv", "json", "yaml", "yml", "toml", "ini", "cfg", "conf", "properties", "env",
+            "java", "kt", "kts", "scala", "groovy", "gradle", "clj",
+            "c", "h", "cc", "cpp", "cxx", "hh", "hpp", "cs", "m", "mm", "swift",
+            "go", "rs", "zig", "py", "rb", "pl", "pm", "lua", "r", "php",
+            "js", "mjs", "cjs", "ts", "tsx", "jsx", "css", "scss", "less", "vue", "svelte",
+            "sh", "bash", "zsh", "fish", "ps1", "bat",
+            "sql", "proto", "graphql", "thrift", "cmake", "mk", "nix", "el", "vim",
+            "hs", "ml", "mli", "ex", "exs", "erl", "dart", "diff", "patch"
+    );
+
+    // files that are text, and usually have no extension
+    private final static Set<String> NAMES = Set.of(
+            "readme", "license", "copying", "authors", "changelog", "todo", "notice",
+            "makefile", "dockerfile", "containerfile", "jenkinsfile", "vagrantfile", "gemfile"
+    );
+
+    private final static byte[] SHEBANG = "#!".getBytes(US_ASCII);
+
+    // starts of formats that can look like text at first
+    private final static byte[][] BINARY_MAGIC = {
+            "%PDF-".getBytes(US_ASCII),
+            "{\\rtf".getBytes(US_ASCII),
+            {'P', 'K', 3, 4},
+            {(byte) 0x1F, (byte) 0x8B},
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+    };
+
+    private record Encoding(Charset charset, int bomLength) {
+    }
+
+    @Override
+    public MediaType recognize(IndexableFile f, ByteBuffer head) {
+        var bom = bom(head);
+        if (!hasTextName(f.name()) && bom == null && !startsWith(head, SHEBANG)) {
+            return null;
+        }
+        if (bom != null && bom.charset() != UTF_8) {
+            // UTF-16 text is half NUL bytes
+            return MediaType.TEXT_PLAIN;
+        }
+        for (var magic : BINARY_MAGIC) {
+            if (startsWith(head, magic)) {
+                return null;
+            }
+        }
+        for (int i = head.position(); i < head.limit(); i++) {
+            if (head.get(i) == 0) {
+                return null;
+            }
+        }
+        return MediaType.TEXT_PLAIN;
+    }
+
+    @Override
+    public Extracted extract(IndexableFile f, ByteBuffer content, MediaType type, long deadline) throws ParseDeadlineException {
+        var encoding = encoding(content.slice(0, Math.min(content.limit(), ExtractorRegistry.HEAD_BYTES)));
+        var decoder = encoding.charset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        content.position(encoding.bomLength());
+        var chars = CharBuffer.allocate(CHUNK_CHARS);
+
+        try (var tokenizer = StreamingTokenizer.open()) {
+            var handler = new TokenizingContentHandler(tokenizer, FileContentParser.EXTRACT_KEEP_CHARS);
+            while (decoder.decode(content, chars, true).isOverflow()) {
+                emit(chars, handler);
+                if (deadline != DeadlineContentHandler.NO_DEADLINE && System.nanoTime() - deadline > 0) {
+                    throw FileContentParser.overDeadline(f, type);
+                }
+            }
+            while (decoder.flush(chars).isOverflow()) {
+                emit(chars, handler);
+            }
+            emit(chars, handler);
+            return new Extracted(handler.text(), handler.truncated(), tokenizer.finish(), false);
+        }
+    }
+
+    private static void emit(CharBuffer chars, TokenizingContentHandler handler) {
+        handler.characters(chars.array(), 0, chars.position());
+        chars.clear();
+    }
+
+    private static boolean hasTextName(String name) {
+        var lower = name.toLowerCase(Locale.ROOT);
+        var dot = lower.lastIndexOf('.');
+        if (dot > 0) {
+            return EXTENSIONS.contains(lower.substring(dot + 1));
+        }
+        return NAMES.contains(lower);
+    }
+
+    private static Encoding encoding(ByteBuffer head) {
+        var bom = bom(head);
+        if (bom != null) {
+            return bom;
+        }
+        if (isUtf8(head.duplicate())) {
+            return new Encoding(UTF_8, 0);
+        }
+        var bytes = new byte[head.remaining()];
+        head.duplicate().get(bytes);
+        var match = new CharsetDetector().setText(bytes).detect();
+        if (match == null) {
+            return new Encoding(FALLBACK_CHARSET, 0);
+        }
+        try {
+            var name = match.getName();
+            return new Encoding(Charset.isSupported(name) ? Charset.forName(name) : FALLBACK_CHARSET, 0);
+        } catch (IllegalCharsetNameException e) {
+            return new Encoding(FALLBACK_CHARSET, 0);
+        }
+    }
+
+    private static Encoding bom(ByteBuffer head) {
+        if (startsWith(head, new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF})) {
+            return new Encoding(UTF_8, 3);
+        }
+        if (startsWith(head, new byte[]{(byte) 0xFF, (byte) 0xFE})) {
+            return new Encoding(UTF_16LE, 2);
+        }
+        if (startsWith(head, new byte[]{(byte) 0xFE, (byte) 0xFF})) {
+            return new Encoding(UTF_16BE, 2);
+        }
+        return null;
+    }
+
+    // isUtf8 tells whether head decodes as UTF-8. A sequence cut off by the end of the head
+    // is not held against it.
+    private static boolean isUtf8(ByteBuffer head) {
+        var decoder = UTF_8.newDecoder();
+        var chars = CharBuffer.allocate(1024);
+        while (true) {
+            var result = decoder.decode(head, chars, false);
+            if (result.isError()) {
+                return false;
+            }
+            if (result.isUnderflow()) {
+                return true;
+            }
+            chars.clear();
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer head, byte[] prefix) {
+        if (head.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (head.get(head.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
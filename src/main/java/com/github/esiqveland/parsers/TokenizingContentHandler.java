@@ -0,0 +1,44 @@
+package com.github.esiqveland.parsers;
+
+import com.github.esiqveland.text.StreamingTokenizer;
+import org.xml.sax.helpers.DefaultHandler;
+
+// TokenizingContentHandler feeds the text of a document into a StreamingTokenizer as the
+// parser produces it. Only the first keepChars characters are kept as text, to store and
+// describe the document by.
+class TokenizingContentHandler extends DefaultHandler {
+    private final StreamingTokenizer tokenizer;
+    private final int keepChars;
+    private final StringBuilder text = new StringBuilder();
+    private boolean truncated = false;
+
+    TokenizingContentHandler(StreamingTokenizer tokenizer, int keepChars) {
+        this.tokenizer = tokenizer;
+        this.keepChars = keepChars;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        tokenizer.append(ch, start, length);
+        var keep = Math.min(length, keepChars - text.length());
+        if (keep > 0) {
+            text.append(ch, start, keep);
+        }
+        if (keep < length) {
+            truncated = true;
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) {
+        characters(ch, start, length);
+    }
+
+    String text() {
+        return text.toString();
+    }
+
+    boolean truncated() {
+        return truncated;
+    }
+}
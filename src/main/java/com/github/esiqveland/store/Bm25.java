@@ -0,0 +1,31 @@
+package com.github.esiqveland.store;
+
+// Bm25 scores term matches with Okapi BM25 for a collection of docCount documents with an
+// average length of avgLength tokens.
+final class Bm25 {
+    static final float K1 = 1.2f;
+    static final float B = 0.75f;
+
+    private final long docCount;
+    private final float avgLength;
+
+    Bm25(long docCount, float avgLength) {
+        this.docCount = Math.max(docCount, 1);
+        this.avgLength = avgLength > 0 ? avgLength : 1f;
+    }
+
+    float idf(int docFrequency) {
+        return (float) Math.log(1 + (docCount - docFrequency + 0.5) / (docFrequency + 0.5));
+    }
+
+    float score(float idf, int freq, int docLength) {
+        float norm = K1 * (1 - B + B * docLength / avgLength);
+        return idf * freq * (K1 + 1) / (freq + norm);
+    }
+
+    // maxScore bounds score() for any document with at most maxFreq occurrences of the
+    // term, taking the shortest possible document length.
+    float maxScore(float idf, int maxFreq) {
+        return idf * maxFreq * (K1 + 1) / (maxFreq + K1 * (1 - B));
+    }
+}
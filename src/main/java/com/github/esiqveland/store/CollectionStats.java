@@ -0,0 +1,52 @@
+package com.github.esiqveland.store;
+
+import java.nio.ByteBuffer;
+
+// CollectionStats are the per-namespace document count and total document length used for
+// BM25 length normalization. Updated by the single index writer only.
+final class CollectionStats {
+    private volatile long docCount;
+    private volatile long totalLength;
+
+    CollectionStats(long docCount, long totalLength) {
+        this.docCount = docCount;
+        this.totalLength = totalLength;
+    }
+
+    long docCount() {
+        return docCount;
+    }
+
+    float avgLength() {
+        long docs = docCount;
+        return docs == 0 ? 0f : (float) totalLength / docs;
+    }
+
+    // add accounts for a new document of length.
+    void add(int length) {
+        docCount = docCount + 1;
+        totalLength = totalLength + length;
+    }
+
+    // remove accounts for a deleted document of length.
+    void remove(int length) {
+        docCount = Math.max(0, docCount - 1);
+        totalLength = Math.max(0, totalLength - length);
+    }
+
+    CollectionStats copy() {
+        return new CollectionStats(docCount, totalLength);
+    }
+
+    byte[] toBytes() {
+        return ByteBuffer.allocate(16).putLong(docCount).putLong(totalLength).array();
+    }
+
+    static CollectionStats fromBytes(byte[] bytes) {
+        if (bytes == null) {
+            return new CollectionStats(0, 0);
+        }
+        var buf = ByteBuffer.wrap(bytes);
+        return new CollectionStats(buf.getLong(), buf.getLong());
+    }
+}
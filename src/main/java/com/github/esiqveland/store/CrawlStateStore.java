@@ -0,0 +1,201 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.hugin.crawlstate.v1.Crawlstate.FileState;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// CrawlStateStore remembers what the last crawl saw of every path, so a re-crawl can skip
+// files that did not change and follow files that moved.
+//
+// The default column family maps a path to its FileState. The object_ids column family
+// maps the id of a file back to the path it was last seen at.
+public class CrawlStateStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CrawlStateStore.class);
+
+    public final static byte[] CF_OBJECT_IDS = "object_ids".getBytes(UTF_8);
+
+    public final static DBOptions OPTIONS = new DBOptions()
+            .setCreateIfMissing(true)
+            .setCreateMissingColumnFamilies(true);
+
+    public final static ColumnFamilyOptions CF_OPTIONS = new ColumnFamilyOptions();
+
+    private final RocksDB rocksDB;
+    private final WriteOptions writeOptions;
+    private final List<ColumnFamilyHandle> handles;
+    private final ColumnFamilyHandle paths;
+    private final ColumnFamilyHandle objectIds;
+
+    // Entry is the state of a path after it was indexed. movedFrom is the path a moved file
+    // was last seen at.
+    public record Entry(String path, FileState state, @Nullable String movedFrom) {
+    }
+
+    public CrawlStateStore(RocksDB rocksDB, List<ColumnFamilyHandle> handles, Durability durability) {
+        this.rocksDB = rocksDB;
+        this.writeOptions = durability.writeOptions();
+        this.handles = handles;
+        this.paths = handles.get(0);
+        this.objectIds = handles.get(1);
+    }
+
+    public static CrawlStateStore open(String path) throws RocksDBException {
+        return open(path, Durability.WAL);
+    }
+
+    public static CrawlStateStore open(String path, Durability durability) throws RocksDBException {
+        var descriptors = List.of(
+                new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, CF_OPTIONS),
+                new ColumnFamilyDescriptor(CF_OBJECT_IDS, CF_OPTIONS)
+        );
+        var handles = new ArrayList<ColumnFamilyHandle>(descriptors.size());
+        var db = RocksDB.open(OPTIONS, path, descriptors, handles);
+        return new CrawlStateStore(db, handles, durability);
+    }
+
+    public Optional<FileState> get(String path) {
+        try {
+            return Optional.ofNullable(rocksDB.get(paths, path.getBytes(UTF_8)))
+                    .map(CrawlStateStore::parse);
+        } catch (RocksDBException e) {
+            throw new RuntimeException("get path=" + path, e);
+        }
+    }
+
+    // pathOf returns the path the file with this id was last seen at.
+    public Optional<String> pathOf(String id) {
+        try {
+            return Optional.ofNullable(rocksDB.get(objectIds, id.getBytes(UTF_8)))
+                    .map(p -> new String(p, UTF_8));
+        } catch (RocksDBException e) {
+            throw new RuntimeException("pathOf id=" + id, e);
+        }
+    }
+
+    // update records the entries, and returns the ids no path refers to anymore, which
+    // should be deleted from the index. That is the old id of a path now holding another
+    // file.
+    public synchronized List<String> update(List<Entry> entries) throws RocksDBException {
+        var orphans = new ArrayList<String>();
+        // paths and ids written by this batch, which reads do not see yet
+        var written = new HashSet<String>();
+        var seenAt = new HashMap<String, String>();
+        // replaced ids are orphaned after the loop, as a later entry may have moved them
+        var replaced = new LinkedHashMap<String, String>();
+        try (var wb = new WriteBatch()) {
+            for (var entry : entries) {
+                var id = entry.state().getId();
+                var previous = get(entry.path());
+                if (previous.isPresent() && !previous.get().getId().equals(id) && !written.contains(entry.path())) {
+                    replaced.put(entry.path(), previous.get().getId());
+                }
+                // the old path may already hold another file
+                var from = entry.movedFrom();
+                if (from != null && !written.contains(from) && get(from).map(s -> s.getId().equals(id)).orElse(false)) {
+                    wb.delete(paths, from.getBytes(UTF_8));
+                }
+                wb.put(paths, entry.path().getBytes(UTF_8), entry.state().toByteArray());
+                wb.put(objectIds, id.getBytes(UTF_8), entry.path().getBytes(UTF_8));
+                written.add(entry.path());
+                seenAt.put(id, entry.path());
+            }
+            for (var e : replaced.entrySet()) {
+                orphan(wb, e.getKey(), e.getValue(), seenAt, orphans);
+            }
+            rocksDB.write(writeOptions, wb);
+        }
+        return orphans;
+    }
+
+    // sweep forgets the paths under root that no longer exist, and returns their ids. Moved
+    // files have already been recorded at their new path by update.
+    public synchronized List<String> sweep(Path root) throws RocksDBException {
+        var prefix = root.toString().getBytes(UTF_8);
+        var orphans = new ArrayList<String>();
+        int scanned = 0;
+        try (var wb = new WriteBatch(); var it = rocksDB.newIterator(paths)) {
+            for (it.seek(prefix); it.isValid() && startsWith(it.key(), prefix); it.next()) {
+                scanned++;
+                var path = Path.of(new String(it.key(), UTF_8));
+                if (!path.startsWith(root) || Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                wb.delete(paths, it.key());
+                orphan(wb, path.toString(), parse(it.value()).getId(), Map.of(), orphans);
+            }
+            it.status();
+            rocksDB.write(writeOptions, wb);
+        }
+        log.info("sweep root={} scanned={} removed={}", root, scanned, orphans.size());
+        return orphans;
+    }
+
+    // clear forgets every path, for when the index the state describes is gone.
+    public synchronized void clear() throws RocksDBException {
+        try (var wb = new WriteBatch()) {
+            for (var handle : handles) {
+                try (var it = rocksDB.newIterator(handle)) {
+                    for (it.seekToFirst(); it.isValid(); it.next()) {
+                        wb.delete(handle, it.key());
+                    }
+                    it.status();
+                }
+            }
+            rocksDB.write(writeOptions, wb);
+        }
+    }
+
+    // orphan drops the id of path, unless the file it names was last seen elsewhere.
+    private void orphan(WriteBatch wb, String path, String id, Map<String, String> seenAt, List<String> orphans) throws RocksDBException {
+        var at = Optional.ofNullable(seenAt.get(id)).or(() -> pathOf(id));
+        if (at.isEmpty() || at.get().equals(path)) {
+            wb.delete(objectIds, id.getBytes(UTF_8));
+            orphans.add(id);
+        }
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        return key.length >= prefix.length
+                && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static FileState parse(byte[] bytes) {
+        try {
+            return FileState.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        // without a WAL, unflushed writes only live in the memtables
+        if (writeOptions.disableWAL()) {
+            try (var flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                rocksDB.flush(flushOptions, handles);
+            }
+        }
+        writeOptions.close();
+        for (var handle : handles) {
+            handle.close();
+        }
+        rocksDB.close();
+    }
+}
@@ -1,33 +1,76 @@
 package com.github.esiqveland.store;
 
+import com.github.esiqveland.hugin.documentstore.v1.Documentstore;
 import com.github.esiqveland.hugin.documentstore.v1.Documentstore.StoredDocument;
-import com.github.esiqveland.text.Tokenizers.Token;
-import com.github.esiqveland.types.Documents.DocumentWithTokens;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
-import io.vavr.CheckedFunction1;
 import org.rocksdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+// DocumentStore keeps the parsed content and metadata of documents as StoredDocument
+// protos keyed by docId.
+//
+// Writes are group committed: insertBatch and deleteBatch queue the batch, and a single
+// writer thread drains every queued batch into one WriteBatch, in the order they were
+// queued, so concurrent batches share one write and, with Durability.SYNC, one fsync. The
+// queue is bounded, so producers block instead of buffering without limit while the writer
+// catches up.
 public class DocumentStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(DocumentStore.class);
+
+    // lookups run on a pool of this many threads
+    public final static int READ_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // insertBatch blocks once this many batches wait for the writer
+    public final static int MAX_PENDING_BATCHES = 64;
+
+    public final static Options OPTIONS = new Options()
+            .setCreateIfMissing(true);
+
     private final RocksDB rocksDB;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final WriteOptions writeOptions;
+    private final ExecutorService executor = Executors.newFixedThreadPool(READ_THREADS);
+    private final BlockingQueue<PendingBatch> pending = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+    private final Thread writer;
+    private volatile boolean closed = false;
 
-    public final static Options OPTIONS = new Options();
+    private record PendingBatch(List<? extends DocumentOperation> docs, CompletableFuture<Void> done) {
+    }
 
     public DocumentStore(RocksDB rocksDB) {
+        this(rocksDB, Durability.WAL);
+    }
+
+    public DocumentStore(RocksDB rocksDB, Durability durability) {
         this.rocksDB = rocksDB;
+        this.writeOptions = durability.writeOptions();
+        this.writer = new Thread(this::writeLoop, "document-store-writer");
+        this.writer.start();
+    }
+
+    public static DocumentStore open(String path) throws RocksDBException {
+        return open(path, Durability.WAL);
     }
 
-    public sealed interface DocumentOperation permits InsertDocument {
+    public static DocumentStore open(String path, Durability durability) throws RocksDBException {
+        return new DocumentStore(RocksDB.open(OPTIONS, path), durability);
+    }
+
+    public sealed interface DocumentOperation permits InsertDocument, DeleteDocument {
     }
 
     public record DocMetadata(
@@ -42,6 +85,8 @@ public class DocumentStore implements AutoCloseable {
             String ownerId,
             byte[] checksum,
             byte[] docContent,
+            boolean truncated,
+            String language,
             DocMetadata meta
     ) implements DocumentOperation {
         public static StoredDocument parse(byte[] bytes) {
@@ -51,6 +96,23 @@ public class DocumentStore implements AutoCloseable {
                 throw new RuntimeException(e);
             }
         }
+
+        public StoredDocument toStoredDocument() {
+            return StoredDocument.newBuilder()
+                    .setContent(new String(docContent, UTF_8))
+                    .setChecksum(ByteString.copyFrom(checksum))
+                    .setTruncated(truncated)
+                    .setLanguage(language)
+                    .setMetadata(Documentstore.DocMetadata.newBuilder()
+                            .setTitle(meta.title())
+                            .setOwner(ownerId)
+                            .setCreatedAtEpoch((int) meta.createdAt().getEpochSecond())
+                            .setModifiedAtEpoch((int) meta.modifiedAt().getEpochSecond()))
+                    .build();
+        }
+    }
+
+    public record DeleteDocument(String docId) implements DocumentOperation {
     }
 
     public record GetDocumentRequest(String docId) {
@@ -81,62 +143,119 @@ public class DocumentStore implements AutoCloseable {
         }, executor);
     }
 
-//    public CompletableFuture<Void> insertSingle(InsertDocument d) {
-//        return CompletableFuture.runAsync(() -> {
-//            try {
-//                insertSingleInner(d);
-//            } catch (RocksDBException e) {
-//                throw new RuntimeException("insertSingle doc=" + d, e);
-//            }
-//        });
-//    }
-
-    public CompletableFuture<Void> insertBatch(List<DocumentWithTokens> d) {
-        return CompletableFuture.runAsync(() -> {
-            var wOpts = new WriteOptions()
-                    .setSync(false);
-            try {
-                makeBatch(d, writeBatch -> {
-                    this.rocksDB.write(wOpts, writeBatch);
-                    this.rocksDB.syncWal();
-                    this.rocksDB.flush(new FlushOptions().setWaitForFlush(true));
-                    this.rocksDB.flushWal(true);
-                    return null;
-                });
-            } catch (Throwable e) {
-                throw new RuntimeException("insertSingle doc=" + d, e);
+    // getAll looks up the documents with a single multiGet, returning one entry per docId
+    // in the same order.
+    public CompletableFuture<List<Optional<LookupResult>>> getAll(List<String> docIds) {
+        return CompletableFuture.supplyAsync(() -> {
+            var keys = docIds.stream().map(id -> id.getBytes(UTF_8)).toList();
+
+            try (var opts = new ReadOptions()) {
+                var values = rocksDB.multiGetAsList(opts, keys);
+
+                var results = new ArrayList<Optional<LookupResult>>(values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    var docId = docIds.get(i);
+                    results.add(Optional.ofNullable(values.get(i))
+                            .map(InsertDocument::parse)
+                            .map(s -> new LookupResult(docId, s)));
+                }
+                return results;
+            } catch (RocksDBException e) {
+                throw new RuntimeException("getAll ids=" + docIds.size(), e);
             }
-        });
+        }, executor);
     }
 
-    <T> T makeBatch(DocumentWithTokens d, Function<WriteBatch, T> use) throws RocksDBException {
-        try (var wb = new WriteBatch()) {
-            writeToBatch(wb, d);
-            return use.apply(wb);
-        }
+    // insertBatch stores the documents, completing once their group commit is written.
+    // Blocks while MAX_PENDING_BATCHES batches are waiting.
+    public CompletableFuture<Void> insertBatch(List<InsertDocument> d) {
+        return enqueue(d);
+    }
+
+    // deleteBatch deletes the documents, completing once their group commit is written.
+    // Unknown docIds are ignored. Blocks while MAX_PENDING_BATCHES batches are waiting.
+    public CompletableFuture<Void> deleteBatch(List<String> docIds) {
+        return enqueue(docIds.stream().map(DeleteDocument::new).toList());
     }
 
-    private void writeToBatch(WriteBatch wb, DocumentWithTokens d) throws RocksDBException {
-        var doc = d.doc();
-        var tokens = d.tokens();
+    private CompletableFuture<Void> enqueue(List<? extends DocumentOperation> d) {
+        var batch = new PendingBatch(d, new CompletableFuture<>());
+        if (closed) {
+            batch.done().completeExceptionally(new IllegalStateException("DocumentStore is closed"));
+            return batch.done();
+        }
+        try {
+            pending.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.done().completeExceptionally(e);
+        }
+        return batch.done();
+    }
 
-        for (Token token : tokens) {
-            var key = Token.createTokenKey(token, doc.namespaceId());
-            wb.put(key.getBytes(UTF_8), doc.docId().getBytes(UTF_8));
+    private void writeLoop() {
+        var group = new ArrayList<PendingBatch>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                var first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                pending.drainTo(group);
+                commit(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                group.clear();
+            }
         }
     }
 
-    private <T> T makeBatch(List<DocumentWithTokens> d, CheckedFunction1<WriteBatch, T> use) throws Throwable {
+    // commit writes the batches of a group as one WriteBatch. The futures of the batches are
+    // completed on the default executor of CompletableFuture, so what their callers chain on
+    // them does not hold up the writer and the batches queued behind it.
+    private void commit(List<PendingBatch> group) {
+        var start = System.nanoTime();
+        int docs = 0;
         try (var wb = new WriteBatch()) {
-            for (DocumentWithTokens doc : d) {
-                writeToBatch(wb, doc);
+            for (var batch : group) {
+                for (var op : batch.docs()) {
+                    switch (op) {
+                        case InsertDocument doc -> wb.put(doc.docId().getBytes(UTF_8), doc.toStoredDocument().toByteArray());
+                        case DeleteDocument doc -> wb.delete(doc.docId().getBytes(UTF_8));
+                    }
+                    docs++;
+                }
             }
-            return use.apply(wb);
+            rocksDB.write(writeOptions, wb);
+            group.forEach(b -> b.done().completeAsync(() -> null));
+        } catch (Throwable e) {
+            var err = new RuntimeException("commit batches=" + group.size() + " docs=" + docs, e);
+            group.forEach(b -> CompletableFuture.runAsync(() -> b.done().completeExceptionally(err)));
         }
+        var elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.debug("commit batches={} docs={} took {}ms", group.size(), docs, elapsedMs);
     }
 
     @Override
-    public void close() {
+    public void close() throws Exception {
+        closed = true;
+        writer.join();
+        // batches queued after the writer stopped are never written
+        var abandoned = new ArrayList<PendingBatch>();
+        pending.drainTo(abandoned);
+        abandoned.forEach(b -> b.done().completeExceptionally(new IllegalStateException("DocumentStore is closed")));
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        // without a WAL, unflushed writes only live in the memtable
+        if (writeOptions.disableWAL()) {
+            try (var flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                rocksDB.flush(flushOptions);
+            }
+        }
+        writeOptions.close();
         rocksDB.close();
     }
 }
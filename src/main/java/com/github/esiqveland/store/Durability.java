@@ -0,0 +1,20 @@
+package com.github.esiqveland.store;
+
+import org.rocksdb.WriteOptions;
+
+// Durability is how far a write reaches before the store reports it done.
+public enum Durability {
+    // SYNC fsyncs the WAL, so completed writes survive a machine crash.
+    SYNC,
+    // WAL appends to the WAL without fsync, so completed writes survive a process crash.
+    WAL,
+    // NO_WAL skips the WAL, for rebuilding data that can be crawled again. Writes not yet
+    // flushed are lost on a crash, so stores flush on close.
+    NO_WAL;
+
+    WriteOptions writeOptions() {
+        return new WriteOptions()
+                .setSync(this == SYNC)
+                .setDisableWAL(this == NO_WAL);
+    }
+}
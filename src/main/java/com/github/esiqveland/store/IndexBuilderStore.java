@@ -1,65 +1,89 @@
 package com.github.esiqveland.store;
 
-import com.github.esiqveland.text.Tokenizers.Token;
+import com.github.esiqveland.store.SearchIndexStore.InsertionToken;
 import com.github.esiqveland.types.Documents.DocumentWithTokens;
-import com.google.common.primitives.UnsignedBytes;
 import io.reactivex.rxjava3.core.BackpressureStrategy;
 import io.reactivex.rxjava3.core.Flowable;
-import io.vavr.CheckedFunction1;
-import org.jetbrains.annotations.NotNull;
 import org.rocksdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
+// IndexBuilderStore bulk loads documents into a SearchIndexStore, for first-time crawls.
+//
+// Documents are registered with the store as usual, but their postings and positions, the
+// bulk of the index, bypass the memtables, the WAL and compaction:
+//
+//   1. insertBatch buffers the entries and spills them as sorted runs once the buffer is full
+//   2. ingest merges the runs into a single sorted stream, combining the entries of a key
+//      like the merge operator would, and writes SST files from it
+//   3. the SST files are moved into the database with ingestExternalFile
 public class IndexBuilderStore implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(IndexBuilderStore.class);
 
     private static final AtomicLong INSERTS_TOTAL = new AtomicLong();
-    private static final AtomicLong GETS_TOTAL = new AtomicLong();
 
-    private final SstFileWriter rocksDB;
+    // spill a sorted run once the buffered keys and values reach this many bytes
+    public final static long RUN_BYTES = 64L << 20;
+
+    // start a new SST file once the current one reaches this many bytes
+    public final static long SST_FILE_BYTES = 256L << 20;
 
-    public final static String DELIMITER = ",";
-    public final static StringAppendOperator OPERATOR = new StringAppendOperator(DELIMITER);
+    private final SearchIndexStore store;
+    private final Path dir;
+    private final Spill postings;
+    private final Spill positions;
 
-    public final static Options OPTIONS = new Options()
-            .setMergeOperator(OPERATOR)
-            .setCreateIfMissing(true);
+    public IndexBuilderStore(SearchIndexStore store, Path dir) {
+        this(store, dir, RUN_BYTES, SST_FILE_BYTES);
+    }
 
-    public IndexBuilderStore(SstFileWriter rocksDB) {
-        this.rocksDB = rocksDB;
+    IndexBuilderStore(SearchIndexStore store, Path dir, long runBytes, long sstFileBytes) {
+        this.store = store;
+        this.dir = dir;
+        // posting values of a key are unioned into one segment, and written as merge
+        // operands so they append to postings already stored
+        this.postings = new Spill(dir, "postings", SearchIndexStore.POSTINGS_OPTIONS, true,
+                values -> PostingList.consolidate(concat(values)), runBytes, sstFileBytes);
+        // positions are put, so the latest entry of a key wins
+        this.positions = new Spill(dir, "positions", SearchIndexStore.POSITIONS_OPTIONS, false,
+                values -> values.get(values.size() - 1), runBytes, sstFileBytes);
     }
 
-    public static IndexBuilderStore open(String path) throws RocksDBException {
-        var env = new EnvOptions();
-        var w = new SstFileWriter(env, OPTIONS);
-        w.open(path);
-        return new IndexBuilderStore(w);
+    public static IndexBuilderStore open(SearchIndexStore store, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return new IndexBuilderStore(store, dir);
     }
 
     public Flowable<List<DocumentWithTokens>> insertBatch(List<DocumentWithTokens> d) {
         var start = System.nanoTime();
 
         return Flowable.create(emitter -> {
-            var tokens = prepareBatch(d);
-            log.info("insertBatch size={} token={} total={}", d.size(), tokens.size(), INSERTS_TOTAL.get());
             try {
-                for (InsertionToken t : tokens) {
-                    rocksDB.merge(t.key, t.value);
-                    INSERTS_TOTAL.incrementAndGet();
+                var batch = store.prepareBulk(d);
+                synchronized (this) {
+                    postings.add(batch.postings());
+                    positions.add(batch.positions());
                 }
+                INSERTS_TOTAL.addAndGet(batch.postings().size());
+                log.info("insertBatch size={} token={} total={}", d.size(), batch.postings().size(), INSERTS_TOTAL.get());
                 emitter.onNext(d);
-                //return d;
             } catch (Throwable e) {
                 emitter.onError(new RuntimeException("insertBatch doc=" + d, e));
             } finally {
@@ -71,64 +95,213 @@ public class IndexBuilderStore implements AutoCloseable {
         }, BackpressureStrategy.BUFFER);
     }
 
-    <T> T useWriteBatch(InsertionToken token, Function<WriteBatch, T> use) throws RocksDBException {
-        try (var wb = new WriteBatch()) {
-            writeToBatch(wb, token);
-            return use.apply(wb);
+    // ingest writes everything inserted so far as SST files and ingests them into the store.
+    public synchronized void ingest() throws IOException, RocksDBException {
+        var start = System.nanoTime();
+        var postingFiles = postings.finish();
+        var positionFiles = positions.finish();
+        if (postingFiles.isEmpty() && positionFiles.isEmpty()) {
+            return;
         }
+        store.ingest(postingFiles, positionFiles);
+
+        var elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("ingest postingFiles={} positionFiles={} took {}ms", postingFiles.size(), positionFiles.size(), elapsedMs);
     }
 
-    private void writeToBatch(WriteBatch wb, InsertionToken t) throws RocksDBException {
-        wb.merge(t.key(), t.value());
+    private static byte[] concat(List<byte[]> values) {
+        int length = 0;
+        for (var v : values) {
+            length += v.length;
+        }
+        var out = new byte[length];
+        int pos = 0;
+        for (var v : values) {
+            System.arraycopy(v, 0, out, pos, v.length);
+            pos += v.length;
+        }
+        return out;
     }
 
-    public record InsertionToken(byte[] key, byte[] value) implements Comparable<InsertionToken> {
-        public static List<InsertionToken> from(DocumentWithTokens d) {
-            var doc = d.doc();
-            var tokens = d.tokens();
-            var namespaceId = doc.namespaceId();
+    private static final Comparator<byte[]> KEY_ORDER = Arrays::compareUnsigned;
 
-            int count = tokens.size();
+    // Spill builds the SST files of one column family.
+    private static final class Spill {
+        private final Path dir;
+        private final String name;
+        private final ColumnFamilyOptions cfOptions;
+        private final boolean merge;
+        private final Function<List<byte[]>, byte[]> combine;
+        private final long runBytes;
+        private final long sstFileBytes;
 
-            List<InsertionToken> inserts = new ArrayList<>(count);
+        private final List<InsertionToken> buffer = new ArrayList<>();
+        private final List<Path> runs = new ArrayList<>();
+        private long bufferBytes = 0;
+        private int files = 0;
 
-            for (Token token : tokens) {
-                var key = Token.createTokenKey(token, namespaceId).getBytes(UTF_8);
-                var value = doc.docId().getBytes(UTF_8);
+        Spill(Path dir, String name, ColumnFamilyOptions cfOptions, boolean merge, Function<List<byte[]>, byte[]> combine,
+              long runBytes, long sstFileBytes) {
+            this.dir = dir;
+            this.name = name;
+            this.cfOptions = cfOptions;
+            this.merge = merge;
+            this.combine = combine;
+            this.runBytes = runBytes;
+            this.sstFileBytes = sstFileBytes;
+        }
 
-                inserts.add(new InsertionToken(key, value));
+        void add(List<InsertionToken> tokens) throws IOException {
+            for (var t : tokens) {
+                buffer.add(t);
+                bufferBytes += t.key().length + t.value().length;
+            }
+            if (bufferBytes >= runBytes) {
+                spill();
             }
-            inserts.sort((a, b) -> UnsignedBytes.lexicographicalComparator().compare(a.key, b.key));
-            return inserts;
         }
 
-        @Override
-        public int compareTo(@NotNull InsertionToken b) {
-            var a = this;
-            return Arrays.compare(a.key, b.key);
+        // spill writes the buffer as a sorted run, combining the entries of each key.
+        // The sort is stable, so entries of a key stay in insertion order.
+        private void spill() throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            Collections.sort(buffer);
+            var run = dir.resolve(name + "-" + runs.size() + ".run");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+                var values = new ArrayList<byte[]>();
+                for (int i = 0; i < buffer.size(); ) {
+                    var key = buffer.get(i).key();
+                    values.clear();
+                    for (; i < buffer.size() && Arrays.equals(buffer.get(i).key(), key); i++) {
+                        values.add(buffer.get(i).value());
+                    }
+                    writeEntry(out, key, combine.apply(values));
+                }
+                out.writeInt(-1);
+            }
+            runs.add(run);
+            buffer.clear();
+            bufferBytes = 0;
         }
-    }
 
-    public static List<InsertionToken> prepareBatch(List<DocumentWithTokens> d) {
-        var tokens = d.stream()
-                .flatMap((DocumentWithTokens d1) -> InsertionToken.from(d1).stream())
-                .sorted()
-                .toList();
-        return tokens;
-    }
+        // finish merges the runs and returns the SST files written from them. Runs are
+        // spilled in insertion order, so ties between runs go to the older run first.
+        List<String> finish() throws IOException, RocksDBException {
+            spill();
+            var readers = new ArrayList<RunReader>(runs.size());
+            var heap = new PriorityQueue<RunReader>(Comparator
+                    .comparing((RunReader r) -> r.key, KEY_ORDER)
+                    .thenComparingInt(r -> r.index));
+            var sstFiles = new ArrayList<String>();
+            try {
+                for (var run : runs) {
+                    var reader = new RunReader(run, readers.size());
+                    readers.add(reader);
+                    if (reader.next()) {
+                        heap.add(reader);
+                    }
+                }
 
-    private <T> T useWriteBatch(List<InsertionToken> tokens, CheckedFunction1<WriteBatch, T> use) throws Throwable {
-        try (var wb = new WriteBatch()) {
-            for (var token : tokens) {
-                writeToBatch(wb, token);
+                try (var env = new EnvOptions(); var dbOptions = new DBOptions(); var options = new Options(dbOptions, cfOptions)) {
+                    SstFileWriter writer = null;
+                    long written = 0;
+                    var values = new ArrayList<byte[]>();
+                    try {
+                        while (!heap.isEmpty()) {
+                            var key = heap.peek().key;
+                            values.clear();
+                            while (!heap.isEmpty() && Arrays.equals(heap.peek().key, key)) {
+                                var reader = heap.poll();
+                                values.add(reader.value);
+                                if (reader.next()) {
+                                    heap.add(reader);
+                                }
+                            }
+                            var value = combine.apply(values);
+
+                            if (writer == null) {
+                                var file = dir.resolve(name + "-" + files++ + ".sst").toString();
+                                writer = new SstFileWriter(env, options);
+                                writer.open(file);
+                                sstFiles.add(file);
+                                written = 0;
+                            }
+                            if (merge) {
+                                writer.merge(key, value);
+                            } else {
+                                writer.put(key, value);
+                            }
+                            written += key.length + value.length;
+
+                            if (written >= sstFileBytes) {
+                                writer.finish();
+                                writer.close();
+                                writer = null;
+                            }
+                        }
+                        if (writer != null) {
+                            writer.finish();
+                        }
+                    } finally {
+                        if (writer != null) {
+                            writer.close();
+                        }
+                    }
+                }
+            } finally {
+                for (var reader : readers) {
+                    reader.close();
+                }
+                for (var run : runs) {
+                    Files.deleteIfExists(run);
+                }
+                runs.clear();
             }
-            return use.apply(wb);
+            return sstFiles;
+        }
+
+        private static void writeEntry(DataOutputStream out, byte[] key, byte[] value) throws IOException {
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(value.length);
+            out.write(value);
         }
     }
 
+    // RunReader reads the entries of a run in order. Entries are length prefixed keys and
+    // values, terminated by a negative key length.
+    private static final class RunReader implements AutoCloseable {
+        private final DataInputStream in;
+        private final int index;
+        private byte[] key;
+        private byte[] value;
+
+        RunReader(Path run, int index) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+            this.index = index;
+        }
+
+        boolean next() throws IOException {
+            int keyLength = in.readInt();
+            if (keyLength < 0) {
+                return false;
+            }
+            key = in.readNBytes(keyLength);
+            value = in.readNBytes(in.readInt());
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
 
+    // close ingests anything not yet ingested.
     @Override
-    public void close() throws Exception {
-        rocksDB.close();
+    public synchronized void close() throws Exception {
+        ingest();
     }
 }
@@ -0,0 +1,151 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.hugin.parsecache.v1.Parsecache.ParsedContent;
+import com.github.esiqveland.hugin.parsecache.v1.Parsecache.TokenPositions;
+import com.github.esiqveland.text.Tokenizers.Token;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.rocksdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// ParseCacheStore caches what parsing a file extracted by the hash of its content, so
+// byte-identical copies, such as vendored libraries, build outputs and backups, are only
+// parsed once.
+//
+// The cache is bounded by FIFO compaction: once its files reach MAX_BYTES the oldest file is
+// dropped whole, so the entries written longest ago are evicted first. It is written
+// without a WAL by default, as an entry lost in a crash only costs a parse.
+public class ParseCacheStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ParseCacheStore.class);
+
+    // leads every key. Bump it when the same content would be cached differently, such as
+    // when the tokenizer changes, so older entries are never read again.
+    public final static byte FORMAT_VERSION = 2;
+
+    // size of the cache on disk
+    public final static long MAX_BYTES = 1L << 30;
+
+    // files are hashed through a buffer of this many bytes
+    private final static int HASH_BUFFER_BYTES = 1 << 16;
+
+    private final static HashFunction HASH = Hashing.murmur3_128();
+
+    public final static Options OPTIONS = new Options()
+            .setCreateIfMissing(true)
+            .setCompactionStyle(CompactionStyle.FIFO)
+            .setCompactionOptionsFIFO(new CompactionOptionsFIFO().setMaxTableFilesSize(MAX_BYTES));
+
+    private final RocksDB rocksDB;
+    private final WriteOptions writeOptions;
+
+    // Entry is the extracted content of a file. tokens are of the whole text, before
+    // stemming.
+    public record Entry(String text, boolean truncated, String language, List<Token> tokens) {
+    }
+
+    public ParseCacheStore(RocksDB rocksDB, Durability durability) {
+        this.rocksDB = rocksDB;
+        this.writeOptions = durability.writeOptions();
+    }
+
+    public static ParseCacheStore open(String path) throws RocksDBException {
+        return open(path, Durability.NO_WAL);
+    }
+
+    public static ParseCacheStore open(String path, Durability durability) throws RocksDBException {
+        return new ParseCacheStore(RocksDB.open(OPTIONS, path), durability);
+    }
+
+    // contentHash streams the file through a 128 bit murmur3 hash.
+    public static byte[] contentHash(Path path) throws IOException {
+        var hasher = HASH.newHasher();
+        var buffer = ByteBuffer.allocate(HASH_BUFFER_BYTES);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                hasher.putBytes(buffer);
+                buffer.clear();
+            }
+        }
+        return hasher.hash().asBytes();
+    }
+
+    // get returns the cached content of a file by its hash. An entry that can not be read
+    // is a miss, so the file is parsed again and the entry replaced.
+    public Optional<Entry> get(byte[] contentHash) {
+        try {
+            var raw = rocksDB.get(key(contentHash));
+            return raw == null ? Optional.empty() : Optional.of(parse(raw));
+        } catch (RocksDBException e) {
+            log.warn("error reading parse cache, parsing instead", e);
+            return Optional.empty();
+        } catch (InvalidProtocolBufferException e) {
+            log.warn("corrupt parse cache entry, parsing instead", e);
+            return Optional.empty();
+        }
+    }
+
+    public void put(byte[] contentHash, Entry entry) {
+        var content = ParsedContent.newBuilder()
+                .setText(entry.text())
+                .setTruncated(entry.truncated())
+                .setLanguage(entry.language());
+        for (var token : entry.tokens()) {
+            var positions = TokenPositions.newBuilder().setValue(token.value());
+            int prev = 0;
+            for (int position : token.positions()) {
+                positions.addPositionDeltas(position - prev);
+                prev = position;
+            }
+            content.addTokens(positions);
+        }
+        try {
+            rocksDB.put(writeOptions, key(contentHash), content.build().toByteArray());
+        } catch (RocksDBException e) {
+            log.warn("error writing parse cache, skipping", e);
+        }
+    }
+
+    private static byte[] key(byte[] contentHash) {
+        return Bytes.concat(new byte[]{FORMAT_VERSION}, contentHash);
+    }
+
+    private static Entry parse(byte[] bytes) throws InvalidProtocolBufferException {
+        var content = ParsedContent.parseFrom(bytes);
+        var tokens = new ArrayList<Token>(content.getTokensCount());
+        for (var token : content.getTokensList()) {
+            var positions = new ArrayList<Integer>(token.getPositionDeltasCount());
+            int position = 0;
+            for (int delta : token.getPositionDeltasList()) {
+                position += delta;
+                positions.add(position);
+            }
+            tokens.add(new Token(token.getValue(), positions));
+        }
+        return new Entry(content.getText(), content.getTruncated(), content.getLanguage(), tokens);
+    }
+
+    @Override
+    public void close() throws Exception {
+        // without a WAL, unflushed writes only live in the memtables
+        if (writeOptions.disableWAL()) {
+            try (var flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                rocksDB.flush(flushOptions);
+            }
+        }
+        writeOptions.close();
+        rocksDB.close();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.hugin.index.v1.Index.DocumentPositions;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Positions encodes the positions of a term within one document as a DocumentPositions
+// message with delta encoded positions, and matches phrases against decoded positions.
+public final class Positions {
+    private Positions() {
+    }
+
+    public static byte[] encode(List<Integer> positions) {
+        int[] sorted = PostingList.sortedUnique(positions.stream().mapToInt(Integer::intValue).toArray());
+
+        var builder = DocumentPositions.newBuilder();
+        int prev = 0;
+        for (int p : sorted) {
+            builder.addPositions(p - prev);
+            prev = p;
+        }
+        return builder.build().toByteArray();
+    }
+
+    public static int[] decode(byte[] value) {
+        DocumentPositions msg;
+        try {
+            msg = DocumentPositions.parseFrom(value);
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
+        }
+
+        int[] positions = new int[msg.getPositionsCount()];
+        int prev = 0;
+        for (int i = 0; i < positions.length; i++) {
+            prev += msg.getPositions(i);
+            positions[i] = prev;
+        }
+        return positions;
+    }
+
+    // matchesPhrase reports whether the terms occur in order, where term i must be found
+    // within slop positions of where an exact phrase would put it.
+    public static boolean matchesPhrase(int[][] termPositions, int slop) {
+        for (int start : termPositions[0]) {
+            boolean matched = true;
+            for (int i = 1; i < termPositions.length && matched; i++) {
+                matched = containsInRange(termPositions[i], start + i - slop, start + i + slop);
+            }
+            if (matched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsInRange(int[] sorted, int from, int to) {
+        int idx = Arrays.binarySearch(sorted, from);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return idx < sorted.length && sorted[idx] <= to;
+    }
+}
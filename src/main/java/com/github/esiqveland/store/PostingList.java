@@ -0,0 +1,489 @@
+package com.github.esiqveland.store;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+// PostingList is the binary encoding of the sorted doc ordinals for a single term, together
+// with the term frequency in each document.
+//
+// A stored posting value is a concatenation of one or more segments. Segments are
+// self-delimiting, so the merge operator can append a new segment per batch without
+// reading the existing value:
+//
+//   segment := FORMAT_V2 varint(docCount) varint(maxFreq) varint(blockCount) block*
+//   block   := varint(n) varint(lastDelta) varint(payloadBytes) (varint(delta) varint(freq))*n
+//
+// FORMAT_V1 segments have no maxFreq and no freq values, and read with freq 1.
+//
+// Ordinals are delta encoded inside a block, and lastDelta is the last ordinal of the block
+// relative to the last ordinal of the previous block, so readers can skip a block by
+// reading its header only.
+//
+// Segments written by different batches may overlap (a document that is indexed again
+// appends its ordinal again), so readers union all segments, dropping duplicates and
+// keeping the frequency of the latest segment. consolidate() rewrites a value as a single
+// deduplicated segment.
+public final class PostingList {
+    static final byte FORMAT_V1 = 1;
+    static final byte FORMAT_V2 = 2;
+    static final int BLOCK_SIZE = 128;
+
+    public static final int[] EMPTY = new int[0];
+
+    private PostingList() {
+    }
+
+    // Postings are decoded ordinals with the term frequency of each document.
+    public record Postings(int[] ordinals, int[] freqs) {
+        public static final Postings EMPTY = new Postings(PostingList.EMPTY, PostingList.EMPTY);
+
+        public int size() {
+            return ordinals.length;
+        }
+
+        public int maxFreq() {
+            int max = 0;
+            for (int f : freqs) {
+                max = Math.max(max, f);
+            }
+            return max;
+        }
+    }
+
+    public static byte[] encode(Postings postings) {
+        var ordinals = postings.ordinals();
+        var freqs = postings.freqs();
+        int count = ordinals.length;
+        int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        var out = new ByteArrayOutputStream(8 + count * 3);
+        var payload = new ByteArrayOutputStream(BLOCK_SIZE * 3);
+
+        out.write(FORMAT_V2);
+        Varints.write(out, count);
+        Varints.write(out, postings.maxFreq());
+        Varints.write(out, blocks);
+
+        int prevLast = 0;
+        for (int start = 0; start < count; start += BLOCK_SIZE) {
+            int end = Math.min(start + BLOCK_SIZE, count);
+            int prev = prevLast;
+
+            payload.reset();
+            for (int i = start; i < end; i++) {
+                Varints.write(payload, ordinals[i] - prev);
+                Varints.write(payload, freqs[i]);
+                prev = ordinals[i];
+            }
+
+            Varints.write(out, end - start);
+            Varints.write(out, prev - prevLast);
+            Varints.write(out, payload.size());
+            out.writeBytes(payload.toByteArray());
+            prevLast = prev;
+        }
+        return out.toByteArray();
+    }
+
+    public static Postings decodePostings(byte[] value) {
+        var buf = ByteBuffer.wrap(value);
+        Postings result = null;
+        while (buf.hasRemaining()) {
+            var segment = decodeSegment(buf);
+            result = result == null ? segment : unionLatest(result, segment);
+        }
+        return result == null ? Postings.EMPTY : result;
+    }
+
+    public static int[] decode(byte[] value) {
+        return decodePostings(value).ordinals();
+    }
+
+    public static int segmentCount(byte[] value) {
+        var buf = ByteBuffer.wrap(value);
+        int segments = 0;
+        while (buf.hasRemaining()) {
+            boolean hasFreqs = readFormat(buf) == FORMAT_V2;
+            Varints.read(buf);
+            if (hasFreqs) {
+                Varints.read(buf);
+            }
+            int blocks = Varints.read(buf);
+            for (int b = 0; b < blocks; b++) {
+                Varints.read(buf);
+                Varints.read(buf);
+                int payloadBytes = Varints.read(buf);
+                buf.position(buf.position() + payloadBytes);
+            }
+            segments++;
+        }
+        return segments;
+    }
+
+    public static byte[] consolidate(byte[] value) {
+        return encode(decodePostings(value));
+    }
+
+    private static Postings decodeSegment(ByteBuffer buf) {
+        boolean hasFreqs = readFormat(buf) == FORMAT_V2;
+        int count = Varints.read(buf);
+        if (hasFreqs) {
+            Varints.read(buf);
+        }
+        int blocks = Varints.read(buf);
+
+        int[] ordinals = new int[count];
+        int[] freqs = new int[count];
+        int i = 0;
+        int prevLast = 0;
+        for (int b = 0; b < blocks; b++) {
+            int n = Varints.read(buf);
+            int lastDelta = Varints.read(buf);
+            Varints.read(buf);
+
+            int prev = prevLast;
+            for (int j = 0; j < n; j++) {
+                prev += Varints.read(buf);
+                ordinals[i] = prev;
+                freqs[i] = hasFreqs ? Varints.read(buf) : 1;
+                i++;
+            }
+            prevLast += lastDelta;
+        }
+        return new Postings(ordinals, freqs);
+    }
+
+    private static byte readFormat(ByteBuffer buf) {
+        byte format = buf.get();
+        if (format != FORMAT_V1 && format != FORMAT_V2) {
+            throw new IllegalStateException("unknown posting list format=" + format);
+        }
+        return format;
+    }
+
+    // union merges two sorted ordinal arrays, dropping duplicates.
+    public static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            int x = a[i], y = b[j];
+            if (x < y) {
+                out[n++] = x;
+                i++;
+            } else if (y < x) {
+                out[n++] = y;
+                j++;
+            } else {
+                out[n++] = x;
+                i++;
+                j++;
+            }
+        }
+        while (i < a.length) {
+            out[n++] = a[i++];
+        }
+        while (j < b.length) {
+            out[n++] = b[j++];
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // unionLatest merges segments of the same term, keeping the frequency from newer.
+    static Postings unionLatest(Postings older, Postings newer) {
+        return union(older, newer, false);
+    }
+
+    // unionSum merges the postings of different terms, summing the frequencies of
+    // documents found in both.
+    public static Postings unionSum(Postings a, Postings b) {
+        return union(a, b, true);
+    }
+
+    private static Postings union(Postings a, Postings b, boolean sum) {
+        int[] ao = a.ordinals(), af = a.freqs(), bo = b.ordinals(), bf = b.freqs();
+        int[] ordinals = new int[ao.length + bo.length];
+        int[] freqs = new int[ordinals.length];
+        int i = 0, j = 0, n = 0;
+        while (i < ao.length || j < bo.length) {
+            if (j == bo.length || (i < ao.length && ao[i] < bo[j])) {
+                ordinals[n] = ao[i];
+                freqs[n++] = af[i++];
+            } else if (i == ao.length || bo[j] < ao[i]) {
+                ordinals[n] = bo[j];
+                freqs[n++] = bf[j++];
+            } else {
+                ordinals[n] = ao[i];
+                freqs[n++] = sum ? af[i] + bf[j] : bf[j];
+                i++;
+                j++;
+            }
+        }
+        if (n == ordinals.length) {
+            return new Postings(ordinals, freqs);
+        }
+        return new Postings(Arrays.copyOf(ordinals, n), Arrays.copyOf(freqs, n));
+    }
+
+    // Cursor walks a posting list in ascending ordinal order.
+    public interface Cursor {
+        int NO_MORE = Integer.MAX_VALUE;
+
+        int docCount();
+
+        // advance moves to the first ordinal >= target and returns it, or NO_MORE.
+        // The cursor stays on the returned ordinal, so advancing to it again is a no-op.
+        int advance(int target);
+
+        // freq returns the term frequency of the ordinal the cursor is on.
+        int freq();
+
+        // maxFreq is the highest term frequency in the posting list.
+        int maxFreq();
+    }
+
+    public static Cursor cursor(byte[] value) {
+        if (value == null) {
+            return new ArrayCursor(Postings.EMPTY);
+        }
+        if (segmentCount(value) == 1) {
+            return new BlockCursor(value);
+        }
+        return new ArrayCursor(decodePostings(value));
+    }
+
+    public static Cursor cursor(Postings postings) {
+        return new ArrayCursor(postings);
+    }
+
+    // cursor iterates sorted, distinct ordinals, each with a term frequency of 1.
+    public static Cursor cursor(int[] sortedOrdinals) {
+        var freqs = new int[sortedOrdinals.length];
+        Arrays.fill(freqs, 1);
+        return new ArrayCursor(new Postings(sortedOrdinals, freqs));
+    }
+
+    // intersect leapfrogs over the cursors starting with the shortest list, so the cost
+    // follows the rarest term rather than the sum of all posting list lengths.
+    public static int[] intersect(List<Cursor> cursors) {
+        if (cursors.isEmpty()) {
+            return EMPTY;
+        }
+        var sorted = new ArrayList<>(cursors);
+        sorted.sort(Comparator.comparingInt(Cursor::docCount));
+
+        var lead = sorted.get(0);
+        int[] out = new int[lead.docCount()];
+        int n = 0;
+
+        int doc = lead.advance(0);
+        outer:
+        while (doc != Cursor.NO_MORE) {
+            for (int i = 1; i < sorted.size(); i++) {
+                int d = sorted.get(i).advance(doc);
+                if (d > doc) {
+                    doc = lead.advance(d);
+                    continue outer;
+                }
+            }
+            out[n++] = doc;
+            doc = lead.advance(doc + 1);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // difference removes the ordinals found by any of the excluded cursors.
+    public static int[] difference(int[] sortedOrdinals, List<Cursor> excluded) {
+        if (excluded.isEmpty()) {
+            return sortedOrdinals;
+        }
+        int[] out = new int[sortedOrdinals.length];
+        int n = 0;
+        outer:
+        for (int doc : sortedOrdinals) {
+            for (var c : excluded) {
+                if (c.advance(doc) == doc) {
+                    continue outer;
+                }
+            }
+            out[n++] = doc;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // without removes the ordinals set in deleted, returning postings itself when none are.
+    public static Postings without(Postings postings, BitSet deleted) {
+        var ordinals = postings.ordinals();
+        var freqs = postings.freqs();
+        var keptOrdinals = new int[ordinals.length];
+        var keptFreqs = new int[ordinals.length];
+        int n = 0;
+        for (int i = 0; i < ordinals.length; i++) {
+            if (!deleted.get(ordinals[i])) {
+                keptOrdinals[n] = ordinals[i];
+                keptFreqs[n] = freqs[i];
+                n++;
+            }
+        }
+        return n == ordinals.length ? postings : new Postings(Arrays.copyOf(keptOrdinals, n), Arrays.copyOf(keptFreqs, n));
+    }
+
+    // without removes the ordinals set in deleted.
+    public static int[] without(int[] sortedOrdinals, BitSet deleted) {
+        if (deleted.isEmpty()) {
+            return sortedOrdinals;
+        }
+        int[] out = new int[sortedOrdinals.length];
+        int n = 0;
+        for (int doc : sortedOrdinals) {
+            if (!deleted.get(doc)) {
+                out[n++] = doc;
+            }
+        }
+        return n == out.length ? sortedOrdinals : Arrays.copyOf(out, n);
+    }
+
+    // gallop returns the first index in [from, to) holding a value >= target, or to.
+    static int gallop(int[] a, int from, int to, int target) {
+        if (from >= to || a[from] >= target) {
+            return from;
+        }
+        int lo = from;
+        int step = 1;
+        int hi = from + step;
+        while (hi < to && a[hi] < target) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        hi = Math.min(hi, to);
+
+        int idx = Arrays.binarySearch(a, lo + 1, hi, target);
+        return idx >= 0 ? idx : -idx - 1;
+    }
+
+    static final class ArrayCursor implements Cursor {
+        private final int[] ordinals;
+        private final int[] freqs;
+        private final int maxFreq;
+        private int pos = 0;
+
+        ArrayCursor(Postings postings) {
+            this.ordinals = postings.ordinals();
+            this.freqs = postings.freqs();
+            this.maxFreq = postings.maxFreq();
+        }
+
+        @Override
+        public int docCount() {
+            return ordinals.length;
+        }
+
+        @Override
+        public int advance(int target) {
+            pos = gallop(ordinals, pos, ordinals.length, target);
+            return pos < ordinals.length ? ordinals[pos] : NO_MORE;
+        }
+
+        @Override
+        public int freq() {
+            return freqs[pos];
+        }
+
+        @Override
+        public int maxFreq() {
+            return maxFreq;
+        }
+    }
+
+    // BlockCursor reads a single segment value lazily, skipping blocks whose last ordinal
+    // is below the target without decoding their payload.
+    static final class BlockCursor implements Cursor {
+        private final ByteBuffer buf;
+        private final boolean hasFreqs;
+        private final int count;
+        private final int maxFreq;
+        private final int[] block = new int[BLOCK_SIZE];
+        private final int[] blockFreqs = new int[BLOCK_SIZE];
+        private int blocksLeft;
+        private int blockLen = 0;
+        private int idx = 0;
+        private int prevLast = 0;
+
+        BlockCursor(byte[] value) {
+            this.buf = ByteBuffer.wrap(value);
+            this.hasFreqs = readFormat(buf) == FORMAT_V2;
+            this.count = Varints.read(buf);
+            this.maxFreq = hasFreqs ? Varints.read(buf) : 1;
+            this.blocksLeft = Varints.read(buf);
+        }
+
+        @Override
+        public int docCount() {
+            return count;
+        }
+
+        @Override
+        public int advance(int target) {
+            while (true) {
+                if (idx < blockLen && block[blockLen - 1] >= target) {
+                    idx = gallop(block, idx, blockLen, target);
+                    return block[idx];
+                }
+                if (blocksLeft == 0) {
+                    idx = blockLen;
+                    return NO_MORE;
+                }
+
+                int n = Varints.read(buf);
+                int last = prevLast + Varints.read(buf);
+                int payloadBytes = Varints.read(buf);
+                blocksLeft--;
+
+                if (last < target) {
+                    buf.position(buf.position() + payloadBytes);
+                    blockLen = 0;
+                } else {
+                    int prev = prevLast;
+                    for (int j = 0; j < n; j++) {
+                        prev += Varints.read(buf);
+                        block[j] = prev;
+                        blockFreqs[j] = hasFreqs ? Varints.read(buf) : 1;
+                    }
+                    blockLen = n;
+                }
+                idx = 0;
+                prevLast = last;
+            }
+        }
+
+        @Override
+        public int freq() {
+            return blockFreqs[idx];
+        }
+
+        @Override
+        public int maxFreq() {
+            return maxFreq;
+        }
+    }
+
+    // sortedUnique sorts the ordinals in place and returns the distinct prefix.
+    public static int[] sortedUnique(int[] ordinals) {
+        if (ordinals.length < 2) {
+            return ordinals;
+        }
+        Arrays.sort(ordinals);
+        int n = 1;
+        for (int i = 1; i < ordinals.length; i++) {
+            if (ordinals[i] != ordinals[n - 1]) {
+                ordinals[n++] = ordinals[i];
+            }
+        }
+        return n == ordinals.length ? ordinals : Arrays.copyOf(ordinals, n);
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.esiqveland.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.rocksdb.RocksDBException;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// QueryCache keeps raw posting values and query results in memory between keystrokes.
+//
+// Entries are not removed when the index changes. Instead every entry records, when it is
+// created, the generation of each term, token prefix or namespace it depends on, and a
+// lookup discards entries whose dependencies have moved on since. insertBatch bumps the
+// generations of the terms it wrote, of every prefix of those terms (for prefix queries),
+// and of the namespace (for fuzzy queries, which can expand to any term). The languages of
+// a namespace have a generation of their own, since they decide which stems a query reads.
+//
+// Generations live in a fixed array of counters indexed by dependency hash, so tracking
+// them costs no memory per term. A collision only causes a spurious miss.
+//
+// Queries read through a RocksDB snapshot that may predate the generations they see. The
+// epoch counts writes, and values read under a snapshot taken in an older epoch are
+// returned but not cached.
+final class QueryCache {
+    static final int GENERATION_SLOTS = 1 << 16;
+    private static final int SLOT_MASK = GENERATION_SLOTS - 1;
+
+    private static final char TERM = 't';
+    private static final char PREFIX = 'p';
+    private static final char NAMESPACE = 'n';
+    private static final char LANGUAGES = 'l';
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_SLOTS);
+    private final AtomicLong epoch = new AtomicLong();
+    private final Cache<ByteBuffer, CachedPostings> postings;
+    private final Cache<ResultKey, CachedResult> results;
+
+    // ResultKey identifies a query by its namespaces and normalized terms.
+    record ResultKey(List<String> namespaces, List<String> terms, SearchIndexStore.Match match, int limit) {
+    }
+
+    private record CachedPostings(byte[] raw, int slot, long generation) {
+    }
+
+    private record CachedResult(SearchIndexStore.SearchHits hits, int[] slots, long[] generations) {
+    }
+
+    QueryCache(long maxPostingBytes, long maxResults) {
+        this.postings = CacheBuilder.newBuilder()
+                .maximumWeight(maxPostingBytes)
+                .weigher((ByteBuffer key, CachedPostings value) -> key.capacity() + (value.raw() == null ? 0 : value.raw().length))
+                .build();
+        this.results = CacheBuilder.newBuilder()
+                .maximumSize(maxResults)
+                .build();
+    }
+
+    interface Loader {
+        byte[] load() throws RocksDBException;
+    }
+
+    // epoch returns the current write epoch. Read it before taking a snapshot.
+    long epoch() {
+        return epoch.get();
+    }
+
+    // postings returns the cached raw posting value of the term, loading it when it is
+    // missing or outdated. The value may be null when the term is not indexed. Loaded
+    // values are only cached when no write happened since readEpoch.
+    byte[] postings(String namespaceId, String term, byte[] key, long readEpoch, Loader loader) throws RocksDBException {
+        var cacheKey = ByteBuffer.wrap(key);
+        var cached = postings.getIfPresent(cacheKey);
+        if (cached != null && generations.get(cached.slot()) == cached.generation()) {
+            return cached.raw();
+        }
+
+        int slot = termSlot(namespaceId, term);
+        long generation = generations.get(slot);
+        var raw = loader.load();
+        if (epoch.get() == readEpoch) {
+            postings.put(cacheKey, new CachedPostings(raw, slot, generation));
+        }
+        return raw;
+    }
+
+    Optional<SearchIndexStore.SearchHits> result(ResultKey key) {
+        var cached = results.getIfPresent(key);
+        if (cached == null) {
+            return Optional.empty();
+        }
+        for (int i = 0; i < cached.slots().length; i++) {
+            if (generations.get(cached.slots()[i]) != cached.generations()[i]) {
+                results.invalidate(key);
+                return Optional.empty();
+            }
+        }
+        return Optional.of(cached.hits());
+    }
+
+    // snapshot reads the current generations of slots. Take it before running the query,
+    // so a write that races with the query invalidates the result it produces.
+    long[] snapshot(int[] slots) {
+        var snapshot = new long[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            snapshot[i] = generations.get(slots[i]);
+        }
+        return snapshot;
+    }
+
+    void putResult(ResultKey key, SearchIndexStore.SearchHits hits, int[] slots, long[] snapshot) {
+        results.put(key, new CachedResult(hits, slots, snapshot));
+    }
+
+    // written marks the terms as changed. Call after the write is applied.
+    void written(String namespaceId, Collection<String> terms) {
+        int termSeed = seed(namespaceId, TERM);
+        int prefixSeed = seed(namespaceId, PREFIX);
+        for (var term : terms) {
+            int h = prefixSeed;
+            for (int i = 0; i < term.length(); i++) {
+                h = 31 * h + term.charAt(i);
+                generations.incrementAndGet(slot(h));
+            }
+            generations.incrementAndGet(slot(hash(termSeed, term)));
+        }
+        generations.incrementAndGet(namespaceSlot(namespaceId));
+        epoch.incrementAndGet();
+    }
+
+    // languagesChanged marks the languages of the namespace as changed. Call after the
+    // write is applied.
+    void languagesChanged(String namespaceId) {
+        generations.incrementAndGet(languagesSlot(namespaceId));
+    }
+
+    // writtenAll marks every term as changed, for writes that do not list their terms.
+    void writtenAll() {
+        for (int i = 0; i < GENERATION_SLOTS; i++) {
+            generations.incrementAndGet(i);
+        }
+        epoch.incrementAndGet();
+    }
+
+    static int termSlot(String namespaceId, String term) {
+        return slot(hash(seed(namespaceId, TERM), term));
+    }
+
+    static int prefixSlot(String namespaceId, String prefix) {
+        return slot(hash(seed(namespaceId, PREFIX), prefix));
+    }
+
+    static int namespaceSlot(String namespaceId) {
+        return slot(seed(namespaceId, NAMESPACE));
+    }
+
+    static int languagesSlot(String namespaceId) {
+        return slot(seed(namespaceId, LANGUAGES));
+    }
+
+    private static int seed(String namespaceId, char kind) {
+        return 31 * hash(kind, namespaceId) + '|';
+    }
+
+    private static int hash(int h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    // slot spreads the polynomial hash with the murmur3 finalizer before masking.
+    private static int slot(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & SLOT_MASK;
+    }
+}
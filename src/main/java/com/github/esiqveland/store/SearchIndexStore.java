@@ -1,186 +1,1333 @@
 package com.github.esiqveland.store;
 
+import com.github.esiqveland.hugin.index.v1.Index.ForwardEntry;
+import com.github.esiqveland.text.Languages;
+import com.github.esiqveland.text.Tokenizers.TextStemmer;
 import com.github.esiqveland.text.Tokenizers.Token;
 import com.github.esiqveland.types.Documents.DocumentWithTokens;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.reactivex.rxjava3.core.BackpressureStrategy;
 import io.reactivex.rxjava3.core.Flowable;
-import io.vavr.CheckedFunction1;
 import org.jetbrains.annotations.NotNull;
 import org.rocksdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class SearchIndexStore implements AutoCloseable {
     private static final AtomicLong INSERTS_TOTAL = new AtomicLong();
     private static final AtomicLong GETS_TOTAL = new AtomicLong();
+    private static final AtomicLong WRITE_NANOS_TOTAL = new AtomicLong();
     private static final Logger log = LoggerFactory.getLogger(SearchIndexStore.class);
+    private static final TextStemmer STEMMER = new TextStemmer();
 
     private final RocksDB rocksDB;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    private final List<ColumnFamilyHandle> handles;
+    private final ColumnFamilyHandle postings;
+    private final ColumnFamilyHandle docOrdinals;
+    private final ColumnFamilyHandle docIds;
+    private final ColumnFamilyHandle positions;
+    private final ColumnFamilyHandle docLengths;
+    private final ColumnFamilyHandle stats;
+    private final ColumnFamilyHandle forward;
+    private final ColumnFamilyHandle tombstones;
+    private final TermDictionaries termDictionaries;
+    private final TermIds termIds;
+    private final ConcurrentHashMap<String, CollectionStats> collectionStats = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOrdinal;
+    private final Object writeLock = new Object();
+    private final Set<ByteBuffer> pendingConsolidation = ConcurrentHashMap.newKeySet();
+    // ordinals of deleted documents. Replaced, never mutated, so queries can read it freely.
+    private volatile BitSet deleted;
+    // deleted documents still present in posting lists. Guarded by writeLock.
+    private final ArrayDeque<Integer> pendingPurge = new ArrayDeque<>();
+    private final QueryCache cache = new QueryCache(POSTING_CACHE_BYTES, RESULT_CACHE_SIZE);
+    private final ExecutorService executor = Executors.newFixedThreadPool(READ_THREADS);
+    private final WriteOptions writeOptions;
 
-    public final static String DELIMITER = ",";
+    // posting values are concatenated PostingList segments, so appends need no delimiter
+    public final static String DELIMITER = "";
     public final static StringAppendOperator OPERATOR = new StringAppendOperator(DELIMITER);
 
-    public final static Options OPTIONS = new Options()
+    // posting values with more segments than this are rewritten as a single segment
+    public final static int MAX_SEGMENTS = 8;
+
+    // prefix queries expand to at most this many tokens per query term
+    public final static int MAX_PREFIX_EXPANSIONS = 64;
+
+    // fuzzy queries expand to at most this many tokens per query term
+    public final static int MAX_FUZZY_EXPANSIONS = 16;
+
+    public final static byte[] CF_DOC_ORDINALS = "doc_ordinals".getBytes(UTF_8);
+    public final static byte[] CF_DOC_IDS = "doc_ids".getBytes(UTF_8);
+    public final static byte[] CF_POSITIONS = "positions".getBytes(UTF_8);
+    public final static byte[] CF_TERM_DICTIONARIES = "term_dictionaries".getBytes(UTF_8);
+    public final static byte[] CF_DOC_LENGTHS = "doc_lengths".getBytes(UTF_8);
+    public final static byte[] CF_STATS = "stats".getBytes(UTF_8);
+    public final static byte[] CF_FORWARD = "forward".getBytes(UTF_8);
+    public final static byte[] CF_TOMBSTONES = "tombstones".getBytes(UTF_8);
+    public final static byte[] CF_TERM_IDS = "term_ids".getBytes(UTF_8);
+
+    // tombstone values: whether the posting lists still mention the deleted document
+    private final static byte[] UNPURGED = {0};
+    private final static byte[] PURGED = {1};
+
+    // insertBatch purges at most this many deleted documents from the posting lists
+    public final static int PURGE_PER_BATCH = 32;
+
+    // phrase matching fetches positions for this many candidate documents at a time
+    private final static int PHRASE_CHUNK_SIZE = 256;
+
+    // scoring fetches document lengths for this many matching documents at a time
+    private final static int SCORE_CHUNK_SIZE = 256;
+
+    // namespaces of a query are searched in parallel on a pool of this many threads.
+    // RocksDB reads are JNI calls, which pin virtual threads to their carrier, so a sized
+    // pool of platform threads gives the same concurrency without blocking the carriers.
+    public final static int READ_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // raw posting values kept in memory, in bytes
+    public final static long POSTING_CACHE_BYTES = 64L << 20;
+
+    // query results kept in memory
+    public final static int RESULT_CACHE_SIZE = 1024;
+
+    public final static DBOptions OPTIONS = new DBOptions()
+            .setCreateIfMissing(true)
+            .setCreateMissingColumnFamilies(true);
+
+    // posting keys are TermIds.postingKey: a fixed width namespace id and term id, only
+    // ever read whole
+    public final static ColumnFamilyOptions POSTINGS_OPTIONS = new ColumnFamilyOptions()
             .setMergeOperator(OPERATOR)
-            .setCreateIfMissing(true);
+            .setTableFormatConfig(new BlockBasedTableConfig()
+                    .setFilterPolicy(new BloomFilter(10, false))
+                    .setWholeKeyFiltering(true));
+
+    public final static ColumnFamilyOptions DOCS_OPTIONS = new ColumnFamilyOptions();
+
+    public final static ColumnFamilyOptions POSITIONS_OPTIONS = new ColumnFamilyOptions();
+
+    public final static ColumnFamilyOptions TERM_DICTIONARIES_OPTIONS = new ColumnFamilyOptions();
 
-    public SearchIndexStore(RocksDB rocksDB) {
+    public final static ColumnFamilyOptions TERM_IDS_OPTIONS = new ColumnFamilyOptions();
+
+    public SearchIndexStore(RocksDB rocksDB, List<ColumnFamilyHandle> handles) {
+        this(rocksDB, handles, Durability.WAL);
+    }
+
+    public SearchIndexStore(RocksDB rocksDB, List<ColumnFamilyHandle> handles, Durability durability) {
         this.rocksDB = rocksDB;
+        this.writeOptions = durability.writeOptions();
+        this.handles = handles;
+        this.postings = handles.get(0);
+        this.docOrdinals = handles.get(1);
+        this.docIds = handles.get(2);
+        this.positions = handles.get(3);
+        this.termDictionaries = new TermDictionaries(rocksDB, handles.get(4));
+        this.docLengths = handles.get(5);
+        this.stats = handles.get(6);
+        this.forward = handles.get(7);
+        this.tombstones = handles.get(8);
+        this.termIds = new TermIds(rocksDB, handles.get(9));
+        this.deleted = loadTombstones();
+        // ordinals of deleted documents are never reused
+        this.nextOrdinal = new AtomicInteger(Math.max(lastOrdinal(rocksDB, docIds), lastOrdinal(rocksDB, tombstones)) + 1);
     }
 
     public static SearchIndexStore open(String path) throws RocksDBException {
-        return new SearchIndexStore(RocksDB.open(OPTIONS, path));
+        return open(path, Durability.WAL);
+    }
+
+    public static SearchIndexStore open(String path, Durability durability) throws RocksDBException {
+        var descriptors = List.of(
+                new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, POSTINGS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_DOC_ORDINALS, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_DOC_IDS, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_POSITIONS, POSITIONS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_TERM_DICTIONARIES, TERM_DICTIONARIES_OPTIONS),
+                new ColumnFamilyDescriptor(CF_DOC_LENGTHS, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_STATS, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_FORWARD, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_TOMBSTONES, DOCS_OPTIONS),
+                new ColumnFamilyDescriptor(CF_TERM_IDS, TERM_IDS_OPTIONS)
+        );
+        var handles = new ArrayList<ColumnFamilyHandle>(descriptors.size());
+        var db = RocksDB.open(OPTIONS, path, descriptors, handles);
+        return new SearchIndexStore(db, handles, durability);
+    }
+
+    // cf is keyed by big-endian ordinals, so the last key is the highest ordinal in it.
+    private static int lastOrdinal(RocksDB rocksDB, ColumnFamilyHandle cf) {
+        try (var it = rocksDB.newIterator(cf)) {
+            it.seekToLast();
+            return it.isValid() ? Ints.fromByteArray(it.key()) : -1;
+        }
+    }
+
+    // loadTombstones returns the deleted ordinals, queueing those not yet purged.
+    private BitSet loadTombstones() {
+        var result = new BitSet();
+        try (var it = rocksDB.newIterator(tombstones)) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                int ordinal = Ints.fromByteArray(it.key());
+                result.set(ordinal);
+                if (Arrays.equals(it.value(), UNPURGED)) {
+                    pendingPurge.add(ordinal);
+                }
+            }
+        }
+        return result;
     }
 
     public record SearchHit(
             String docId,
             String namespaceId,
-            String token
+            String token,
+            float score
     ) {
     }
 
     public record SearchHits(List<SearchHit> hits) {
     }
 
-    public record SearchRequest(List<String> accessibleNamespaces, String query) {
+    public sealed interface Match permits Match.Term, Match.Phrase, Match.Bool, Match.Prefix, Match.Fuzzy {
+        // Term matches documents containing the query as a single exact token.
+        record Term() implements Match {
+        }
+
+        // Phrase matches documents containing the query terms in order, each term within
+        // slop positions of where an exact phrase would put it.
+        record Phrase(int slop) implements Match {
+        }
+
+        // Bool combines the query terms with op. Terms prefixed with '-' exclude
+        // documents containing them.
+        record Bool(Operator op) implements Match {
+        }
+
+        // Prefix matches documents containing, for every query term, a token starting with
+        // that term. Terms prefixed with '-' exclude documents containing them exactly.
+        record Prefix() implements Match {
+        }
+
+        // Fuzzy matches documents containing, for every query term, a token within a few
+        // edits of it. Terms prefixed with '-' exclude documents containing them exactly.
+        record Fuzzy() implements Match {
+        }
+
+        enum Operator {
+            AND,
+            OR
+        }
     }
 
+    public record SearchRequest(List<String> accessibleNamespaces, String query, Match match, int limit) {
+        public final static int DEFAULT_LIMIT = 100;
+
+        public SearchRequest(List<String> accessibleNamespaces, String query) {
+            this(accessibleNamespaces, query, new Match.Term());
+        }
+
+        public SearchRequest(List<String> accessibleNamespaces, String query, Match match) {
+            this(accessibleNamespaces, query, match, DEFAULT_LIMIT);
+        }
+
+        // normalizedTerms are the terms the query matches: the whole query for Term
+        // matches, the words otherwise, lowercased like the tokens of documents. Queries are
+        // too short to detect the language of, so they are stemmed per namespace, in every
+        // language its documents were stemmed in, see stems.
+        List<String> normalizedTerms() {
+            return match instanceof Match.Term ? List.of(normalize(query)) : terms();
+        }
+
+        public List<String> terms() {
+            return Arrays.stream(query.trim().split("\\s+"))
+                    .filter(t -> !t.isEmpty())
+                    .map(SearchRequest::normalize)
+                    .toList();
+        }
+
+        private static String normalize(String term) {
+            return term.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // query returns the best req.limit() hits across the namespaces, ranked by BM25.
+    // Results are cached until insertBatch writes a term they depend on.
     public CompletableFuture<SearchHits> query(SearchRequest req) {
-        return CompletableFuture.supplyAsync(() -> {
-            List<SearchHit> hits = req.accessibleNamespaces.stream()
-                    .flatMap(ns -> queryNs(ns, req.query()))
+        var key = cacheKey(req);
+        var cached = cache.result(key);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+
+        var slots = dependencies(req);
+        var snapshot = cache.snapshot(slots);
+        return search(req, null).thenApply(hits -> {
+            cache.putResult(key, hits, slots, snapshot);
+            return hits;
+        });
+    }
+
+    // refine returns the hits of req among the previous hits, for a query narrowing the
+    // one that found them with the same limit. The previous hits lead the intersection, so
+    // only their ordinals are looked up in the posting lists of req.
+    //
+    // That is only exact when the previous search found fewer than req.limit() hits. A
+    // full previous search was cut off at the limit, and a document ranked below it can be
+    // the best match of req, so req is queried in full instead.
+    public CompletableFuture<SearchHits> refine(SearchRequest req, List<String> previousDocIds) {
+        if (previousDocIds.size() >= req.limit()) {
+            return query(req);
+        }
+        var cached = cache.result(cacheKey(req));
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+        return search(req, previousDocIds);
+    }
+
+    // ReadView is the consistent view of the index a query reads through: a snapshot
+    // shared by all its namespace tasks, read options bound to it, and the cache epoch
+    // from just before the snapshot was taken.
+    private record ReadView(Snapshot snapshot, ReadOptions opts, long epoch) {
+    }
+
+    private ReadView openView() {
+        long epoch = cache.epoch();
+        var snapshot = rocksDB.getSnapshot();
+        return new ReadView(snapshot, new ReadOptions().setSnapshot(snapshot), epoch);
+    }
+
+    private void closeView(ReadView view) {
+        view.opts().close();
+        rocksDB.releaseSnapshot(view.snapshot());
+    }
+
+    // search fans the namespaces out on the read pool and merges their hits. When
+    // previousDocIds is not null only those documents can match.
+    private CompletableFuture<SearchHits> search(SearchRequest req, List<String> previousDocIds) {
+        var view = openView();
+        var candidates = previousDocIds == null
+                ? CompletableFuture.<int[]>completedFuture(null)
+                : CompletableFuture.supplyAsync(() -> resolveOrdinals(view, previousDocIds), executor);
+
+        return candidates
+                .thenCompose(c -> fanOut(req, view, c))
+                .whenComplete((hits, e) -> closeView(view));
+    }
+
+    private CompletableFuture<SearchHits> fanOut(SearchRequest req, ReadView view, int[] candidates) {
+        var perNamespace = req.accessibleNamespaces().stream()
+                .distinct()
+                .map(ns -> CompletableFuture.supplyAsync(() -> queryNs(ns, req, candidates, view), executor))
+                .toList();
+
+        return CompletableFuture.allOf(perNamespace.toArray(CompletableFuture[]::new)).thenApply(done -> {
+            List<SearchHit> hits = perNamespace.stream()
+                    .flatMap(f -> f.join().stream())
+                    .sorted(Comparator.comparingDouble(SearchHit::score).reversed())
+                    .limit(req.limit())
                     .collect(Collectors.toList());
 
             return new SearchHits(hits);
-        }, executor);
+        });
+    }
+
+    private static QueryCache.ResultKey cacheKey(SearchRequest req) {
+        var namespaces = req.accessibleNamespaces().stream().distinct().sorted().toList();
+        return new QueryCache.ResultKey(namespaces, req.normalizedTerms(), req.match(), req.limit());
+    }
+
+    // dependencies returns the cache generation slots a query result depends on: the
+    // languages of each namespace, which decide the stems of the terms, and the stems it
+    // reads, the prefixes it expands, or the whole namespace for fuzzy terms, which can
+    // expand to any term.
+    private int[] dependencies(SearchRequest req) {
+        var terms = req.normalizedTerms();
+        var slots = new ArrayList<Integer>();
+        try {
+            for (var ns : req.accessibleNamespaces()) {
+                slots.add(QueryCache.languagesSlot(ns));
+                for (var term : terms) {
+                    if (!(req.match() instanceof Match.Term) && isExclusion(term)) {
+                        stems(ns, term.substring(1)).forEach(stem -> slots.add(QueryCache.termSlot(ns, stem)));
+                        continue;
+                    }
+                    switch (req.match()) {
+                        case Match.Prefix p -> slots.add(QueryCache.prefixSlot(ns, term));
+                        case Match.Fuzzy f -> slots.add(QueryCache.namespaceSlot(ns));
+                        default -> stems(ns, term).forEach(stem -> slots.add(QueryCache.termSlot(ns, stem)));
+                    }
+                }
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException("[dependencies] error q=" + req.query(), e);
+        }
+        return slots.stream().mapToInt(Integer::intValue).distinct().toArray();
     }
 
-    private Stream<SearchHit> queryNs(String namespaceId, String query) {
-        try (var opts = new ReadOptions()) {
-            var key = Token.createTokenKey(query, namespaceId);
+    // stems returns the stems a query term can have in the namespace: its stem in each
+    // language the documents of the namespace were stemmed in, or in the default language
+    // when none is known.
+    private List<String> stems(String namespaceId, String term) throws RocksDBException {
+        var ns = termIds.namespace(namespaceId);
+        var languages = ns == TermIds.UNKNOWN ? Set.<String>of() : termIds.languages(ns);
+        if (languages.isEmpty()) {
+            return List.of(STEMMER.stem(term, Languages.DEFAULT_LANGUAGE));
+        }
+        return languages.stream()
+                .map(language -> STEMMER.stem(term, language))
+                .distinct()
+                .sorted()
+                .toList();
+    }
 
-            var raw = this.rocksDB.get(
-                    opts,
-                    key.getBytes(UTF_8)
-            );
+    // Clause is a resolved query term: the posting list of a single token, or the union of
+    // the posting lists of the tokens a prefix or fuzzy term expanded to.
+    private record Clause(String term, byte[] raw, PostingList.Postings postings, int docFrequency) {
+        static Clause of(String term, byte[] raw) {
             if (raw == null) {
-                return Stream.empty();
+                return of(term, PostingList.Postings.EMPTY);
+            }
+            if (PostingList.segmentCount(raw) == 1) {
+                return new Clause(term, raw, null, PostingList.cursor(raw).docCount());
+            }
+            return of(term, PostingList.decodePostings(raw));
+        }
+
+        static Clause of(String term, PostingList.Postings postings) {
+            return new Clause(term, null, postings, postings.size());
+        }
+
+        PostingList.Cursor cursor() {
+            return raw != null ? PostingList.cursor(raw) : PostingList.cursor(postings);
+        }
+
+        int[] ordinals() {
+            return raw != null ? PostingList.decode(raw) : postings.ordinals();
+        }
+    }
+
+    private List<SearchHit> queryNs(String namespaceId, SearchRequest req, int[] candidates, ReadView view) {
+        var match = req.match();
+        var terms = req.normalizedTerms();
+        var include = terms.stream().filter(t -> match instanceof Match.Term || !isExclusion(t)).toList();
+        var exclude = match instanceof Match.Term ? List.<String>of() : terms.stream()
+                .filter(SearchIndexStore::isExclusion)
+                .map(t -> t.substring(1))
+                .toList();
+        if (include.isEmpty()) {
+            return List.of();
+        }
+
+        try {
+            var opts = view.opts();
+            var clauses = new ArrayList<Clause>(include.size());
+            for (var term : include) {
+                // a prefix is not stemmed, as the stem of a partly typed word is not the
+                // stem of the word
+                var clause = switch (match) {
+                    case Match.Prefix p -> Clause.of(term, expandPrefix(view, namespaceId, term));
+                    case Match.Fuzzy f -> Clause.of(term, expandFuzzy(view, namespaceId, stems(namespaceId, term)));
+                    default -> readStems(view, namespaceId, term);
+                };
+                clauses.add(clause);
+            }
+
+            int[] matches;
+            if (match instanceof Match.Bool b && b.op() == Match.Operator.OR) {
+                matches = PostingList.EMPTY;
+                for (var clause : clauses) {
+                    matches = PostingList.union(matches, clause.ordinals());
+                }
+                if (candidates != null) {
+                    matches = PostingList.intersect(List.of(PostingList.cursor(matches), PostingList.cursor(candidates)));
+                }
+            } else if (clauses.stream().anyMatch(c -> c.docFrequency() == 0)) {
+                matches = PostingList.EMPTY;
+            } else {
+                var cursors = new ArrayList<PostingList.Cursor>(clauses.size() + 1);
+                clauses.forEach(c -> cursors.add(c.cursor()));
+                if (candidates != null) {
+                    cursors.add(PostingList.cursor(candidates));
+                }
+                matches = PostingList.intersect(cursors);
+            }
+
+            if (match instanceof Match.Phrase p && matches.length > 0) {
+                // every term has postings here, so every term has a key
+                var keys = new ArrayList<List<byte[]>>(include.size());
+                for (var term : include) {
+                    var stemKeys = new ArrayList<byte[]>();
+                    for (var stem : stems(namespaceId, term)) {
+                        var key = termKey(namespaceId, stem);
+                        if (key != null) {
+                            stemKeys.add(key);
+                        }
+                    }
+                    keys.add(stemKeys);
+                }
+                matches = matchPhrase(opts, keys, matches, p.slop());
+            }
+            matches = applyExclusions(view, namespaceId, matches, exclude);
+            matches = PostingList.without(matches, deleted);
+
+            return score(opts, namespaceId, clauses, matches, req.limit());
+        } catch (RocksDBException e) {
+            throw new RuntimeException("[queryNs] error ns=" + namespaceId + " q=" + req.query(), e);
+        }
+    }
+
+    // score ranks the matching documents with BM25 and keeps the best limit of them. Scoring
+    // stops early once no remaining document could beat the lowest collected score.
+    private List<SearchHit> score(ReadOptions opts, String namespaceId, List<Clause> clauses, int[] matches, int limit) throws RocksDBException {
+        if (matches.length == 0) {
+            return List.of();
+        }
+        var stats = collectionStats(namespaceId);
+        var bm25 = new Bm25(stats.docCount(), stats.avgLength());
+
+        var cursors = new PostingList.Cursor[clauses.size()];
+        var idf = new float[clauses.size()];
+        float maxScore = 0;
+        for (int c = 0; c < cursors.length; c++) {
+            cursors[c] = clauses.get(c).cursor();
+            idf[c] = bm25.idf(clauses.get(c).docFrequency());
+            maxScore += bm25.maxScore(idf[c], cursors[c].maxFreq());
+        }
+
+        var top = new TopHits(limit);
+        for (int from = 0; from < matches.length; from += SCORE_CHUNK_SIZE) {
+            if (top.isFull() && top.threshold() >= maxScore) {
+                break;
+            }
+            int to = Math.min(from + SCORE_CHUNK_SIZE, matches.length);
+            var lengths = readDocLengths(opts, matches, from, to);
+
+            for (int i = from; i < to; i++) {
+                int doc = matches[i];
+                float score = 0;
+                float best = -1;
+                String token = "";
+                for (int c = 0; c < cursors.length; c++) {
+                    if (cursors[c].advance(doc) != doc) {
+                        continue;
+                    }
+                    float s = bm25.score(idf[c], cursors[c].freq(), lengths[i - from]);
+                    score += s;
+                    if (s > best) {
+                        best = s;
+                        token = clauses.get(c).term();
+                    }
+                }
+                top.offer(doc, score, token);
+            }
+        }
+
+        var scored = top.sorted();
+        var ordinals = scored.stream().mapToInt(TopHits.ScoredDoc::ordinal).toArray();
+        var ids = resolveDocIds(opts, ordinals);
+
+        var hits = new ArrayList<SearchHit>(scored.size());
+        for (int i = 0; i < scored.size(); i++) {
+            if (ids.get(i) != null) {
+                var doc = scored.get(i);
+                hits.add(new SearchHit(ids.get(i), namespaceId, doc.token(), doc.score()));
+            }
+        }
+        return hits;
+    }
+
+    private int[] readDocLengths(ReadOptions opts, int[] ordinals, int from, int to) throws RocksDBException {
+        var keys = new ArrayList<byte[]>(to - from);
+        for (int i = from; i < to; i++) {
+            keys.add(Ints.toByteArray(ordinals[i]));
+        }
+        var values = rocksDB.multiGetAsList(opts, Collections.nCopies(keys.size(), docLengths), keys);
+
+        var lengths = new int[keys.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            var raw = values.get(i);
+            lengths[i] = raw == null ? 0 : Ints.fromByteArray(raw);
+        }
+        return lengths;
+    }
+
+    private CollectionStats collectionStats(String namespaceId) {
+        return collectionStats.computeIfAbsent(namespaceId, ns -> {
+            try {
+                return CollectionStats.fromBytes(rocksDB.get(stats, ns.getBytes(UTF_8)));
+            } catch (RocksDBException e) {
+                throw new RuntimeException("[collectionStats] error ns=" + ns, e);
+            }
+        });
+    }
+
+    // readStems returns the clause of a query term: the posting list of its stem, or the
+    // union of those of its stems when the languages of the namespace stem it differently.
+    private Clause readStems(ReadView view, String namespaceId, String term) throws RocksDBException {
+        var stems = stems(namespaceId, term);
+        if (stems.size() == 1) {
+            return Clause.of(term, readPostings(view, namespaceId, stems.get(0)));
+        }
+        var union = PostingList.Postings.EMPTY;
+        for (var stem : stems) {
+            var raw = readPostings(view, namespaceId, stem);
+            if (raw != null) {
+                union = PostingList.unionSum(union, PostingList.decodePostings(raw));
+            }
+        }
+        return Clause.of(term, union);
+    }
+
+    // expandPrefix unions the posting lists of at most MAX_PREFIX_EXPANSIONS tokens of the
+    // namespace starting with prefix, or stemmed from words starting with it, so a word
+    // matches while it is typed even where its stem is not a prefix of it. Candidates come
+    // from the term ids, stems first, in term order, and are looked up in the namespace a
+    // page at a time.
+    //
+    // Term ids are shared by all namespaces, so the scan reads on past the terms of other
+    // namespaces until it found MAX_PREFIX_EXPANSIONS tokens of this one, or ran out of
+    // terms with the prefix. A short prefix in a large index can read many pages.
+    private PostingList.Postings expandPrefix(ReadView view, String namespaceId, String prefix) throws RocksDBException {
+        var ns = termIds.namespace(namespaceId);
+        if (ns == TermIds.UNKNOWN) {
+            return PostingList.Postings.EMPTY;
+        }
+        var seen = new HashSet<Integer>();
+        var union = PostingList.Postings.EMPTY;
+        int expanded = 0;
+        try (var scan = termIds.scanPrefix(prefix)) {
+            while (expanded < MAX_PREFIX_EXPANSIONS) {
+                var page = scan.next(MAX_PREFIX_EXPANSIONS);
+                if (page.isEmpty()) {
+                    break;
+                }
+                var keys = new ArrayList<byte[]>(page.size());
+                for (var candidate : page) {
+                    if (seen.add(candidate)) {
+                        keys.add(TermIds.postingKey(ns, candidate));
+                    }
+                }
+                var values = rocksDB.multiGetAsList(view.opts(), Collections.nCopies(keys.size(), postings), keys);
+                for (int i = 0; i < values.size() && expanded < MAX_PREFIX_EXPANSIONS; i++) {
+                    if (values.get(i) != null) {
+                        union = PostingList.unionSum(union, PostingList.decodePostings(values.get(i)));
+                        expanded++;
+                    }
+                }
+            }
+        }
+        if (expanded == MAX_PREFIX_EXPANSIONS) {
+            log.debug("expandPrefix ns={} prefix={} capped at {} terms", namespaceId, prefix, expanded);
+        }
+        return union;
+    }
+
+    // expandFuzzy unions the posting lists of the closest MAX_FUZZY_EXPANSIONS tokens
+    // within maxEdits(stem) edits of each of the stems of a term.
+    private PostingList.Postings expandFuzzy(ReadView view, String namespaceId, List<String> stems) throws RocksDBException {
+        var expanded = new LinkedHashSet<String>();
+        for (var stem : stems) {
+            for (var match : termDictionaries.fuzzy(namespaceId, stem, maxEdits(stem), MAX_FUZZY_EXPANSIONS)) {
+                expanded.add(match.term());
+            }
+        }
+
+        var union = PostingList.Postings.EMPTY;
+        for (var term : expanded) {
+            var raw = readPostings(view, namespaceId, term);
+            if (raw != null) {
+                union = PostingList.unionSum(union, PostingList.decodePostings(raw));
             }
-            var value = new String(raw, UTF_8);
-            var parts = Arrays.stream(value.split(DELIMITER));
+        }
+        return union;
+    }
+
+    // maxEdits allows more typos in longer terms, where they are less likely to match noise.
+    static int maxEdits(String term) {
+        if (term.length() <= 2) {
+            return 0;
+        } else if (term.length() <= 5) {
+            return 1;
+        }
+        return 2;
+    }
+
+    // prefixUpperBound returns the smallest key greater than every key starting with prefix.
+    static byte[] prefixUpperBound(byte[] prefix) {
+        var upper = Arrays.copyOf(prefix, prefix.length);
+        for (int i = upper.length - 1; i >= 0; i--) {
+            if (upper[i] != (byte) 0xFF) {
+                upper[i]++;
+                return Arrays.copyOf(upper, i + 1);
+            }
+        }
+        throw new IllegalArgumentException("no upper bound for prefix of 0xFF bytes");
+    }
+
+    private int[] applyExclusions(ReadView view, String namespaceId, int[] matches, List<String> exclude) throws RocksDBException {
+        if (matches.length == 0 || exclude.isEmpty()) {
+            return matches;
+        }
+        var excluded = new ArrayList<PostingList.Cursor>(exclude.size());
+        for (var term : exclude) {
+            excluded.add(readStems(view, namespaceId, term).cursor());
+        }
+        return PostingList.difference(matches, excluded);
+    }
+
+    private static boolean isExclusion(String term) {
+        return term.length() > 1 && term.charAt(0) == '-';
+    }
+
+    // matchPhrase keeps the candidates where the terms occur in order, within slop. Each
+    // term is given by the posting keys of its stems, whose positions are merged.
+    private int[] matchPhrase(ReadOptions opts, List<List<byte[]>> termKeys, int[] candidates, int slop) throws RocksDBException {
+        int terms = termKeys.size();
+        var offsets = new int[terms + 1];
+        for (int t = 0; t < terms; t++) {
+            offsets[t + 1] = offsets[t] + termKeys.get(t).size();
+        }
+        int keysPerCandidate = offsets[terms];
+        int[] matches = new int[candidates.length];
+        int n = 0;
+
+        for (int from = 0; from < candidates.length; from += PHRASE_CHUNK_SIZE) {
+            int to = Math.min(from + PHRASE_CHUNK_SIZE, candidates.length);
+
+            var keys = new ArrayList<byte[]>((to - from) * keysPerCandidate);
+            for (int c = from; c < to; c++) {
+                for (var stemKeys : termKeys) {
+                    for (var termKey : stemKeys) {
+                        keys.add(positionKey(termKey, candidates[c]));
+                    }
+                }
+            }
+            var values = rocksDB.multiGetAsList(opts, Collections.nCopies(keys.size(), positions), keys);
+
+            var termPositions = new int[terms][];
+            for (int c = from; c < to; c++) {
+                boolean complete = true;
+                for (int t = 0; t < terms && complete; t++) {
+                    int[] merged = null;
+                    for (int k = offsets[t]; k < offsets[t + 1]; k++) {
+                        var raw = values.get((c - from) * keysPerCandidate + k);
+                        if (raw != null) {
+                            var decoded = Positions.decode(raw);
+                            merged = merged == null ? decoded : PostingList.union(merged, decoded);
+                        }
+                    }
+                    complete = merged != null;
+                    termPositions[t] = merged;
+                }
+                if (complete && Positions.matchesPhrase(termPositions, slop)) {
+                    matches[n++] = candidates[c];
+                }
+            }
+        }
+        return Arrays.copyOf(matches, n);
+    }
 
-            return parts.map(docId -> new SearchHit(
-                    docId,
-                    namespaceId,
-                    ""
-            ));
+    // readPostings returns the raw posting value of a term through the posting cache, and
+    // marks values fragmented into many segments for consolidation.
+    private byte[] readPostings(ReadView view, String namespaceId, String term) throws RocksDBException {
+        var key = termKey(namespaceId, term);
+        if (key == null) {
+            return null;
+        }
+        return cache.postings(namespaceId, term, key, view.epoch(), () -> {
+            var raw = this.rocksDB.get(postings, view.opts(), key);
+            if (raw != null && PostingList.segmentCount(raw) > MAX_SEGMENTS) {
+                pendingConsolidation.add(ByteBuffer.wrap(key));
+            }
+            return raw;
+        });
+    }
+
+    // termKey returns the posting key of a term, or null if it was never indexed in any
+    // namespace.
+    private byte[] termKey(String namespaceId, String term) throws RocksDBException {
+        var ns = termIds.namespace(namespaceId);
+        var id = termIds.term(term);
+        if (ns == TermIds.UNKNOWN || id == TermIds.UNKNOWN) {
+            return null;
+        }
+        return TermIds.postingKey(ns, id);
+    }
+
+    // positionKey is the posting key followed by the big-endian doc ordinal, so the
+    // positions of a term are stored next to each other.
+    static byte[] positionKey(byte[] termKey, int ordinal) {
+        return Bytes.concat(termKey, Ints.toByteArray(ordinal));
+    }
+
+    // resolveOrdinals maps docIds to their sorted, distinct ordinals, skipping unknown docIds.
+    private int[] resolveOrdinals(ReadView view, List<String> docIds) {
+        var keys = docIds.stream().map(id -> id.getBytes(UTF_8)).toList();
+        try {
+            var values = this.rocksDB.multiGetAsList(view.opts(), Collections.nCopies(keys.size(), docOrdinals), keys);
+
+            return PostingList.sortedUnique(values.stream()
+                    .filter(v -> v != null)
+                    .mapToInt(Ints::fromByteArray)
+                    .toArray());
         } catch (RocksDBException e) {
-            throw new RuntimeException("[queryNs] error ns=" + namespaceId + " q=" + query, e);
+            throw new RuntimeException("[resolveOrdinals] error docIds=" + docIds, e);
         }
     }
 
+    // resolveDocIds maps ordinals to docIds, with null for ordinals no longer known.
+    private List<String> resolveDocIds(ReadOptions opts, int[] ordinals) throws RocksDBException {
+        var keys = new ArrayList<byte[]>(ordinals.length);
+        for (int ordinal : ordinals) {
+            keys.add(Ints.toByteArray(ordinal));
+        }
+        var values = this.rocksDB.multiGetAsList(opts, Collections.nCopies(keys.size(), docIds), keys);
+
+        var result = new ArrayList<String>(values.size());
+        for (byte[] value : values) {
+            result.add(value == null ? null : new String(value, UTF_8));
+        }
+        return result;
+    }
+
+    // insertBatch writes the batch as a single WriteBatch, so a batch is applied atomically
+    // with one WAL append. Concurrent callers are serialized, and RocksDB commits their
+    // batches as they come.
     public Flowable<List<DocumentWithTokens>> insertBatch(List<DocumentWithTokens> d) {
         var start = System.nanoTime();
 
         return Flowable.create(emitter -> {
-            var tokens = prepareBatch(d);
-            log.info("insertBatch size={} token={} total={}", d.size(), tokens.size(), INSERTS_TOTAL.get());
+            try (var wb = new WriteBatch()) {
+                int tokens;
+                // ordinal assignment and segment consolidation are read-modify-write, so
+                // writers are serialized.
+                synchronized (writeLock) {
+                    consolidatePending(wb);
+                    var purged = new HashMap<String, Set<String>>();
+                    var purging = nextPurge(PURGE_PER_BATCH);
+                    purge(wb, purging, purged);
+
+                    var deletes = new Deletes();
+                    var ids = termIds.batch(wb);
+                    var ordinals = assignOrdinals(wb, d, deletes);
+                    updateDocLengths(wb, d, ordinals, deletes);
+                    writeForward(wb, d, ordinals);
+                    var relanguaged = recordLanguages(d, ids);
+                    var inserts = prepareBatch(d, ordinals, ids);
+                    for (InsertionToken t : inserts) {
+                        wb.merge(postings, t.key, t.value);
+                    }
+                    for (InsertionToken t : preparePositions(d, ordinals, ids)) {
+                        wb.put(positions, t.key, t.value);
+                    }
+                    var terms = termsByNamespace(d);
+                    var dictionaries = termDictionaries.batch(wb);
+                    for (var e : terms.entrySet()) {
+                        dictionaries.add(e.getKey(), e.getValue());
+                    }
 
-            try (var wOpts = new WriteOptions()) {
-                for (InsertionToken t : tokens) {
-                    rocksDB.merge(wOpts, t.key, t.value);
-                    INSERTS_TOTAL.incrementAndGet();
+                    rocksDB.write(writeOptions, wb);
+                    ids.written();
+                    dictionaries.written();
+                    purgeWritten(purging);
+                    publish(deletes);
+                    purged.forEach(cache::written);
+                    terms.forEach(cache::written);
+                    surfacesByNamespace(d).forEach(cache::written);
+                    relanguaged.forEach(cache::languagesChanged);
+                    tokens = inserts.size();
                 }
+
+                var elapsed = System.nanoTime() - start;
+                INSERTS_TOTAL.addAndGet(tokens);
+                WRITE_NANOS_TOTAL.addAndGet(elapsed);
+                log.info("insertBatch size={} tokens={} took {}ms tokens/s={} total={}",
+                        d.size(), tokens, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        (long) perSecond(tokens, elapsed), INSERTS_TOTAL.get());
                 emitter.onNext(d);
-                //return d;
             } catch (Throwable e) {
                 emitter.onError(new RuntimeException("insertBatch doc=" + d, e));
             } finally {
                 emitter.onComplete();
-                var elapsed = System.nanoTime() - start;
-                var elapsedMs = TimeUnit.NANOSECONDS.toMillis(elapsed);
-                log.info("insertBatch size={} took {}ms", d.size(), elapsedMs);
             }
         }, BackpressureStrategy.BUFFER);
     }
 
-    <T> T useWriteBatch(InsertionToken token, Function<WriteBatch, T> use) throws RocksDBException {
+    // tokensPerSecond is the indexing throughput of insertBatch since startup: the posting
+    // entries written per second spent writing.
+    public static double tokensPerSecond() {
+        return perSecond(INSERTS_TOTAL.get(), WRITE_NANOS_TOTAL.get());
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    // BulkBatch is a batch prepared for bulk loading: its documents are registered, and its
+    // postings and positions are left to the caller to write as SST files.
+    record BulkBatch(List<InsertionToken> postings, List<InsertionToken> positions) {
+    }
+
+    // prepareBulk registers the documents of the batch like insertBatch does, assigning
+    // ordinals and updating document lengths and term dictionaries, but returns the
+    // postings and positions instead of writing them.
+    BulkBatch prepareBulk(List<DocumentWithTokens> d) throws RocksDBException {
         try (var wb = new WriteBatch()) {
-            writeToBatch(wb, token);
-            return use.apply(wb);
+            synchronized (writeLock) {
+                var deletes = new Deletes();
+                var ids = termIds.batch(wb);
+                var ordinals = assignOrdinals(wb, d, deletes);
+                updateDocLengths(wb, d, ordinals, deletes);
+                writeForward(wb, d, ordinals);
+                recordLanguages(d, ids);
+                var dictionaries = termDictionaries.batch(wb);
+                for (var e : termsByNamespace(d).entrySet()) {
+                    dictionaries.add(e.getKey(), e.getValue());
+                }
+                var bulk = new BulkBatch(prepareBatch(d, ordinals, ids), preparePositions(d, ordinals, ids));
+                rocksDB.write(writeOptions, wb);
+                ids.written();
+                dictionaries.written();
+                publish(deletes);
+                return bulk;
+            }
         }
     }
 
-    private void writeToBatch(WriteBatch wb, InsertionToken t) throws RocksDBException {
-        wb.merge(t.key(), t.value());
+    // ingest moves SST files of postings and positions into the database. Posting files
+    // hold merge operands, so they combine with postings already stored.
+    void ingest(List<String> postingFiles, List<String> positionFiles) throws RocksDBException {
+        try (var opts = new IngestExternalFileOptions().setMoveFiles(true)) {
+            synchronized (writeLock) {
+                if (!postingFiles.isEmpty()) {
+                    rocksDB.ingestExternalFile(postings, postingFiles, opts);
+                }
+                if (!positionFiles.isEmpty()) {
+                    rocksDB.ingestExternalFile(positions, positionFiles, opts);
+                }
+                cache.writtenAll();
+            }
+        }
     }
 
-    public record InsertionToken(byte[] key, byte[] value) implements Comparable<InsertionToken> {
-        public static List<InsertionToken> from(DocumentWithTokens d) {
-            var doc = d.doc();
-            var tokens = d.tokens();
-            var ns = doc.namespaceId();
+    // isEmpty is true when no document has been indexed yet.
+    public boolean isEmpty() {
+        return nextOrdinal.get() == 0;
+    }
+
+    // deleteBatch deletes the documents from the index. Unknown docIds are ignored.
+    //
+    // A delete only removes the document metadata and records a tombstone, which queries
+    // skip from then on. The postings and positions of the document are purged later, a
+    // few documents per insertBatch or all at once by purge().
+    public Flowable<List<String>> deleteBatch(List<String> d) {
+        return Flowable.create(emitter -> {
+            try (var wb = new WriteBatch()) {
+                synchronized (writeLock) {
+                    var keys = d.stream().distinct().map(id -> id.getBytes(UTF_8)).toList();
+                    var existing = rocksDB.multiGetAsList(Collections.nCopies(keys.size(), docOrdinals), keys);
+
+                    var deletes = new Deletes();
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (existing.get(i) != null) {
+                            tombstone(wb, keys.get(i), Ints.fromByteArray(existing.get(i)), deletes);
+                        }
+                    }
+                    rocksDB.write(writeOptions, wb);
+                    publish(deletes);
+                    log.info("deleteBatch size={} deleted={}", d.size(), deletes.ordinals.size());
+                }
+                emitter.onNext(d);
+            } catch (Throwable e) {
+                emitter.onError(new RuntimeException("deleteBatch docIds=" + d, e));
+            } finally {
+                emitter.onComplete();
+            }
+        }, BackpressureStrategy.BUFFER);
+    }
+
+    // purge removes every deleted document from the posting lists and positions.
+    public void purge() throws RocksDBException {
+        while (true) {
+            try (var wb = new WriteBatch()) {
+                synchronized (writeLock) {
+                    if (pendingPurge.isEmpty()) {
+                        return;
+                    }
+                    var purged = new HashMap<String, Set<String>>();
+                    var purging = nextPurge(PURGE_PER_BATCH);
+                    purge(wb, purging, purged);
+                    rocksDB.write(writeOptions, wb);
+                    purgeWritten(purging);
+                    purged.forEach(cache::written);
+                }
+            }
+        }
+    }
+
+    // Deletes collects the documents a batch tombstones, and the collection stats it
+    // changes, to publish once it is written. stats are copies of those queries read, which
+    // they replace.
+    private static final class Deletes {
+        final List<Integer> ordinals = new ArrayList<>();
+        final Map<String, Set<String>> terms = new HashMap<>();
+        final Map<String, CollectionStats> stats = new HashMap<>();
+    }
+
+    // stagedStats returns the copy of the collection stats of a namespace that a batch
+    // changes, made on first use.
+    private CollectionStats stagedStats(Map<String, CollectionStats> staged, String namespaceId) {
+        return staged.computeIfAbsent(namespaceId, ns -> collectionStats(ns).copy());
+    }
+
+    // tombstone deletes the document at ordinal, removing its metadata and updating the
+    // collection stats staged in deletes. Its postings and positions stay until purged.
+    private void tombstone(WriteBatch wb, byte[] docIdKey, int ordinal, Deletes deletes) throws RocksDBException {
+        var key = Ints.toByteArray(ordinal);
+        var entry = rocksDB.get(forward, key);
+        if (entry != null) {
+            var fwd = parseForward(entry);
+            var ns = fwd.getNamespaceId();
+            var length = rocksDB.get(docLengths, key);
+            if (length != null) {
+                var staged = stagedStats(deletes.stats, ns);
+                staged.remove(Ints.fromByteArray(length));
+                wb.put(stats, ns.getBytes(UTF_8), staged.toBytes());
+            }
+            deletes.terms.computeIfAbsent(ns, k -> new HashSet<>()).addAll(fwd.getTermsList());
+        }
+        wb.delete(docOrdinals, docIdKey);
+        wb.delete(docIds, key);
+        wb.delete(docLengths, key);
+        wb.put(tombstones, key, UNPURGED);
+        deletes.ordinals.add(ordinal);
+    }
+
+    // publish makes the tombstones and collection stats of a written batch visible to
+    // queries and queues the tombstones for purging. Must be called while holding writeLock.
+    private void publish(Deletes deletes) {
+        collectionStats.putAll(deletes.stats);
+        if (deletes.ordinals.isEmpty()) {
+            return;
+        }
+        var next = (BitSet) deleted.clone();
+        deletes.ordinals.forEach(next::set);
+        deleted = next;
+        pendingPurge.addAll(deletes.ordinals);
+        deletes.terms.forEach(cache::written);
+    }
+
+    // nextPurge returns up to limit ordinals from the head of the purge queue, leaving them
+    // queued until purgeWritten, so a failed write purges them again later. Must be called
+    // while holding writeLock.
+    private List<Integer> nextPurge(int limit) {
+        return pendingPurge.stream().limit(limit).toList();
+    }
+
+    // purgeWritten dequeues the ordinals of nextPurge once their purge is written. Must be
+    // called while holding writeLock.
+    private void purgeWritten(List<Integer> ordinals) {
+        for (int i = 0; i < ordinals.size(); i++) {
+            pendingPurge.poll();
+        }
+    }
+
+    // purge drops the deleted documents at ordinals from the posting lists and positions of
+    // their terms, collecting the purged terms by namespace. Each posting list is rewritten
+    // once for all deleted documents in it.
+    //
+    // This stands in for a compaction filter, which RocksJava cannot run in Java. Documents
+    // indexed before forward entries existed cannot be purged, and stay filtered by their
+    // tombstone. Must be called while holding writeLock.
+    private void purge(WriteBatch wb, List<Integer> ordinals, Map<String, Set<String>> purged) throws RocksDBException {
+        if (ordinals.isEmpty()) {
+            return;
+        }
 
-            int count = tokens.size();
+        var keys = ordinals.stream().map(Ints::toByteArray).toList();
+        var entries = rocksDB.multiGetAsList(Collections.nCopies(keys.size(), forward), keys);
+        var termKeys = new HashSet<ByteBuffer>();
+        for (int i = 0; i < keys.size(); i++) {
+            var raw = entries.get(i);
+            if (raw != null) {
+                var entry = parseForward(raw);
+                var ns = entry.getNamespaceId();
+                for (var term : entry.getTermsList()) {
+                    var termKey = termKey(ns, term);
+                    if (termKey == null) {
+                        continue;
+                    }
+                    termKeys.add(ByteBuffer.wrap(termKey));
+                    wb.delete(positions, positionKey(termKey, ordinals.get(i)));
+                }
+                purged.computeIfAbsent(ns, k -> new HashSet<>()).addAll(entry.getTermsList());
+            }
+            wb.delete(forward, keys.get(i));
+            wb.put(tombstones, keys.get(i), PURGED);
+        }
 
-            List<InsertionToken> inserts = new ArrayList<>(count);
+        var deleted = this.deleted;
+        for (var termKey : termKeys) {
+            var key = termKey.array();
+            var raw = rocksDB.get(postings, key);
+            if (raw == null) {
+                continue;
+            }
+            var all = PostingList.decodePostings(raw);
+            var kept = PostingList.without(all, deleted);
+            if (kept == all) {
+                continue;
+            }
+            if (kept.size() == 0) {
+                wb.delete(postings, key);
+            } else {
+                wb.put(postings, key, PostingList.encode(kept));
+            }
+            pendingConsolidation.remove(termKey);
+        }
+        log.debug("purge docs={} postings={}", ordinals.size(), termKeys.size());
+    }
 
-            for (Token token : tokens) {
-                var key = Token.createTokenKey(token, doc.namespaceId()).getBytes(UTF_8);
-                var value = doc.docId().getBytes(UTF_8);
+    private static ForwardEntry parseForward(byte[] raw) {
+        try {
+            return ForwardEntry.parseFrom(raw);
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // writeForward stores the distinct terms of every document in the batch.
+    private void writeForward(WriteBatch wb, List<DocumentWithTokens> batch, Map<String, Integer> ordinals) throws RocksDBException {
+        var latest = new LinkedHashMap<String, DocumentWithTokens>();
+        for (DocumentWithTokens doc : batch) {
+            latest.put(doc.doc().docId(), doc);
+        }
+        for (var doc : latest.values()) {
+            var terms = doc.tokens().stream().map(Token::value).distinct().sorted().toList();
+            var entry = ForwardEntry.newBuilder()
+                    .setNamespaceId(doc.doc().namespaceId())
+                    .addAllTerms(terms)
+                    .build();
+            wb.put(forward, Ints.toByteArray(ordinals.get(doc.doc().docId())), entry.toByteArray());
+        }
+    }
 
-                inserts.add(new InsertionToken(key, value));
+    // assignOrdinals allocates a fresh ordinal for each docId in the batch. A document
+    // indexed again is tombstoned under its old ordinal, so postings of terms it no
+    // longer contains stop matching it.
+    private Map<String, Integer> assignOrdinals(WriteBatch wb, List<DocumentWithTokens> batch, Deletes deletes) throws RocksDBException {
+        var ids = batch.stream().map(d -> d.doc().docId()).distinct().toList();
+        var keys = ids.stream().map(id -> id.getBytes(UTF_8)).toList();
+        var existing = rocksDB.multiGetAsList(Collections.nCopies(keys.size(), docOrdinals), keys);
+
+        var ordinals = new HashMap<String, Integer>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            var raw = existing.get(i);
+            if (raw != null) {
+                tombstone(wb, keys.get(i), Ints.fromByteArray(raw), deletes);
             }
-            Collections.sort(inserts);
-            return inserts;
+            int ordinal = nextOrdinal.getAndIncrement();
+            var ordinalKey = Ints.toByteArray(ordinal);
+            wb.put(docOrdinals, keys.get(i), ordinalKey);
+            wb.put(docIds, ordinalKey, keys.get(i));
+            ordinals.put(ids.get(i), ordinal);
+        }
+        return ordinals;
+    }
+
+    // updateDocLengths stores the token count of every document in the batch and keeps the
+    // namespace collection stats in step. Ordinals are fresh, and documents indexed again
+    // were removed from the stats by their tombstone, so every document is added. The stats
+    // are changed on the copies staged in deletes, which publish applies after the write.
+    private void updateDocLengths(WriteBatch wb, List<DocumentWithTokens> batch, Map<String, Integer> ordinals, Deletes deletes) throws RocksDBException {
+        var latest = new LinkedHashMap<String, DocumentWithTokens>();
+        for (DocumentWithTokens doc : batch) {
+            latest.put(doc.doc().docId(), doc);
         }
 
+        var touched = new HashSet<String>();
+        for (var doc : latest.values()) {
+            int length = 0;
+            for (int freq : termFrequencies(doc).values()) {
+                length += freq;
+            }
+            stagedStats(deletes.stats, doc.doc().namespaceId()).add(length);
+            touched.add(doc.doc().namespaceId());
+            wb.put(docLengths, Ints.toByteArray(ordinals.get(doc.doc().docId())), Ints.toByteArray(length));
+        }
+        for (var ns : touched) {
+            wb.put(stats, ns.getBytes(UTF_8), deletes.stats.get(ns).toBytes());
+        }
+    }
+
+    // termFrequencies counts the distinct positions of every token of the document.
+    static Map<String, Integer> termFrequencies(DocumentWithTokens doc) {
+        var positions = new HashMap<String, Set<Integer>>();
+        for (Token token : doc.tokens()) {
+            positions.computeIfAbsent(token.value(), k -> new HashSet<>()).addAll(token.positions());
+        }
+        var freqs = new HashMap<String, Integer>(positions.size());
+        positions.forEach((token, p) -> freqs.put(token, Math.max(1, p.size())));
+        return freqs;
+    }
+
+    // consolidatePending rewrites posting values that queries found fragmented into
+    // many segments. Must be called while holding writeLock.
+    private void consolidatePending(WriteBatch wb) throws RocksDBException {
+        for (var it = pendingConsolidation.iterator(); it.hasNext(); ) {
+            var key = it.next().array();
+            it.remove();
+
+            var raw = rocksDB.get(postings, key);
+            if (raw == null || PostingList.segmentCount(raw) <= 1) {
+                continue;
+            }
+            wb.put(postings, key, PostingList.consolidate(raw));
+        }
+    }
+
+    public record InsertionToken(byte[] key, byte[] value) implements Comparable<InsertionToken> {
         @Override
         public int compareTo(@NotNull InsertionToken b) {
             var a = this;
-            return Arrays.compare(a.key, b.key);
+            return Arrays.compareUnsigned(a.key, b.key);
         }
     }
 
-    public static List<InsertionToken> prepareBatch(List<DocumentWithTokens> d) {
-        var tokens = d.stream()
-                .flatMap((DocumentWithTokens d1) -> InsertionToken.from(d1).stream())
-                .sorted()
-                .toList();
-        return tokens;
+    // prepareBatch groups the batch by posting key, producing one posting segment per key
+    // with the sorted, distinct ordinals and term frequencies of the documents containing it.
+    // Terms and namespaces new to the index are assigned ids in the batch.
+    static List<InsertionToken> prepareBatch(List<DocumentWithTokens> d, Map<String, Integer> ordinals, TermIds.Batch ids) throws RocksDBException {
+        var byKey = new HashMap<Long, TreeMap<Integer, Integer>>();
+        for (DocumentWithTokens doc : d) {
+            var ns = ids.namespace(doc.doc().namespaceId());
+            int ordinal = ordinals.get(doc.doc().docId());
+            for (var e : termFrequencies(doc).entrySet()) {
+                var key = TermIds.packed(ns, ids.term(e.getKey()));
+                byKey.computeIfAbsent(key, k -> new TreeMap<>()).put(ordinal, e.getValue());
+            }
+        }
+
+        var inserts = new ArrayList<InsertionToken>(byKey.size());
+        byKey.forEach((key, docs) -> {
+            var sorted = docs.keySet().stream().mapToInt(Integer::intValue).toArray();
+            var freqs = docs.values().stream().mapToInt(Integer::intValue).toArray();
+            var value = PostingList.encode(new PostingList.Postings(sorted, freqs));
+            inserts.add(new InsertionToken(Longs.toByteArray(key), value));
+        });
+        Collections.sort(inserts);
+        return inserts;
     }
 
-    private <T> T useWriteBatch(List<InsertionToken> tokens, CheckedFunction1<WriteBatch, T> use) throws Throwable {
-        try (var wb = new WriteBatch()) {
-            for (var token : tokens) {
-                writeToBatch(wb, token);
+    private static Map<String, Set<String>> termsByNamespace(List<DocumentWithTokens> d) {
+        var terms = new HashMap<String, Set<String>>();
+        for (DocumentWithTokens doc : d) {
+            var nsTerms = terms.computeIfAbsent(doc.doc().namespaceId(), k -> new HashSet<>());
+            for (Token token : doc.tokens()) {
+                nsTerms.add(token.value());
+            }
+        }
+        return terms;
+    }
+
+    // surfacesByNamespace are the words of the batch as written, which prefix queries also
+    // match, by namespace.
+    private static Map<String, Set<String>> surfacesByNamespace(List<DocumentWithTokens> d) {
+        var surfaces = new HashMap<String, Set<String>>();
+        for (DocumentWithTokens doc : d) {
+            surfaces.computeIfAbsent(doc.doc().namespaceId(), k -> new HashSet<>()).addAll(doc.surfaces().keySet());
+        }
+        return surfaces;
+    }
+
+    // recordLanguages records the language of each document of the batch for its namespace,
+    // and the words that stemmed to something else with the ids of their stems. Returns the
+    // namespaces that gained a language.
+    static Set<String> recordLanguages(List<DocumentWithTokens> d, TermIds.Batch ids) throws RocksDBException {
+        var relanguaged = new HashSet<String>();
+        for (DocumentWithTokens doc : d) {
+            var ns = ids.namespace(doc.doc().namespaceId());
+            if (ids.language(ns, doc.language())) {
+                relanguaged.add(doc.doc().namespaceId());
+            }
+            for (var e : doc.surfaces().entrySet()) {
+                ids.surface(e.getKey(), ids.term(e.getValue()));
             }
-            return use.apply(wb);
         }
+        return relanguaged;
     }
 
+    // preparePositions produces one positions entry per (token, document) in the batch.
+    // Entries are put rather than merged, so indexing a document again replaces its positions.
+    static List<InsertionToken> preparePositions(List<DocumentWithTokens> d, Map<String, Integer> ordinals, TermIds.Batch ids) throws RocksDBException {
+        var inserts = new ArrayList<InsertionToken>();
+        for (DocumentWithTokens doc : d) {
+            var ns = ids.namespace(doc.doc().namespaceId());
+            int ordinal = ordinals.get(doc.doc().docId());
+
+            var byToken = new HashMap<String, List<Integer>>();
+            for (Token token : doc.tokens()) {
+                byToken.computeIfAbsent(token.value(), k -> new ArrayList<>()).addAll(token.positions());
+            }
+            for (var e : byToken.entrySet()) {
+                var termKey = TermIds.postingKey(ns, ids.term(e.getKey()));
+                inserts.add(new InsertionToken(positionKey(termKey, ordinal), Positions.encode(e.getValue())));
+            }
+        }
+        Collections.sort(inserts);
+        return inserts;
+    }
 
     @Override
     public void close() throws Exception {
         executor.shutdown();
         executor.awaitTermination(10, TimeUnit.SECONDS);
+        synchronized (writeLock) {
+            termDictionaries.persistAll(writeOptions);
+            // without a WAL, unflushed batches only live in the memtables
+            if (writeOptions.disableWAL()) {
+                try (var flushOptions = new FlushOptions().setWaitForFlush(true)) {
+                    rocksDB.flush(flushOptions, handles);
+                }
+            }
+        }
+        writeOptions.close();
+        for (var handle : handles) {
+            handle.close();
+        }
         rocksDB.close();
     }
 }
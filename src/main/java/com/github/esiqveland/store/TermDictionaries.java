@@ -0,0 +1,191 @@
+package com.github.esiqveland.store;
+
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Slice;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// TermDictionaries keeps a TermDictionary per namespace, persisted in its own column family.
+//
+// The key `ns` holds the last built dictionary. Terms added since then are kept in memory
+// and written as `ns|term` keys, so a restart recovers them without scanning the postings.
+// Once enough terms are pending the dictionary is rebuilt, persisted and the pending keys
+// are dropped.
+final class TermDictionaries {
+    // rebuild a namespace dictionary once this many terms are pending
+    static final int REBUILD_THRESHOLD = 10_000;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private final RocksDB rocksDB;
+    private final ColumnFamilyHandle cf;
+    private final ConcurrentHashMap<String, Entry> byNamespace = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        volatile TermDictionary dictionary;
+        final ConcurrentSkipListSet<String> pending = new ConcurrentSkipListSet<>();
+
+        Entry(TermDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+    }
+
+    TermDictionaries(RocksDB rocksDB, ColumnFamilyHandle cf) {
+        this.rocksDB = rocksDB;
+        this.cf = cf;
+    }
+
+    // batch records terms within a write batch. Must be used by a single writer at a time.
+    Batch batch(WriteBatch wb) {
+        return new Batch(wb);
+    }
+
+    private record Rebuild(TermDictionary dictionary, List<String> merged) {
+    }
+
+    // Batch records the new terms of namespaces in a write batch, and rebuilds the
+    // dictionaries with enough pending terms. The dictionaries in memory only change once
+    // the batch is written, so a failed write leaves them as they were.
+    final class Batch {
+        private final WriteBatch wb;
+        // terms pending since the last rebuild in this batch, by namespace
+        private final Map<String, Set<String>> added = new HashMap<>();
+        private final Map<String, Rebuild> rebuilt = new HashMap<>();
+
+        private Batch(WriteBatch wb) {
+            this.wb = wb;
+        }
+
+        // add records the terms of a namespace.
+        void add(String namespaceId, Collection<String> terms) throws RocksDBException {
+            var entry = entry(namespaceId);
+            var rebuild = rebuilt.get(namespaceId);
+            var added = this.added.computeIfAbsent(namespaceId, k -> new HashSet<>());
+
+            for (var term : terms) {
+                var known = rebuild != null
+                        ? rebuild.dictionary().contains(term)
+                        : entry.pending.contains(term) || entry.dictionary.contains(term);
+                if (known || !added.add(term)) {
+                    continue;
+                }
+                wb.put(cf, pendingKey(namespaceId, term), EMPTY_VALUE);
+            }
+            int pending = (rebuild != null ? 0 : entry.pending.size()) + added.size();
+            if (pending >= REBUILD_THRESHOLD) {
+                rebuild(namespaceId);
+            }
+        }
+
+        // rebuild merges the pending terms of the namespace into its dictionary. The
+        // pending keys are deleted after any put of them earlier in the same batch.
+        void rebuild(String namespaceId) throws RocksDBException {
+            var entry = entry(namespaceId);
+            var previous = rebuilt.get(namespaceId);
+            var additions = new ArrayList<>(added.getOrDefault(namespaceId, Set.of()));
+            if (previous == null) {
+                additions.addAll(entry.pending);
+            }
+            Collections.sort(additions);
+            var base = previous != null ? previous.dictionary() : entry.dictionary;
+            var dictionary = base.merge(additions);
+
+            var from = pendingKey(namespaceId, "");
+            wb.put(cf, namespaceId.getBytes(UTF_8), dictionary.toBytes());
+            wb.deleteRange(cf, from, SearchIndexStore.prefixUpperBound(from));
+
+            var merged = new ArrayList<>(previous != null ? previous.merged() : List.of());
+            merged.addAll(additions);
+            rebuilt.put(namespaceId, new Rebuild(dictionary, merged));
+            added.remove(namespaceId);
+        }
+
+        // written applies the batch to the dictionaries in memory. Call after the batch is
+        // written.
+        void written() {
+            rebuilt.forEach((namespaceId, rebuild) -> {
+                var entry = entry(namespaceId);
+                entry.dictionary = rebuild.dictionary();
+                entry.pending.removeAll(rebuild.merged());
+            });
+            added.forEach((namespaceId, terms) -> entry(namespaceId).pending.addAll(terms));
+        }
+    }
+
+    // fuzzy returns up to limit terms of the namespace within maxEdits of term, closest first.
+    List<TermDictionary.FuzzyMatch> fuzzy(String namespaceId, String term, int maxEdits, int limit) {
+        var entry = entry(namespaceId);
+        var matches = new ArrayList<>(entry.dictionary.fuzzy(term, maxEdits, limit));
+        for (var pending : entry.pending) {
+            if (Math.abs(pending.length() - term.length()) > maxEdits) {
+                continue;
+            }
+            int distance = TermDictionary.distance(pending, term);
+            if (distance <= maxEdits) {
+                matches.add(new TermDictionary.FuzzyMatch(pending, distance));
+            }
+        }
+        matches.sort(Comparator.comparingInt(TermDictionary.FuzzyMatch::distance).thenComparing(TermDictionary.FuzzyMatch::term));
+        return matches.size() > limit ? List.copyOf(matches.subList(0, limit)) : matches;
+    }
+
+    // persistAll rebuilds every namespace dictionary that has pending terms.
+    void persistAll(WriteOptions wOpts) throws RocksDBException {
+        try (var wb = new WriteBatch()) {
+            var batch = batch(wb);
+            for (var e : byNamespace.entrySet()) {
+                if (!e.getValue().pending.isEmpty()) {
+                    batch.rebuild(e.getKey());
+                }
+            }
+            rocksDB.write(wOpts, wb);
+            batch.written();
+        }
+    }
+
+    private Entry entry(String namespaceId) {
+        return byNamespace.computeIfAbsent(namespaceId, this::load);
+    }
+
+    private Entry load(String namespaceId) {
+        try {
+            var raw = rocksDB.get(cf, namespaceId.getBytes(UTF_8));
+            var entry = new Entry(raw == null ? TermDictionary.EMPTY : TermDictionary.fromBytes(raw));
+
+            var from = pendingKey(namespaceId, "");
+            try (var upper = new Slice(SearchIndexStore.prefixUpperBound(from));
+                 var opts = new ReadOptions().setIterateUpperBound(upper);
+                 var it = rocksDB.newIterator(cf, opts)) {
+                for (it.seek(from); it.isValid(); it.next()) {
+                    var key = it.key();
+                    entry.pending.add(new String(key, from.length, key.length - from.length, UTF_8));
+                }
+                it.status();
+            }
+            return entry;
+        } catch (RocksDBException e) {
+            throw new RuntimeException("[TermDictionaries] error loading ns=" + namespaceId, e);
+        }
+    }
+
+    private static byte[] pendingKey(String namespaceId, String term) {
+        return (namespaceId + "|" + term).getBytes(UTF_8);
+    }
+}
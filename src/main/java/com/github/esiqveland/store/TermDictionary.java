@@ -0,0 +1,316 @@
+package com.github.esiqveland.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// TermDictionary is an immutable, sorted set of the tokens of one namespace.
+//
+// Terms are front coded into a single char array, so terms sharing a prefix store it once:
+//
+//   entry := char(shared) char(suffixLength) char(suffix)*
+//
+// Every RESTART_INTERVAL entries a restart entry stores its term in full (shared = 0), which
+// lets contains() binary search the restarts and scan at most RESTART_INTERVAL entries.
+//
+// fuzzy() walks the entries in order as a trie, simulating a Levenshtein automaton with
+// one edit distance row per term character. Rows for a shared prefix are reused, and once
+// a prefix can no longer be within maxEdits all following terms sharing it are skipped.
+public final class TermDictionary implements Iterable<String> {
+    static final int RESTART_INTERVAL = 16;
+
+    public static final TermDictionary EMPTY = new TermDictionary(new char[0], 0, new int[0]);
+
+    private final char[] data;
+    private final int size;
+    private final int[] restarts;
+
+    private TermDictionary(char[] data, int size, int[] restarts) {
+        this.data = data;
+        this.size = size;
+        this.restarts = restarts;
+    }
+
+    public record FuzzyMatch(String term, int distance) {
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // of builds a dictionary from terms in ascending order, dropping duplicates.
+    public static TermDictionary of(Iterator<String> sortedTerms) {
+        var data = new CharArray(1024);
+        var restarts = new ArrayList<Integer>();
+        String prev = null;
+        int size = 0;
+
+        while (sortedTerms.hasNext()) {
+            var term = sortedTerms.next();
+            if (term.equals(prev)) {
+                continue;
+            }
+            if (term.length() > Character.MAX_VALUE) {
+                throw new IllegalArgumentException("term too long length=" + term.length());
+            }
+
+            int shared = 0;
+            if (size % RESTART_INTERVAL == 0) {
+                restarts.add(data.length);
+            } else {
+                int max = Math.min(prev.length(), term.length());
+                while (shared < max && prev.charAt(shared) == term.charAt(shared)) {
+                    shared++;
+                }
+            }
+            data.add((char) shared);
+            data.add((char) (term.length() - shared));
+            data.add(term, shared);
+
+            prev = term;
+            size++;
+        }
+        return new TermDictionary(data.toArray(), size, restarts.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    // merge returns a new dictionary containing the terms of this dictionary and additions.
+    public TermDictionary merge(List<String> sortedAdditions) {
+        if (sortedAdditions.isEmpty()) {
+            return this;
+        }
+        var a = this.iterator();
+        var b = sortedAdditions.iterator();
+
+        return of(new Iterator<>() {
+            String nextA = a.hasNext() ? a.next() : null;
+            String nextB = b.hasNext() ? b.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return nextA != null || nextB != null;
+            }
+
+            @Override
+            public String next() {
+                String out;
+                if (nextB == null || (nextA != null && nextA.compareTo(nextB) <= 0)) {
+                    out = nextA;
+                    nextA = a.hasNext() ? a.next() : null;
+                } else {
+                    out = nextB;
+                    nextB = b.hasNext() ? b.next() : null;
+                }
+                return out;
+            }
+        });
+    }
+
+    public boolean contains(String term) {
+        if (size == 0) {
+            return false;
+        }
+        // find the last restart whose term is <= term
+        int lo = 0, hi = restarts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (restartTerm(mid).compareTo(term) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        var current = new StringBuilder();
+        int pos = restarts[lo];
+        int end = lo + 1 < restarts.length ? restarts[lo + 1] : data.length;
+        while (pos < end) {
+            int shared = data[pos];
+            int suffix = data[pos + 1];
+            current.setLength(shared);
+            current.append(data, pos + 2, suffix);
+            pos += 2 + suffix;
+
+            int cmp = current.toString().compareTo(term);
+            if (cmp == 0) {
+                return true;
+            } else if (cmp > 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private String restartTerm(int restart) {
+        int pos = restarts[restart];
+        return new String(data, pos + 2, data[pos + 1]);
+    }
+
+    // fuzzy returns up to limit terms within maxEdits of term, closest first.
+    public List<FuzzyMatch> fuzzy(String term, int maxEdits, int limit) {
+        var matches = new ArrayList<FuzzyMatch>();
+        int n = term.length();
+
+        char[] current = new char[Math.max(16, n + maxEdits + 1)];
+        int[][] rows = new int[current.length + 1][];
+        rows[0] = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            rows[0][j] = j;
+        }
+
+        int pruneDepth = Integer.MAX_VALUE;
+        int pos = 0;
+        while (pos < data.length) {
+            int shared = data[pos];
+            int suffix = data[pos + 1];
+            int suffixStart = pos + 2;
+            pos = suffixStart + suffix;
+
+            // every term sharing the pruned prefix is too far away
+            if (shared >= pruneDepth) {
+                continue;
+            }
+            pruneDepth = Integer.MAX_VALUE;
+
+            int length = shared + suffix;
+            if (length >= current.length) {
+                current = Arrays.copyOf(current, length * 2);
+                rows = Arrays.copyOf(rows, current.length + 1);
+            }
+
+            boolean pruned = false;
+            for (int d = shared + 1; d <= length; d++) {
+                char c = data[suffixStart + d - shared - 1];
+                current[d - 1] = c;
+                if (rows[d] == null) {
+                    rows[d] = new int[n + 1];
+                }
+                if (nextRow(rows[d - 1], rows[d], term, c, d) > maxEdits) {
+                    pruneDepth = d;
+                    pruned = true;
+                    break;
+                }
+            }
+            if (!pruned && rows[length][n] <= maxEdits) {
+                matches.add(new FuzzyMatch(new String(current, 0, length), rows[length][n]));
+            }
+        }
+
+        matches.sort(Comparator.comparingInt(FuzzyMatch::distance).thenComparing(FuzzyMatch::term));
+        return matches.size() > limit ? List.copyOf(matches.subList(0, limit)) : matches;
+    }
+
+    // nextRow computes the edit distance row for the term prefix ending in c at depth d and
+    // returns the row minimum.
+    private static int nextRow(int[] prev, int[] row, String query, char c, int d) {
+        row[0] = d;
+        int min = d;
+        for (int j = 1; j < row.length; j++) {
+            int cost = query.charAt(j - 1) == c ? 0 : 1;
+            int value = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+            row[j] = value;
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    // distance returns the edit distance between a and b.
+    public static int distance(String a, String b) {
+        int[] prev = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            nextRow(prev, row, b, a.charAt(i - 1), i);
+            var tmp = prev;
+            prev = row;
+            row = tmp;
+        }
+        return prev[b.length()];
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private final StringBuilder current = new StringBuilder();
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < data.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int shared = data[pos];
+                int suffix = data[pos + 1];
+                current.setLength(shared);
+                current.append(data, pos + 2, suffix);
+                pos += 2 + suffix;
+                return current.toString();
+            }
+        };
+    }
+
+    public byte[] toBytes() {
+        var buf = ByteBuffer.allocate(4 + data.length * 2);
+        buf.putInt(size);
+        buf.asCharBuffer().put(data);
+        return buf.array();
+    }
+
+    public static TermDictionary fromBytes(byte[] bytes) {
+        var buf = ByteBuffer.wrap(bytes);
+        int size = buf.getInt();
+        var data = new char[buf.remaining() / 2];
+        buf.asCharBuffer().get(data);
+
+        int[] restarts = new int[(size + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        int pos = 0;
+        for (int i = 0; i < size; i++) {
+            if (i % RESTART_INTERVAL == 0) {
+                restarts[i / RESTART_INTERVAL] = pos;
+            }
+            pos += 2 + data[pos + 1];
+        }
+        return new TermDictionary(data, size, restarts);
+    }
+
+    private static final class CharArray {
+        private char[] chars;
+        private int length = 0;
+
+        CharArray(int capacity) {
+            this.chars = new char[capacity];
+        }
+
+        void add(char c) {
+            ensure(1);
+            chars[length++] = c;
+        }
+
+        void add(String s, int from) {
+            int n = s.length() - from;
+            ensure(n);
+            s.getChars(from, s.length(), chars, length);
+            length += n;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + extra));
+            }
+        }
+
+        char[] toArray() {
+            return Arrays.copyOf(chars, length);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.esiqveland.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.WriteBatch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// TermIds assigns compact integer ids to terms and namespaces, persisted in their own column
+// family, so posting keys are a fixed width (namespace id, term id) instead of the namespace
+// uuid and the term:
+//
+//   't' term       -> term id         'i' term id       -> term
+//   'n' namespace  -> namespace id    'm' namespace id  -> namespace
+//   'l' namespace id, language        's' surface, 0, term id
+//
+// Term ids are global, so a term shared by namespaces is stored once. Ids are never reused
+// or changed once assigned, so they are read without a snapshot. Lookups go through an
+// in-memory cache of term -> id.
+//
+// Terms are stems. The languages a namespace was stemmed in tell which stems a query word
+// can have there, and the surfaces map the words as written to their stems, so a word can
+// be completed as it is typed.
+final class TermIds {
+    static final int UNKNOWN = -1;
+
+    // term ids kept in memory
+    static final int TERM_CACHE_SIZE = 1 << 20;
+
+    private static final byte TERM = 't';
+    private static final byte TERM_ID = 'i';
+    private static final byte NAMESPACE = 'n';
+    private static final byte NAMESPACE_ID = 'm';
+    private static final byte LANGUAGE = 'l';
+    private static final byte SURFACE = 's';
+
+    private final RocksDB rocksDB;
+    private final ColumnFamilyHandle cf;
+    private final Cache<String, Integer> terms = CacheBuilder.newBuilder()
+            .maximumSize(TERM_CACHE_SIZE)
+            .build();
+    private final ConcurrentHashMap<String, Integer> namespaces = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> languages = new ConcurrentHashMap<>();
+    // surface keys known to be written
+    private final Cache<ByteBuffer, Boolean> surfaces = CacheBuilder.newBuilder()
+            .maximumSize(TERM_CACHE_SIZE)
+            .build();
+    // next ids to assign. Guarded by the single writer.
+    private int nextTerm;
+    private int nextNamespace;
+
+    TermIds(RocksDB rocksDB, ColumnFamilyHandle cf) {
+        this.rocksDB = rocksDB;
+        this.cf = cf;
+        this.nextTerm = lastId(TERM_ID) + 1;
+        this.nextNamespace = lastId(NAMESPACE_ID) + 1;
+    }
+
+    // postingKey is the big-endian namespace id followed by the big-endian term id.
+    static byte[] postingKey(int namespaceId, int termId) {
+        return Longs.toByteArray(packed(namespaceId, termId));
+    }
+
+    // packed is the posting key as a long, which orders like the key.
+    static long packed(int namespaceId, int termId) {
+        return ((long) namespaceId << 32) | (termId & 0xFFFFFFFFL);
+    }
+
+    // term returns the id of term, or UNKNOWN if it was never indexed.
+    int term(String term) throws RocksDBException {
+        var id = terms.getIfPresent(term);
+        if (id != null) {
+            return id;
+        }
+        var raw = rocksDB.get(cf, key(TERM, term));
+        if (raw == null) {
+            return UNKNOWN;
+        }
+        id = Ints.fromByteArray(raw);
+        terms.put(term, id);
+        return id;
+    }
+
+    // namespace returns the id of namespaceId, or UNKNOWN if nothing was indexed in it.
+    int namespace(String namespaceId) throws RocksDBException {
+        var id = namespaces.get(namespaceId);
+        if (id != null) {
+            return id;
+        }
+        var raw = rocksDB.get(cf, key(NAMESPACE, namespaceId));
+        if (raw == null) {
+            return UNKNOWN;
+        }
+        id = Ints.fromByteArray(raw);
+        namespaces.put(namespaceId, id);
+        return id;
+    }
+
+    // languages returns the languages the documents of a namespace were stemmed in.
+    Set<String> languages(int namespaceId) throws RocksDBException {
+        var cached = languages.get(namespaceId);
+        if (cached != null) {
+            return cached;
+        }
+        var prefix = idKey(LANGUAGE, namespaceId);
+        var result = new HashSet<String>();
+        try (var upper = new Slice(SearchIndexStore.prefixUpperBound(prefix));
+             var opts = new ReadOptions().setIterateUpperBound(upper);
+             var it = rocksDB.newIterator(cf, opts)) {
+            for (it.seek(prefix); it.isValid(); it.next()) {
+                var key = it.key();
+                result.add(new String(key, prefix.length, key.length - prefix.length, UTF_8));
+            }
+            it.status();
+        }
+        var loaded = Set.copyOf(result);
+        var raced = languages.putIfAbsent(namespaceId, loaded);
+        return raced != null ? raced : loaded;
+    }
+
+    // scanPrefix scans the ids of the terms starting with prefix, in term order, then the ids
+    // of the stems of the words as written starting with it, in word order. Terms of every
+    // namespace are included.
+    PrefixScan scanPrefix(String prefix) {
+        return new PrefixScan(prefix);
+    }
+
+    // PrefixScan reads the ids of a prefix a page at a time, so callers filtering them can
+    // read on until they found enough. Ids may repeat.
+    final class PrefixScan implements AutoCloseable {
+        private final String prefix;
+        private final byte[] surfaces;
+        private Slice upper;
+        private ReadOptions opts;
+        private RocksIterator it;
+        private boolean scanningSurfaces;
+
+        private PrefixScan(String prefix) {
+            this.prefix = prefix;
+            this.surfaces = key(SURFACE, prefix);
+            open(key(TERM, prefix));
+        }
+
+        private void open(byte[] start) {
+            upper = new Slice(SearchIndexStore.prefixUpperBound(start));
+            opts = new ReadOptions().setIterateUpperBound(upper);
+            it = rocksDB.newIterator(cf, opts);
+            it.seek(start);
+        }
+
+        // next returns up to limit more ids, and an empty list once the scan is done.
+        List<Integer> next(int limit) throws RocksDBException {
+            var result = new ArrayList<Integer>(limit);
+            while (result.size() < limit) {
+                if (!it.isValid()) {
+                    it.status();
+                    if (scanningSurfaces) {
+                        break;
+                    }
+                    close();
+                    open(surfaces);
+                    scanningSurfaces = true;
+                    continue;
+                }
+                if (scanningSurfaces) {
+                    var key = it.key();
+                    result.add(Ints.fromBytes(key[key.length - 4], key[key.length - 3], key[key.length - 2], key[key.length - 1]));
+                } else {
+                    result.add(Ints.fromByteArray(it.value()));
+                }
+                it.next();
+            }
+            return result;
+        }
+
+        @Override
+        public void close() {
+            it.close();
+            opts.close();
+            upper.close();
+        }
+
+        @Override
+        public String toString() {
+            return "PrefixScan[" + prefix + "]";
+        }
+    }
+
+    // batch assigns ids within a write batch. Must be used by a single writer at a time.
+    Batch batch(WriteBatch wb) {
+        return new Batch(wb);
+    }
+
+    // Batch assigns ids to the new terms and namespaces of a write batch. They are only
+    // cached once the batch is written, so a failed write leaves no ids behind but a gap.
+    final class Batch {
+        private final WriteBatch wb;
+        private final Map<String, Integer> assignedTerms = new HashMap<>();
+        private final Map<String, Integer> assignedNamespaces = new HashMap<>();
+        private final Map<Integer, Set<String>> addedLanguages = new HashMap<>();
+        private final List<ByteBuffer> addedSurfaces = new ArrayList<>();
+
+        private Batch(WriteBatch wb) {
+            this.wb = wb;
+        }
+
+        int term(String term) throws RocksDBException {
+            var id = assignedTerms.get(term);
+            if (id != null) {
+                return id;
+            }
+            int existing = TermIds.this.term(term);
+            if (existing != UNKNOWN) {
+                return existing;
+            }
+            int assigned = nextTerm++;
+            wb.put(cf, key(TERM, term), Ints.toByteArray(assigned));
+            wb.put(cf, idKey(TERM_ID, assigned), term.getBytes(UTF_8));
+            assignedTerms.put(term, assigned);
+            return assigned;
+        }
+
+        int namespace(String namespaceId) throws RocksDBException {
+            var id = assignedNamespaces.get(namespaceId);
+            if (id != null) {
+                return id;
+            }
+            int existing = TermIds.this.namespace(namespaceId);
+            if (existing != UNKNOWN) {
+                return existing;
+            }
+            int assigned = nextNamespace++;
+            wb.put(cf, key(NAMESPACE, namespaceId), Ints.toByteArray(assigned));
+            wb.put(cf, idKey(NAMESPACE_ID, assigned), namespaceId.getBytes(UTF_8));
+            assignedNamespaces.put(namespaceId, assigned);
+            return assigned;
+        }
+
+        // language records that the namespace has documents stemmed in language, and
+        // returns true if it had none before.
+        boolean language(int namespaceId, String language) throws RocksDBException {
+            if (languages(namespaceId).contains(language)) {
+                return false;
+            }
+            if (!addedLanguages.computeIfAbsent(namespaceId, k -> new HashSet<>()).add(language)) {
+                return false;
+            }
+            wb.put(cf, Bytes.concat(idKey(LANGUAGE, namespaceId), language.getBytes(UTF_8)), new byte[0]);
+            return true;
+        }
+
+        // surface records that the word surface, as written, stems to the term termId.
+        void surface(String surface, int termId) throws RocksDBException {
+            var key = Bytes.concat(key(SURFACE, surface), new byte[]{0}, Ints.toByteArray(termId));
+            var known = ByteBuffer.wrap(key);
+            if (surfaces.getIfPresent(known) != null) {
+                return;
+            }
+            // putting a surface again is harmless, so it is not read first
+            wb.put(cf, key, new byte[0]);
+            addedSurfaces.add(known);
+        }
+
+        // written caches the ids assigned in the batch. Call after the batch is written.
+        void written() {
+            terms.putAll(assignedTerms);
+            namespaces.putAll(assignedNamespaces);
+            addedLanguages.forEach((ns, added) -> languages.compute(ns, (k, current) -> {
+                var merged = new HashSet<>(added);
+                if (current != null) {
+                    merged.addAll(current);
+                }
+                return Set.copyOf(merged);
+            }));
+            addedSurfaces.forEach(key -> surfaces.put(key, Boolean.TRUE));
+        }
+    }
+
+    // lastId returns the highest id of a kind, or -1 if none was assigned yet.
+    private int lastId(byte kind) {
+        try (var it = rocksDB.newIterator(cf)) {
+            it.seekForPrev(idKey(kind, -1));
+            if (!it.isValid() || it.key()[0] != kind) {
+                return -1;
+            }
+            return Ints.fromBytes(it.key()[1], it.key()[2], it.key()[3], it.key()[4]);
+        }
+    }
+
+    private static byte[] key(byte kind, String name) {
+        return Bytes.concat(new byte[]{kind}, name.getBytes(UTF_8));
+    }
+
+    private static byte[] idKey(byte kind, int id) {
+        return Bytes.concat(new byte[]{kind}, Ints.toByteArray(id));
+    }
+}
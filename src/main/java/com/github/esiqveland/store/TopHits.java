@@ -0,0 +1,48 @@
+package com.github.esiqveland.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// TopHits collects the k highest scoring documents in a min-heap, so the lowest score
+// that can still enter the result is always at the head.
+final class TopHits {
+    record ScoredDoc(int ordinal, float score, String token) {
+    }
+
+    private static final Comparator<ScoredDoc> BY_SCORE = Comparator.comparingDouble(ScoredDoc::score);
+
+    private final int k;
+    private final PriorityQueue<ScoredDoc> heap;
+
+    TopHits(int k) {
+        this.k = k;
+        this.heap = new PriorityQueue<>(Math.max(k, 1), BY_SCORE);
+    }
+
+    void offer(int ordinal, float score, String token) {
+        if (heap.size() < k) {
+            heap.add(new ScoredDoc(ordinal, score, token));
+        } else if (k > 0 && score > heap.peek().score()) {
+            heap.poll();
+            heap.add(new ScoredDoc(ordinal, score, token));
+        }
+    }
+
+    boolean isFull() {
+        return heap.size() >= k;
+    }
+
+    // threshold is the score a document has to beat to enter a full heap.
+    float threshold() {
+        return isFull() && k > 0 ? heap.peek().score() : Float.NEGATIVE_INFINITY;
+    }
+
+    // sorted returns the collected documents, best first.
+    List<ScoredDoc> sorted() {
+        var docs = new ArrayList<>(heap);
+        docs.sort(BY_SCORE.reversed());
+        return docs;
+    }
+}
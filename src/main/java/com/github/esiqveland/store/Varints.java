@@ -0,0 +1,30 @@
+package com.github.esiqveland.store;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+// Varints is the LEB128 style variable length encoding used by the binary index values.
+final class Varints {
+    private Varints() {
+    }
+
+    static void write(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int read(ByteBuffer buf) {
+        int b = buf.get();
+        int value = b & 0x7F;
+        int shift = 7;
+        while (b < 0) {
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
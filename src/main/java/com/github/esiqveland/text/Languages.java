@@ -0,0 +1,54 @@
+package com.github.esiqveland.text;
+
+import org.apache.tika.langdetect.optimaize.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+
+import java.util.Locale;
+
+// Languages detects the language of a document, to pick the stemmer for its tokens.
+//
+// Only a bounded prefix of the text is looked at. Text too short or too mixed to be
+// reasonably certain about, such as file names and queries, is taken to be in
+// DEFAULT_LANGUAGE, so short documents and queries are stemmed alike. Text shorter than
+// MIN_DETECT_CHARS is not looked at at all.
+//
+// Each call gets its own detector, as a detector buffers the text it is given. Detectors
+// share the language profiles and the model built from them, which are loaded once.
+public final class Languages {
+    // chars of a text that detection looks at
+    public final static int DETECT_PREFIX_CHARS = 4096;
+    // chars below which text is not detected, too few to be reasonably certain about
+    public final static int MIN_DETECT_CHARS = 64;
+
+    // language of the user, from the locale. Norwegian is "no" whichever written form.
+    public final static String DEFAULT_LANGUAGE = normalize(Locale.getDefault().getLanguage());
+
+    private Languages() {
+    }
+
+    // detect returns the ISO 639-1 code of the language of text.
+    public static String detect(String text) {
+        var length = Math.min(text.length(), DETECT_PREFIX_CHARS);
+        if (length < MIN_DETECT_CHARS) {
+            return DEFAULT_LANGUAGE;
+        }
+        var chars = new char[length];
+        text.getChars(0, length, chars, 0);
+
+        // the default models are built once per JVM, so only the buffer is new per call
+        LanguageDetector detector = new OptimaizeLangDetector().loadModels();
+        detector.addText(chars, 0, length);
+        var result = detector.detect();
+        if (result.isUnknown() || !result.isReasonablyCertain()) {
+            return DEFAULT_LANGUAGE;
+        }
+        return normalize(result.getLanguage());
+    }
+
+    static String normalize(String language) {
+        return switch (language) {
+            case "nb", "nn" -> "no";
+            default -> language;
+        };
+    }
+}
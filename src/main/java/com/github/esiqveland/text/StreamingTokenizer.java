@@ -0,0 +1,358 @@
+package com.github.esiqveland.text;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// StreamingTokenizer splits text into tokens as it is appended, chunk by chunk, so a
+// document never has to be held in memory as a whole. A token is a run of Unicode letters
+// and digits, and the combining marks that follow them, lowercased; a token cut by a chunk
+// boundary, even between the two halves of a surrogate pair, is joined up with the next
+// chunk.
+//
+// Every word takes a position, also the words that are not kept, so phrases match across
+// them. Memory is bounded regardless of document size: at most MAX_TERMS distinct terms
+// and MAX_POSITIONS positions are kept, and later ones are dropped.
+//
+// Text is scanned char by char and lowercased into a reused word buffer, and terms are
+// looked up by their chars in an open addressing table, so no garbage is made per word: a
+// String is only made per distinct term, by finish. Get one with open, which reuses the
+// buffers of tokenizers that were closed before.
+public final class StreamingTokenizer implements AutoCloseable {
+    // shorter words are not indexed
+    public final static int MIN_TOKEN_LENGTH = 3;
+
+    // longer words, such as encoded blobs, are not indexed
+    public final static int MAX_TOKEN_LENGTH = 64;
+
+    // distinct terms kept per document
+    public final static int MAX_TERMS = 1 << 16;
+
+    // positions kept per document, over all terms
+    public final static int MAX_POSITIONS = 1 << 20;
+
+    // closed tokenizers kept for reuse. Parses run on virtual threads, so buffers are pooled
+    // rather than kept per thread.
+    private final static int POOL_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
+    // a tokenizer that grew past this many positions or term chars is not kept for reuse
+    private final static int RETAIN_POSITIONS = 1 << 18;
+    private final static int RETAIN_TERM_CHARS = 1 << 18;
+
+    // lowercase of the ascii letters and digits, 0 for the other ascii chars
+    private final static char[] ASCII_LOWER = new char[0x80];
+
+    static {
+        for (char c = 0; c < 0x80; c++) {
+            if (Character.isLetterOrDigit(c)) {
+                ASCII_LOWER[c] = Character.toLowerCase(c);
+            }
+        }
+    }
+
+    private final static BlockingQueue<StreamingTokenizer> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // the word being scanned, lowercased
+    private final char[] word = new char[MAX_TOKEN_LENGTH];
+    private int wordLength = 0;
+    private int wordHash = 0;
+    private boolean overlong = false;
+    // the high surrogate that ended the last chunk, or 0
+    private char pendingHigh = 0;
+    private final char[] scratch = new char[4096];
+
+    // terms by id: their chars are at termStart in termChars
+    private int terms = 0;
+    private char[] termChars = new char[4096];
+    private int termCharsUsed = 0;
+    private int[] termStart = new int[256];
+    private int[] termLength = new int[256];
+    private int[] termHash = new int[256];
+    private int[] termCount = new int[256];
+    // open addressing table of term id + 1, 0 is free
+    private int[] table = new int[512];
+
+    // term and position of every kept position, in order
+    private int kept = 0;
+    private int[] keptTerm = new int[1024];
+    private int[] keptPosition = new int[1024];
+    private int position = 0;
+
+    // open returns an empty tokenizer. Close it when done to have its buffers reused.
+    public static StreamingTokenizer open() {
+        var tokenizer = pool.poll();
+        return tokenizer != null ? tokenizer : new StreamingTokenizer();
+    }
+
+    public StreamingTokenizer() {
+    }
+
+    public void append(char[] ch, int start, int length) {
+        var end = start + length;
+        var i = start;
+        if (pendingHigh != 0 && i < end) {
+            var high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(ch[i])) {
+                codePoint(Character.toCodePoint(high, ch[i]));
+                i++;
+            } else {
+                endWord();
+            }
+        }
+        while (i < end) {
+            var c = ch[i];
+            if (c < 0x80) {
+                var lower = ASCII_LOWER[c];
+                if (lower == 0) {
+                    endWord();
+                    i++;
+                    continue;
+                }
+                // the rest of a run of ascii letters and digits is scanned in locals
+                var size = wordLength;
+                var hash = wordHash;
+                do {
+                    if (size < MAX_TOKEN_LENGTH) {
+                        word[size++] = lower;
+                        hash = 31 * hash + lower;
+                    } else {
+                        overlong = true;
+                    }
+                    if (++i == end) {
+                        break;
+                    }
+                    c = ch[i];
+                    lower = c < 0x80 ? ASCII_LOWER[c] : 0;
+                } while (lower != 0);
+                wordLength = size;
+                wordHash = hash;
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 == end) {
+                    pendingHigh = c;
+                    i++;
+                } else if (Character.isLowSurrogate(ch[i + 1])) {
+                    codePoint(Character.toCodePoint(c, ch[i + 1]));
+                    i += 2;
+                } else {
+                    endWord();
+                    i++;
+                }
+            } else {
+                codePoint(c);
+                i++;
+            }
+        }
+    }
+
+    public void append(String text) {
+        for (int from = 0; from < text.length(); from += scratch.length) {
+            var to = Math.min(text.length(), from + scratch.length);
+            text.getChars(from, to, scratch, 0);
+            append(scratch, 0, to - from);
+        }
+    }
+
+    // finish ends the last word, and returns the tokens of everything appended. The
+    // tokenizer is empty again afterwards.
+    public List<Tokenizers.Token> finish() {
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            endWord();
+        }
+        endWord();
+
+        // lay the positions out by term, in one array the tokens share
+        var values = new int[kept];
+        var cursor = new int[terms];
+        for (int t = 1; t < terms; t++) {
+            cursor[t] = cursor[t - 1] + termCount[t - 1];
+        }
+        for (int p = 0; p < kept; p++) {
+            values[cursor[keptTerm[p]]++] = keptPosition[p];
+        }
+        var tokens = new ArrayList<Tokenizers.Token>(terms);
+        for (int t = 0; t < terms; t++) {
+            var term = new String(termChars, termStart[t], termLength[t]);
+            tokens.add(new Tokenizers.Token(term, new Positions(values, cursor[t] - termCount[t], termCount[t])));
+        }
+        reset();
+        return tokens;
+    }
+
+    // close returns the tokenizer to the pool, unless it grew too large to keep around.
+    @Override
+    public void close() {
+        reset();
+        if (keptTerm.length <= RETAIN_POSITIONS && termChars.length <= RETAIN_TERM_CHARS) {
+            pool.offer(this);
+        }
+    }
+
+    private void reset() {
+        wordLength = 0;
+        wordHash = 0;
+        overlong = false;
+        pendingHigh = 0;
+        Arrays.fill(table, 0);
+        terms = 0;
+        termCharsUsed = 0;
+        kept = 0;
+        position = 0;
+    }
+
+    private void codePoint(int cp) {
+        if (Character.isLetterOrDigit(cp)) {
+            cp = Character.toLowerCase(cp);
+        } else if (wordLength == 0 || !isMark(cp)) {
+            endWord();
+            return;
+        }
+        if (Character.isBmpCodePoint(cp)) {
+            push((char) cp);
+        } else {
+            push(Character.highSurrogate(cp));
+            push(Character.lowSurrogate(cp));
+        }
+    }
+
+    // isMark tells whether cp is a combining mark, such as the ring of a decomposed å.
+    private static boolean isMark(int cp) {
+        var type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK
+                || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
+
+    private void push(char c) {
+        if (wordLength == MAX_TOKEN_LENGTH) {
+            overlong = true;
+            return;
+        }
+        word[wordLength++] = c;
+        wordHash = 31 * wordHash + c;
+    }
+
+    private void endWord() {
+        if (wordLength == 0) {
+            return;
+        }
+        if (!overlong && wordLength >= MIN_TOKEN_LENGTH && kept < MAX_POSITIONS) {
+            var term = termOf();
+            if (term >= 0) {
+                keep(term);
+            }
+        }
+        position++;
+        wordLength = 0;
+        wordHash = 0;
+        overlong = false;
+    }
+
+    // termOf returns the id of the current word, adding it as a term if there is room.
+    // Returns -1 if there is not.
+    private int termOf() {
+        var mask = table.length - 1;
+        var slot = spread(wordHash) & mask;
+        while (table[slot] != 0) {
+            var t = table[slot] - 1;
+            if (termHash[t] == wordHash && termLength[t] == wordLength && sameChars(termStart[t])) {
+                return t;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (terms == MAX_TERMS) {
+            return -1;
+        }
+        if (terms == termStart.length) {
+            var size = 2 * terms;
+            termStart = Arrays.copyOf(termStart, size);
+            termLength = Arrays.copyOf(termLength, size);
+            termHash = Arrays.copyOf(termHash, size);
+            termCount = Arrays.copyOf(termCount, size);
+        }
+        if (termCharsUsed + wordLength > termChars.length) {
+            termChars = Arrays.copyOf(termChars, Math.max(2 * termChars.length, termCharsUsed + wordLength));
+        }
+        var t = terms++;
+        System.arraycopy(word, 0, termChars, termCharsUsed, wordLength);
+        termStart[t] = termCharsUsed;
+        termLength[t] = wordLength;
+        termHash[t] = wordHash;
+        termCount[t] = 0;
+        termCharsUsed += wordLength;
+        table[slot] = t + 1;
+        if (2 * terms > table.length) {
+            rehash(2 * table.length);
+        }
+        return t;
+    }
+
+    private boolean sameChars(int start) {
+        for (int i = 0; i < wordLength; i++) {
+            if (termChars[start + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        var mask = size - 1;
+        for (int t = 0; t < terms; t++) {
+            var slot = spread(termHash[t]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = t + 1;
+        }
+    }
+
+    private static int spread(int hash) {
+        var h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void keep(int term) {
+        if (kept == keptTerm.length) {
+            var size = Math.min(MAX_POSITIONS, 2 * kept);
+            keptTerm = Arrays.copyOf(keptTerm, size);
+            keptPosition = Arrays.copyOf(keptPosition, size);
+        }
+        keptTerm[kept] = term;
+        keptPosition[kept] = position;
+        kept++;
+        termCount[term]++;
+    }
+
+    // Positions are the positions of a term, a slice of an array shared by all tokens of a
+    // document.
+    private static final class Positions extends AbstractList<Integer> implements RandomAccess {
+        private final int[] values;
+        private final int from;
+        private final int size;
+
+        Positions(int[] values, int from, int size) {
+            this.values = values;
+            this.from = from;
+            this.size = size;
+        }
+
+        @Override
+        public Integer get(int index) {
+            Objects.checkIndex(index, size);
+            return values[from + index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -4,17 +4,25 @@ import com.github.esiqveland.types.Documents;
 import io.netty.util.internal.StringUtil;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.function.Function;
 
 public class TextTokenizer {
     private final Tokenizers.TextStemmer textStemmer = new Tokenizers.TextStemmer();
-    private final Tokenizers.Tokenizer tokenizer = Tokenizers.SillyTokenizer.create();
+    private final Tokenizers.Tokenizer tokenizer = Tokenizers.WordTokenizer.create();
 
     // TODO: implement tokenizer
     public Documents.DocumentWithTokens tokenize(Documents.IndexDocument doc, String textBody) {
-        var stemmedTokens = textStemmer.stemTokens(tokenizer.textToTokens(textBody));
-        return new Documents.DocumentWithTokens(doc, stemmedTokens);
+        return tokenize(doc, tokenizer.textToTokens(textBody), Languages.DEFAULT_LANGUAGE);
+    }
+
+    // tokenize takes the tokens of a document that was tokenized while it was parsed, and
+    // stems them in the language of the document.
+    public Documents.DocumentWithTokens tokenize(Documents.IndexDocument doc, List<Tokenizers.Token> tokens, String language) {
+        var surfaces = new HashMap<String, String>();
+        var stemmed = textStemmer.stemTokens(tokens, language, surfaces);
+        return new Documents.DocumentWithTokens(doc, stemmed, language, surfaces);
     }
 
     public Documents.DocumentWithTokens tokenize(
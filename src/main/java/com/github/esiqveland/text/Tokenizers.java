@@ -1,34 +1,108 @@
 package com.github.esiqveland.text;
 
-import java.util.Arrays;
+import org.tartarus.snowball.SnowballStemmer;
+import org.tartarus.snowball.ext.danishStemmer;
+import org.tartarus.snowball.ext.dutchStemmer;
+import org.tartarus.snowball.ext.englishStemmer;
+import org.tartarus.snowball.ext.finnishStemmer;
+import org.tartarus.snowball.ext.frenchStemmer;
+import org.tartarus.snowball.ext.germanStemmer;
+import org.tartarus.snowball.ext.hungarianStemmer;
+import org.tartarus.snowball.ext.italianStemmer;
+import org.tartarus.snowball.ext.norwegianStemmer;
+import org.tartarus.snowball.ext.portugueseStemmer;
+import org.tartarus.snowball.ext.romanianStemmer;
+import org.tartarus.snowball.ext.russianStemmer;
+import org.tartarus.snowball.ext.spanishStemmer;
+import org.tartarus.snowball.ext.swedishStemmer;
+import org.tartarus.snowball.ext.turkishStemmer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.function.Predicate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.function.Supplier;
 
 public class Tokenizers {
 
     public record Token(String value, List<Integer> positions) {
-        public String toIndexKey(String namespaceId) {
-            return createTokenKey(this, namespaceId);
-        }
-        public static String createTokenKey(Token t, String namespaceId) {
-            return createTokenKey(t.value(), namespaceId);
-        }
-        public static String createTokenKey(String tokenValue, String namespaceId) {
-            return namespaceId + "|" + tokenValue;
-        }
     }
 
     public record TokenizeResponse(List<Token> tokens) {
     }
 
+    // TextStemmer reduces tokens to their Snowball stem in the language of their document,
+    // so inflections of a word share one term. Tokens that stem alike are merged. Tokens of
+    // a language without a stemmer are kept as they are.
     public static class TextStemmer {
-        // TODO: implement
+        private static final Map<String, Supplier<SnowballStemmer>> STEMMERS = Map.ofEntries(
+                Map.entry("da", danishStemmer::new),
+                Map.entry("de", germanStemmer::new),
+                Map.entry("en", englishStemmer::new),
+                Map.entry("es", spanishStemmer::new),
+                Map.entry("fi", finnishStemmer::new),
+                Map.entry("fr", frenchStemmer::new),
+                Map.entry("hu", hungarianStemmer::new),
+                Map.entry("it", italianStemmer::new),
+                Map.entry("nl", dutchStemmer::new),
+                Map.entry("no", norwegianStemmer::new),
+                Map.entry("pt", portugueseStemmer::new),
+                Map.entry("ro", romanianStemmer::new),
+                Map.entry("ru", russianStemmer::new),
+                Map.entry("sv", swedishStemmer::new),
+                Map.entry("tr", turkishStemmer::new)
+        );
+
         public List<Token> stemTokens(List<Token> tokens) {
-            return tokens;
+            return stemTokens(tokens, Languages.DEFAULT_LANGUAGE);
+        }
+
+        public List<Token> stemTokens(List<Token> tokens, String language) {
+            return stemTokens(tokens, language, new HashMap<>());
+        }
+
+        // stemTokens stems the tokens, and records in surfaces the stem of every token
+        // that stemmed to something else.
+        public List<Token> stemTokens(List<Token> tokens, String language, Map<String, String> surfaces) {
+            var factory = STEMMERS.get(language);
+            if (factory == null) {
+                return tokens;
+            }
+            // stemmers keep state, so each call gets its own
+            var stemmer = factory.get();
+            var byStem = new HashMap<String, Token>(tokens.size());
+            for (var token : tokens) {
+                var stem = stem(stemmer, token.value());
+                if (!stem.equals(token.value())) {
+                    surfaces.put(token.value(), stem);
+                }
+                var stemmed = stem.equals(token.value()) ? token : new Token(stem, token.positions());
+                byStem.merge(stem, stemmed, (a, b) -> new Token(stem, mergePositions(a.positions(), b.positions())));
+            }
+            return new ArrayList<>(byStem.values());
+        }
+
+        // stem returns the stem of a single lowercased term.
+        public String stem(String term, String language) {
+            var factory = STEMMERS.get(language);
+            return factory == null ? term : stem(factory.get(), term);
+        }
+
+        private static String stem(SnowballStemmer stemmer, String term) {
+            stemmer.setCurrent(term);
+            stemmer.stem();
+            return stemmer.getCurrent();
+        }
+
+        private static List<Integer> mergePositions(List<Integer> a, List<Integer> b) {
+            var merged = new ArrayList<Integer>(a.size() + b.size());
+            int i = 0, j = 0;
+            while (i < a.size() && j < b.size()) {
+                merged.add(a.get(i) <= b.get(j) ? a.get(i++) : b.get(j++));
+            }
+            merged.addAll(a.subList(i, a.size()));
+            merged.addAll(b.subList(j, b.size()));
+            return merged;
         }
     }
 
@@ -37,27 +111,18 @@ public class Tokenizers {
         List<Token> textToTokens(String body);
     }
 
-    public static class SillyTokenizer implements Tokenizer {
-        private static final Predicate<String> p = Pattern.compile("[^A-Za-z0-9]").asMatchPredicate();
-
-        public static SillyTokenizer create() {
-            return new SillyTokenizer();
+    // WordTokenizer tokenizes a whole string the way a StreamingTokenizer does.
+    public static class WordTokenizer implements Tokenizer {
+        public static WordTokenizer create() {
+            return new WordTokenizer();
         }
 
         @Override
         public List<Token> textToTokens(String body) {
-            var list = Arrays.asList(body.split("\\w"));
-            return list.stream()
-                    .filter(str -> str.length() >= 3)
-                    .map(String::trim)
-                    .filter(str -> !str.isBlank())
-                    .map(s -> s.toLowerCase(Locale.ROOT))
-                    .distinct()
-                    //.filter(p)
-                    // TODO: implement recording positions from @body
-                    .map(t -> new Token(t, List.of(0)))
-                    .collect(Collectors.toList());
+            try (var tokenizer = StreamingTokenizer.open()) {
+                tokenizer.append(body);
+                return tokenizer.finish();
+            }
         }
-
     }
-}
\ No newline at end of file
+}
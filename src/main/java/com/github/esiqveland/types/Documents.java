@@ -1,16 +1,27 @@
 package com.github.esiqveland.types;
 
+import com.github.esiqveland.text.Languages;
 import com.github.esiqveland.text.Tokenizers;
 
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
 
 public class Documents {
 
+    // DocumentWithTokens are the stemmed tokens of a document. language is the one its
+    // tokens were stemmed in, and surfaces maps the words of the document that stemmed to
+    // something else to their stems, so they can be looked up as typed.
     public record DocumentWithTokens(
             IndexDocument doc,
-            List<Tokenizers.Token> tokens
-    ) {}
+            List<Tokenizers.Token> tokens,
+            String language,
+            Map<String, String> surfaces
+    ) {
+        public DocumentWithTokens(IndexDocument doc, List<Tokenizers.Token> tokens) {
+            this(doc, tokens, Languages.DEFAULT_LANGUAGE, Map.of());
+        }
+    }
 
     public record DocumentWithContent(
             IndexDocument doc,
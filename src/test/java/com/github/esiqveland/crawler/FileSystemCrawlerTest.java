@@ -0,0 +1,142 @@
+package com.github.esiqveland.crawler;
+
+import com.github.esiqveland.crawler.Crawler.IndexableFile;
+import com.github.esiqveland.crawler.Crawler.IndexableFolder;
+import com.github.esiqveland.crawler.Crawler.IndexableObject;
+import com.github.esiqveland.store.CrawlStateStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.RocksDB;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FileSystemCrawlerTest {
+    @TempDir
+    Path stateDir;
+    @TempDir
+    Path root;
+
+    private CrawlStateStore state;
+    private FileSystemCrawler crawler;
+
+    @BeforeAll
+    static void loadLibrary() {
+        RocksDB.loadLibrary();
+    }
+
+    @BeforeEach
+    void open() throws Exception {
+        state = CrawlStateStore.open(stateDir.toString());
+        crawler = new FileSystemCrawler(root, state, IgnoreRules.global(root, List.of("*.tmp")));
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        state.close();
+    }
+
+    // crawl crawls root and records what it found, like an index run.
+    private List<IndexableObject> crawl() throws Exception {
+        var found = crawler.crawl().toList().blockingGet();
+        state.update(found.stream().map(FileSystemCrawler::stateOf).toList());
+        return found;
+    }
+
+    private static List<IndexableFile> files(List<IndexableObject> objects) {
+        return objects.stream().filter(o -> o instanceof IndexableFile).map(o -> (IndexableFile) o).toList();
+    }
+
+    private Path write(String name, String content) throws Exception {
+        var path = root.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        return path;
+    }
+
+    private static boolean xattrsSupported(Path file) {
+        try {
+            FileUtils.storeFileId(file, "probe");
+            return FileUtils.getId(file).isPresent();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    void emitsFilesAndFoldersOfTheFirstCrawl() throws Exception {
+        write("docs/a.txt", "alpha");
+        write("b.txt", "bravo");
+        write("scratch.tmp", "ignored");
+        write(".hidden", "hidden");
+
+        var found = crawl();
+
+        assertThat(files(found)).extracting(f -> root.relativize(f.path()).toString())
+                .containsExactlyInAnyOrder("docs/a.txt", "b.txt");
+        assertThat(found).filteredOn(o -> o instanceof IndexableFolder)
+                .extracting(o -> ((IndexableFolder) o).path())
+                .contains(root.resolve("docs").toString());
+        assertThat(files(found)).allSatisfy(f -> assertThat(f.movedFrom()).isNull());
+    }
+
+    @Test
+    void skipsWhatDidNotChangeSinceTheLastCrawl() throws Exception {
+        write("a.txt", "alpha");
+        var b = write("b.txt", "bravo");
+        var first = files(crawl());
+
+        assertThat(crawl()).isEmpty();
+
+        Files.writeString(b, "bravo, changed");
+        Files.setLastModifiedTime(b, FileTime.from(Instant.now().plusSeconds(5)));
+        var changed = files(crawl());
+        assertThat(changed).extracting(IndexableFile::path).containsExactly(b);
+        assertThat(changed.get(0).id()).as("keeps its id")
+                .isEqualTo(first.stream().filter(f -> f.path().equals(b)).findFirst().orElseThrow().id());
+        assertThat(crawl()).isEmpty();
+    }
+
+    @Test
+    void followsAFileThatMoved() throws Exception {
+        var from = write("a.txt", "alpha");
+        assumeTrue(xattrsSupported(from), "needs user xattrs");
+        var id = files(crawl()).get(0).id();
+
+        var to = Files.move(from, root.resolve("renamed.txt"));
+        var moved = files(crawl());
+
+        assertThat(moved).hasSize(1);
+        assertThat(moved.get(0).path()).isEqualTo(to);
+        assertThat(moved.get(0).id()).isEqualTo(id);
+        assertThat(moved.get(0).movedFrom()).isEqualTo(from);
+        assertThat(state.get(from.toString())).isEmpty();
+        assertThat(crawl()).isEmpty();
+    }
+
+    @Test
+    void givesACopyCarryingTheTagOfItsOriginalANewId() throws Exception {
+        var original = write("a.txt", "alpha");
+        assumeTrue(xattrsSupported(original), "needs user xattrs");
+        var id = files(crawl()).get(0).id();
+
+        var copy = write("copy.txt", "alpha");
+        FileUtils.storeFileId(copy, id);
+        var found = files(crawl());
+
+        assertThat(found).extracting(IndexableFile::path).containsExactly(copy);
+        assertThat(found.get(0).id()).isNotEqualTo(id);
+        assertThat(found.get(0).movedFrom()).isNull();
+        assertThat(FileUtils.getId(original)).contains(id);
+        assertThat(state.pathOf(id)).contains(original.toString());
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.esiqveland.crawler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IgnoreRulesTest {
+    @TempDir
+    Path root;
+
+    private IgnoreRules rootRules(String... gitignore) throws IOException {
+        Files.write(root.resolve(".gitignore"), List.of(gitignore));
+        return IgnoreRules.global(root).enter(root);
+    }
+
+    @Test
+    void ignoresDefaultsAndGlobalPatterns() {
+        var rules = IgnoreRules.global(root, List.of("*.tmp"));
+
+        assertThat(rules.ignored(root.resolve(".git"), true)).isTrue();
+        assertThat(rules.ignored(root.resolve("node_modules"), true)).isTrue();
+        assertThat(rules.ignored(root.resolve("build"), false)).as("directory only").isFalse();
+        assertThat(rules.ignored(root.resolve("scratch.tmp"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("notes.txt"), false)).isFalse();
+    }
+
+    @Test
+    void lastMatchingPatternDecides() throws IOException {
+        var rules = rootRules("*.log", "!keep.log", "debug*.log");
+
+        assertThat(rules.ignored(root.resolve("app.log"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("keep.log"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("debug.log"), false)).isTrue();
+    }
+
+    @Test
+    void escapedBangIsALiteral() throws IOException {
+        var rules = rootRules("\\!important");
+
+        assertThat(rules.ignored(root.resolve("!important"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("important"), false)).isFalse();
+    }
+
+    @Test
+    void slashAnchorsPatternsToTheirDirectory() throws IOException {
+        var rules = rootRules("/todo.txt", "docs/*.md", "cache");
+
+        assertThat(rules.ignored(root.resolve("todo.txt"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("src/todo.txt"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("docs/intro.md"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("docs/guide/intro.md"), false)).as("* stops at a slash").isFalse();
+        assertThat(rules.ignored(root.resolve("src/docs/intro.md"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("src/deep/cache"), true)).as("unanchored at any depth").isTrue();
+    }
+
+    @Test
+    void doubleStarMatchesAnyNumberOfDirectories() throws IOException {
+        var rules = rootRules("**/generated", "assets/**/*.png", "logs/**");
+
+        assertThat(rules.ignored(root.resolve("generated"), true)).isTrue();
+        assertThat(rules.ignored(root.resolve("a/b/generated"), true)).isTrue();
+        assertThat(rules.ignored(root.resolve("assets/logo.png"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("assets/icons/small/logo.png"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("other/assets/logo.png"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("logs/2022/01/app.txt"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("logs"), true)).as("only what is inside").isFalse();
+    }
+
+    @Test
+    void rulesOfADirectoryOverrideItsParents() throws IOException {
+        var sub = Files.createDirectories(root.resolve("sub"));
+        Files.write(sub.resolve(".gitignore"), List.of("!keep.log", "/local.txt"));
+        var rules = rootRules("*.log", "local.txt");
+
+        var subRules = rules.enter(sub);
+
+        assertThat(subRules.ignored(sub.resolve("app.log"), false)).isTrue();
+        assertThat(subRules.ignored(sub.resolve("keep.log"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("keep.log"), false)).isTrue();
+        assertThat(subRules.ignored(sub.resolve("local.txt"), false)).isTrue();
+    }
+
+    @Test
+    void rulesForSkipsPathsBelowIgnoredDirectories() throws IOException {
+        var nested = Files.createDirectories(root.resolve("src/main"));
+        Files.createDirectories(root.resolve("out/classes"));
+        Files.write(root.resolve("src/.gitignore"), List.of("*.bak"));
+        var rules = rootRules("out/");
+
+        var mainRules = rules.rulesFor(nested.resolve("file.bak"));
+
+        assertThat(mainRules).isNotNull();
+        assertThat(mainRules.ignored(nested.resolve("file.bak"), false)).isTrue();
+        assertThat(rules.rulesFor(root.resolve("out/classes/A.class"))).isNull();
+    }
+
+    @Test
+    void readsHgignoreRegexAndGlobSyntax() throws IOException {
+        Files.write(root.resolve(".hgignore"), List.of(
+                "# regular expressions by default",
+                "\\.orig$",
+                "^dist/",
+                "syntax: glob",
+                "*.pyc",
+                "tmp/*.swp"
+        ));
+        var rules = IgnoreRules.global(root).enter(root);
+
+        assertThat(rules.ignored(root.resolve("a/b/file.orig"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("dist/app.js"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("src/dist/app.js"), false)).isFalse();
+        assertThat(rules.ignored(root.resolve("pkg/mod.pyc"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("a/tmp/x.swp"), false)).isTrue();
+        assertThat(rules.ignored(root.resolve("a/x.swp"), false)).isFalse();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.esiqveland.parsers;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ParseSchedulerTest {
+    @Test
+    void completesWithTheResultOfTheTask() {
+        var scheduler = new ParseScheduler(1);
+
+        assertThat(scheduler.submit(budget -> "parsed", () -> "fallback").join()).isEqualTo("parsed");
+        assertThat(scheduler.maxConcurrency()).isEqualTo(1);
+    }
+
+    @Test
+    void failsWithTheErrorOfTheTask() {
+        var scheduler = new ParseScheduler(1);
+
+        var result = scheduler.submit(budget -> {
+            throw new IllegalStateException("broken file");
+        }, () -> "fallback");
+
+        assertThat(result).failsWithin(Duration.ofSeconds(5))
+                .withThrowableOfType(ExecutionException.class)
+                .withCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void keepsTheSlotOfAParseIgnoringItsDeadline() throws Exception {
+        var scheduler = new ParseScheduler(1, Duration.ofMillis(100));
+        var stuck = new CountDownLatch(1);
+        var interrupted = new CountDownLatch(1);
+
+        var overrun = scheduler.submit(budget -> {
+            // like a parser that swallows the interrupt and carries on
+            while (true) {
+                try {
+                    stuck.await();
+                    return "parsed";
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        }, () -> "fallback");
+        assertThat(overrun.get(5, TimeUnit.SECONDS)).isEqualTo("fallback");
+        assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        var started = new AtomicBoolean();
+        var next = scheduler.submit(budget -> {
+            started.set(true);
+            return "next";
+        }, () -> "fallback");
+        Thread.sleep(200);
+        assertThat(started).as("waits for the slot of the overrun parse").isFalse();
+
+        stuck.countDown();
+        assertThat(next.get(5, TimeUnit.SECONDS)).isEqualTo("next");
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Bm25Test {
+    private final Bm25 bm25 = new Bm25(1000, 100f);
+
+    @Test
+    void rarerTermsWeighMore() {
+        assertThat(bm25.idf(1)).isGreaterThan(bm25.idf(10));
+        assertThat(bm25.idf(10)).isGreaterThan(bm25.idf(500));
+        assertThat(bm25.idf(1000)).isPositive();
+    }
+
+    @Test
+    void termFrequencySaturates() {
+        var idf = bm25.idf(10);
+
+        var once = bm25.score(idf, 1, 100);
+        var twice = bm25.score(idf, 2, 100);
+        var often = bm25.score(idf, 100, 100);
+
+        assertThat(twice).isGreaterThan(once);
+        assertThat(twice - once).isLessThan(once);
+        assertThat(often).isLessThan(idf * (Bm25.K1 + 1));
+    }
+
+    @Test
+    void shorterDocumentsScoreHigher() {
+        var idf = bm25.idf(10);
+
+        assertThat(bm25.score(idf, 2, 50)).isGreaterThan(bm25.score(idf, 2, 100));
+        assertThat(bm25.score(idf, 2, 100)).isGreaterThan(bm25.score(idf, 2, 400));
+    }
+
+    @Test
+    void maxScoreBoundsEveryDocumentLength() {
+        var idf = bm25.idf(3);
+        for (int maxFreq = 1; maxFreq <= 20; maxFreq++) {
+            var bound = bm25.maxScore(idf, maxFreq);
+            for (int freq = 1; freq <= maxFreq; freq++) {
+                for (int length = 0; length <= 1000; length += 7) {
+                    assertThat(bm25.score(idf, freq, length)).isLessThanOrEqualTo(bound);
+                }
+            }
+        }
+    }
+
+    @Test
+    void emptyCollectionsDoNotDivideByZero() {
+        var empty = new Bm25(0, 0f);
+
+        assertThat(empty.score(empty.idf(0), 1, 0)).isFinite().isPositive();
+    }
+}
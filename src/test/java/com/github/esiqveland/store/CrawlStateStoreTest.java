@@ -0,0 +1,114 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.hugin.crawlstate.v1.Crawlstate.FileState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.RocksDB;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CrawlStateStoreTest {
+    @TempDir
+    Path dir;
+    @TempDir
+    Path root;
+
+    private CrawlStateStore state;
+
+    @BeforeAll
+    static void loadLibrary() {
+        RocksDB.loadLibrary();
+    }
+
+    @BeforeEach
+    void open() throws Exception {
+        state = CrawlStateStore.open(dir.toString());
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        state.close();
+    }
+
+    private String path(String name) {
+        return root.resolve(name).toString();
+    }
+
+    private CrawlStateStore.Entry entry(String name, String id) {
+        return entry(name, id, null);
+    }
+
+    private CrawlStateStore.Entry entry(String name, String id, String movedFrom) {
+        return new CrawlStateStore.Entry(path(name), FileState.newBuilder().setId(id).setSize(1).build(),
+                movedFrom == null ? null : path(movedFrom));
+    }
+
+    @Test
+    void recordsFilesByPathAndId() throws Exception {
+        assertThat(state.update(List.of(entry("a", "id-a"), entry("b", "id-b")))).isEmpty();
+
+        assertThat(state.get(path("a"))).map(FileState::getId).contains("id-a");
+        assertThat(state.pathOf("id-b")).contains(path("b"));
+        assertThat(state.get(path("c"))).isEmpty();
+        assertThat(state.pathOf("id-c")).isEmpty();
+    }
+
+    @Test
+    void orphansTheIdOfAPathNowHoldingAnotherFile() throws Exception {
+        state.update(List.of(entry("a", "old")));
+
+        assertThat(state.update(List.of(entry("a", "new")))).containsExactly("old");
+        assertThat(state.pathOf("old")).isEmpty();
+        assertThat(state.pathOf("new")).contains(path("a"));
+    }
+
+    @Test
+    void followsMovedFiles() throws Exception {
+        state.update(List.of(entry("a", "id")));
+
+        assertThat(state.update(List.of(entry("b", "id", "a")))).isEmpty();
+
+        assertThat(state.get(path("a"))).isEmpty();
+        assertThat(state.pathOf("id")).contains(path("b"));
+    }
+
+    @Test
+    void swapsKeepBothIds() throws Exception {
+        state.update(List.of(entry("a", "id-a"), entry("b", "id-b")));
+
+        var orphans = state.update(List.of(entry("a", "id-b", "b"), entry("b", "id-a", "a")));
+
+        assertThat(orphans).isEmpty();
+        assertThat(state.pathOf("id-a")).contains(path("b"));
+        assertThat(state.pathOf("id-b")).contains(path("a"));
+        assertThat(state.get(path("a"))).map(FileState::getId).contains("id-b");
+    }
+
+    @Test
+    void sweepForgetsPathsThatNoLongerExist() throws Exception {
+        Files.createFile(root.resolve("kept"));
+        state.update(List.of(entry("kept", "id-kept"), entry("gone", "id-gone")));
+
+        assertThat(state.sweep(root)).containsExactly("id-gone");
+
+        assertThat(state.get(path("gone"))).isEmpty();
+        assertThat(state.pathOf("id-gone")).isEmpty();
+        assertThat(state.pathOf("id-kept")).contains(path("kept"));
+        assertThat(state.sweep(root)).isEmpty();
+    }
+
+    @Test
+    void sweepLeavesOtherRootsAlone() throws Exception {
+        state.update(List.of(new CrawlStateStore.Entry(root + "-other/gone", FileState.newBuilder().setId("other").build(), null)));
+
+        assertThat(state.sweep(root)).isEmpty();
+        assertThat(state.pathOf("other")).isPresent();
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.hugin.documentstore.v1.Documentstore.StoredDocument;
+import com.github.esiqveland.store.DocumentStore.DocMetadata;
+import com.github.esiqveland.store.DocumentStore.InsertDocument;
+import com.github.esiqveland.store.DocumentStore.LookupResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.RocksDB;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DocumentStoreTest {
+    @TempDir
+    Path dir;
+
+    private DocumentStore store;
+
+    @BeforeAll
+    static void loadLibrary() {
+        RocksDB.loadLibrary();
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private DocumentStore open(Durability durability) throws Exception {
+        store = DocumentStore.open(dir.toString(), durability);
+        return store;
+    }
+
+    private static InsertDocument doc(String docId, String content) {
+        return doc(docId, content, "en");
+    }
+
+    private static InsertDocument doc(String docId, String content, String language) {
+        var now = Instant.ofEpochSecond(1_600_000_000);
+        return new InsertDocument(docId, "owner", new byte[]{1}, content.getBytes(UTF_8), false, language,
+                new DocMetadata(docId, now, now));
+    }
+
+    private List<String> contents(List<String> docIds) {
+        return store.getAll(docIds).join().stream()
+                .map(found -> found.map(LookupResult::doc).map(StoredDocument::getContent).orElse(null))
+                .toList();
+    }
+
+    @Test
+    void storesConcurrentBatchesInOrder() throws Exception {
+        open(Durability.WAL);
+        var written = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 200; i++) {
+            written.add(store.insertBatch(List.of(doc("doc" + i, "first " + i), doc("shared", "batch " + i))));
+        }
+        written.add(store.deleteBatch(List.of("doc0", "unknown")));
+        CompletableFuture.allOf(written.toArray(CompletableFuture[]::new)).join();
+
+        assertThat(contents(List.of("doc0", "doc1", "doc199", "shared"))).containsExactly(null, "first 1", "first 199", "batch 199");
+        assertThat(store.Get(new DocumentStore.GetDocumentRequest("doc2")).join())
+                .map(LookupResult::docId)
+                .contains("doc2");
+    }
+
+    @Test
+    void reinsertsAfterADeleteQueuedBeforeIt() throws Exception {
+        open(Durability.WAL);
+
+        store.insertBatch(List.of(doc("doc", "old")));
+        store.deleteBatch(List.of("doc"));
+        store.insertBatch(List.of(doc("doc", "new"))).join();
+
+        assertThat(contents(List.of("doc"))).containsExactly("new");
+    }
+
+    @Test
+    void failsTheBatchOfAFailedCommitAndWritesNoneOfIt() throws Exception {
+        open(Durability.WAL);
+
+        // a document without a language can not be encoded, which fails its commit
+        var failed = store.insertBatch(List.of(doc("good", "content"), doc("bad", "content", null)));
+
+        assertThat(failed).failsWithin(Duration.ofSeconds(5))
+                .withThrowableOfType(ExecutionException.class)
+                .withCauseInstanceOf(RuntimeException.class);
+        assertThat(contents(List.of("good", "bad"))).containsExactly(null, null);
+
+        store.insertBatch(List.of(doc("later", "content"))).join();
+        assertThat(contents(List.of("later"))).containsExactly("content");
+    }
+
+    @Test
+    void completesBatchesOffTheWriterThread() throws Exception {
+        open(Durability.WAL);
+
+        var threads = IntStream.range(0, 50)
+                .mapToObj(i -> store.insertBatch(List.of(doc("doc" + i, "content")))
+                        .thenApply(v -> Thread.currentThread().getName()))
+                .toList();
+
+        assertThat(threads).extracting(CompletableFuture::join).doesNotContain("document-store-writer");
+    }
+
+    @Test
+    void rejectsBatchesOnceClosed() throws Exception {
+        open(Durability.WAL).close();
+        var closed = store;
+        store = null;
+
+        assertThat(closed.insertBatch(List.of(doc("doc", "content")))).isCompletedExceptionally();
+    }
+
+    @Test
+    void flushesWritesWithoutAWalOnClose() throws Exception {
+        open(Durability.NO_WAL).insertBatch(List.of(doc("doc", "content"))).join();
+        store.close();
+
+        open(Durability.WAL);
+
+        assertThat(contents(List.of("doc"))).containsExactly("content");
+        assertThat(store.getAll(List.of("missing")).join()).containsExactly(Optional.empty());
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.store.SearchIndexStore.Match;
+import com.github.esiqveland.store.SearchIndexStore.SearchHit;
+import com.github.esiqveland.store.SearchIndexStore.SearchRequest;
+import com.github.esiqveland.text.TextTokenizer;
+import com.github.esiqveland.text.Tokenizers;
+import com.github.esiqveland.types.Documents.DocumentWithTokens;
+import com.github.esiqveland.types.Documents.IndexDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.RocksDB;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IndexBuilderStoreTest {
+    @TempDir
+    Path dir;
+
+    private SearchIndexStore inserted;
+    private SearchIndexStore bulkLoaded;
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final Tokenizers.Tokenizer words = Tokenizers.WordTokenizer.create();
+
+    @BeforeAll
+    static void loadLibrary() {
+        // the store builds its merge operator when loaded
+        RocksDB.loadLibrary();
+    }
+
+    @BeforeEach
+    void open() throws Exception {
+        inserted = SearchIndexStore.open(dir.resolve("inserted").toString());
+        bulkLoaded = SearchIndexStore.open(dir.resolve("bulk").toString());
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        inserted.close();
+        bulkLoaded.close();
+    }
+
+    // builder spills a run for every batch, and starts a new SST file every few entries.
+    private IndexBuilderStore builder() throws Exception {
+        return new IndexBuilderStore(bulkLoaded, Files.createDirectories(dir.resolve("runs")), 1, 256);
+    }
+
+    private DocumentWithTokens doc(String docId, String text) {
+        var doc = new IndexDocument("owner", "ns", docId, docId, "file:/" + docId);
+        return tokenizer.tokenize(doc, words.textToTokens(text), "en");
+    }
+
+    private static List<SearchHit> hits(SearchIndexStore store, String query, Match match) {
+        return store.query(new SearchRequest(List.of("ns"), query, match, 1000)).join().hits();
+    }
+
+    private static List<String> docIds(SearchIndexStore store, String query) {
+        return hits(store, query, new Match.Term()).stream().map(SearchHit::docId).toList();
+    }
+
+    @Test
+    void bulkLoadsTheSameIndexAsInsertBatch() throws Exception {
+        var vocabulary = List.of("alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel");
+        var random = new Random(11);
+        var docs = IntStream.range(0, 300)
+                .mapToObj(i -> doc("doc" + i, IntStream.range(0, 1 + random.nextInt(20))
+                        .mapToObj(w -> vocabulary.get(random.nextInt(vocabulary.size())))
+                        .collect(Collectors.joining(" "))))
+                .toList();
+        var batches = IntStream.range(0, 6).mapToObj(b -> docs.subList(50 * b, 50 * b + 50)).toList();
+
+        try (var builder = builder()) {
+            for (var batch : batches) {
+                inserted.insertBatch(batch).blockingSubscribe();
+                builder.insertBatch(batch).blockingSubscribe();
+            }
+            builder.ingest();
+        }
+
+        for (var query : List.of("alpha", "bravo golf", "charlie delta", "echo hotel")) {
+            for (var match : List.of(new Match.Bool(Match.Operator.OR), new Match.Phrase(0), new Match.Prefix())) {
+                assertThat(hits(bulkLoaded, query, match)).as("%s %s", query, match)
+                        .isEqualTo(hits(inserted, query, match))
+                        .isNotEmpty();
+            }
+        }
+        assertThat(hits(bulkLoaded, "ech", new Match.Prefix())).isEqualTo(hits(inserted, "ech", new Match.Prefix())).isNotEmpty();
+        try (var runs = Files.list(dir.resolve("runs"))) {
+            assertThat(runs.map(Path::toString)).noneMatch(name -> name.endsWith(".run"));
+        }
+    }
+
+    @Test
+    void appendsToPostingsAlreadyStored() throws Exception {
+        bulkLoaded.insertBatch(List.of(doc("first", "apple"))).blockingSubscribe();
+
+        try (var builder = builder()) {
+            builder.insertBatch(List.of(doc("second", "apple pie"))).blockingSubscribe();
+            builder.insertBatch(List.of(doc("third", "apple tart"))).blockingSubscribe();
+            builder.ingest();
+        }
+
+        assertThat(docIds(bulkLoaded, "apple")).containsExactlyInAnyOrder("first", "second", "third");
+        assertThat(docIds(bulkLoaded, "tart")).containsExactly("third");
+    }
+
+    @Test
+    void ingestsWhatIsLeftOnClose() throws Exception {
+        try (var builder = builder()) {
+            builder.insertBatch(List.of(doc("doc", "apple"))).blockingSubscribe();
+            assertThat(docIds(bulkLoaded, "apple")).isEmpty();
+        }
+
+        assertThat(docIds(bulkLoaded, "apple")).containsExactly("doc");
+    }
+
+    @Test
+    void ingestsNothingTwice() throws Exception {
+        try (var builder = builder()) {
+            builder.insertBatch(List.of(doc("doc", "apple apple"))).blockingSubscribe();
+            builder.ingest();
+            builder.ingest();
+        }
+
+        var hits = hits(bulkLoaded, "apple", new Match.Term());
+        assertThat(hits).extracting(SearchHit::docId).containsExactly("doc");
+    }
+}
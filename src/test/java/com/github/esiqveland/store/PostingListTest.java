@@ -0,0 +1,114 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PostingListTest {
+
+    private static PostingList.Postings postings(int count, int step) {
+        var ordinals = new int[count];
+        var freqs = new int[count];
+        for (int i = 0; i < count; i++) {
+            ordinals[i] = i * step + 3;
+            freqs[i] = i % 7 + 1;
+        }
+        return new PostingList.Postings(ordinals, freqs);
+    }
+
+    @Test
+    void roundTripsOrdinalsAndFrequencies() {
+        // spans several blocks, with a partial last one
+        var postings = postings(3 * PostingList.BLOCK_SIZE + 5, 1000);
+
+        var decoded = PostingList.decodePostings(PostingList.encode(postings));
+
+        assertThat(decoded.ordinals()).containsExactly(postings.ordinals());
+        assertThat(decoded.freqs()).containsExactly(postings.freqs());
+        assertThat(PostingList.segmentCount(PostingList.encode(postings))).isEqualTo(1);
+    }
+
+    @Test
+    void roundTripsEmptyPostings() {
+        var encoded = PostingList.encode(PostingList.Postings.EMPTY);
+
+        assertThat(PostingList.decode(encoded)).isEmpty();
+        assertThat(PostingList.cursor(encoded).advance(0)).isEqualTo(PostingList.Cursor.NO_MORE);
+    }
+
+    @Test
+    void unionsAppendedSegmentsKeepingTheLatestFrequency() {
+        var older = PostingList.encode(new PostingList.Postings(new int[]{1, 5, 9}, new int[]{1, 2, 3}));
+        var newer = PostingList.encode(new PostingList.Postings(new int[]{5, 7}, new int[]{4, 1}));
+        // the merge operator appends one segment per batch
+        var value = new byte[older.length + newer.length];
+        System.arraycopy(older, 0, value, 0, older.length);
+        System.arraycopy(newer, 0, value, older.length, newer.length);
+
+        var decoded = PostingList.decodePostings(value);
+
+        assertThat(PostingList.segmentCount(value)).isEqualTo(2);
+        assertThat(decoded.ordinals()).containsExactly(1, 5, 7, 9);
+        assertThat(decoded.freqs()).containsExactly(1, 4, 1, 3);
+        var consolidated = PostingList.consolidate(value);
+        assertThat(PostingList.segmentCount(consolidated)).isEqualTo(1);
+        assertThat(PostingList.decodePostings(consolidated).ordinals()).containsExactly(1, 5, 7, 9);
+        assertThat(PostingList.decodePostings(consolidated).freqs()).containsExactly(1, 4, 1, 3);
+    }
+
+    @Test
+    void cursorAdvancesAcrossBlocks() {
+        var postings = postings(4 * PostingList.BLOCK_SIZE, 10);
+        var cursor = PostingList.cursor(PostingList.encode(postings));
+
+        assertThat(cursor.docCount()).isEqualTo(postings.size());
+        assertThat(cursor.advance(0)).isEqualTo(3);
+        assertThat(cursor.freq()).isEqualTo(1);
+        // between two ordinals of the third block
+        int target = postings.ordinals()[2 * PostingList.BLOCK_SIZE + 4] + 1;
+        assertThat(cursor.advance(target)).isEqualTo(postings.ordinals()[2 * PostingList.BLOCK_SIZE + 5]);
+        assertThat(cursor.freq()).isEqualTo(postings.freqs()[2 * PostingList.BLOCK_SIZE + 5]);
+        // advancing to where the cursor is stays there
+        assertThat(cursor.advance(target)).isEqualTo(postings.ordinals()[2 * PostingList.BLOCK_SIZE + 5]);
+        assertThat(cursor.advance(Integer.MAX_VALUE - 1)).isEqualTo(PostingList.Cursor.NO_MORE);
+    }
+
+    @Test
+    void cursorSkipsBlocksWithoutReadingTheirPayload() {
+        var postings = postings(3 * PostingList.BLOCK_SIZE, 2);
+        var value = PostingList.encode(postings);
+
+        // garble the payload of the first block: only a cursor that skips it reads right
+        var buf = ByteBuffer.wrap(value);
+        buf.get();
+        Varints.read(buf);
+        Varints.read(buf);
+        Varints.read(buf);
+        Varints.read(buf);
+        Varints.read(buf);
+        int payloadBytes = Varints.read(buf);
+        Arrays.fill(value, buf.position(), buf.position() + payloadBytes, (byte) 0xFF);
+
+        var cursor = PostingList.cursor(value);
+        int first = PostingList.BLOCK_SIZE;
+        assertThat(cursor.advance(postings.ordinals()[first])).isEqualTo(postings.ordinals()[first]);
+        assertThat(cursor.freq()).isEqualTo(postings.freqs()[first]);
+    }
+
+    @Test
+    void intersectsAndSubtractsCursors() {
+        var odds = PostingList.encode(postings(2 * PostingList.BLOCK_SIZE, 2));
+        int[] some = {3, 4, 5, 9, 11, 200, 259, 1000};
+
+        var both = PostingList.intersect(List.of(PostingList.cursor(odds), PostingList.cursor(some)));
+        var others = PostingList.difference(some, List.of(PostingList.cursor(odds)));
+
+        // the odd ordinals 3, 5, ... 513
+        assertThat(both).containsExactly(3, 5, 9, 11, 259);
+        assertThat(others).containsExactly(4, 200, 1000);
+    }
+}
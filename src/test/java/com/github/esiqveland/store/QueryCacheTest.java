@@ -0,0 +1,109 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.store.SearchIndexStore.Match;
+import com.github.esiqveland.store.SearchIndexStore.SearchHit;
+import com.github.esiqveland.store.SearchIndexStore.SearchHits;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryCacheTest {
+    private final QueryCache cache = new QueryCache(1 << 20, 100);
+    private final SearchHits hits = new SearchHits(List.of(new SearchHit("doc", "ns", "apple", 1f)));
+
+    private QueryCache.ResultKey cached(int... slots) {
+        var key = new QueryCache.ResultKey(List.of("ns"), List.of("apple"), new Match.Term(), 10);
+        cache.putResult(key, hits, slots, cache.snapshot(slots));
+        return key;
+    }
+
+    @Test
+    void resultsLastUntilATermTheyReadIsWritten() {
+        var key = cached(QueryCache.termSlot("ns", "apple"));
+
+        cache.written("ns", List.of("banana"));
+        cache.written("other", List.of("apple"));
+        assertThat(cache.result(key)).containsSame(hits);
+
+        cache.written("ns", List.of("apple"));
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void prefixResultsFollowEveryTermWithThePrefix() {
+        var key = cached(QueryCache.prefixSlot("ns", "app"));
+
+        cache.written("ns", List.of("apricot"));
+        assertThat(cache.result(key)).isPresent();
+
+        cache.written("ns", List.of("application"));
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void namespaceResultsFollowAnyTermOfTheNamespace() {
+        var key = cached(QueryCache.namespaceSlot("ns"));
+
+        cache.written("other", List.of("banana"));
+        assertThat(cache.result(key)).isPresent();
+
+        cache.written("ns", List.of("banana"));
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void languageResultsFollowNewLanguages() {
+        var key = cached(QueryCache.languagesSlot("ns"));
+
+        cache.languagesChanged("ns");
+
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void resultsRacingAWriteAreNotServed() {
+        int[] slots = {QueryCache.termSlot("ns", "apple")};
+        var snapshot = cache.snapshot(slots);
+        cache.written("ns", List.of("apple"));
+        var key = new QueryCache.ResultKey(List.of("ns"), List.of("apple"), new Match.Term(), 10);
+
+        cache.putResult(key, hits, slots, snapshot);
+
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void writtenAllInvalidatesEverything() {
+        var key = cached(QueryCache.termSlot("ns", "apple"), QueryCache.namespaceSlot("ns"));
+
+        cache.writtenAll();
+
+        assertThat(cache.result(key)).isEmpty();
+    }
+
+    @Test
+    void cachesPostingsReadInTheCurrentEpoch() throws Exception {
+        var key = "apple".getBytes(UTF_8);
+        byte[] first = {1};
+
+        assertThat(cache.postings("ns", "apple", key, cache.epoch(), () -> first)).isSameAs(first);
+        assertThat(cache.postings("ns", "apple", key, cache.epoch(), () -> new byte[]{2})).isSameAs(first);
+
+        cache.written("ns", List.of("apple"));
+        byte[] second = {3};
+        assertThat(cache.postings("ns", "apple", key, cache.epoch(), () -> second)).isSameAs(second);
+    }
+
+    @Test
+    void doesNotCachePostingsReadUnderAnOlderSnapshot() throws Exception {
+        var key = "apple".getBytes(UTF_8);
+        long readEpoch = cache.epoch();
+        cache.written("ns", List.of("banana"));
+
+        assertThat(cache.postings("ns", "apple", key, readEpoch, () -> new byte[]{1})).containsExactly(1);
+        assertThat(cache.postings("ns", "apple", key, cache.epoch(), () -> new byte[]{2})).containsExactly(2);
+    }
+}
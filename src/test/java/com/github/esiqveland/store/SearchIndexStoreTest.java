@@ -0,0 +1,304 @@
+package com.github.esiqveland.store;
+
+import com.github.esiqveland.store.SearchIndexStore.Match;
+import com.github.esiqveland.store.SearchIndexStore.SearchHit;
+import com.github.esiqveland.store.SearchIndexStore.SearchRequest;
+import com.github.esiqveland.text.TextTokenizer;
+import com.github.esiqveland.text.Tokenizers;
+import com.github.esiqveland.types.Documents.DocumentWithTokens;
+import com.github.esiqveland.types.Documents.IndexDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.RocksDB;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchIndexStoreTest {
+    @TempDir
+    Path dir;
+
+    private SearchIndexStore store;
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final Tokenizers.Tokenizer words = Tokenizers.WordTokenizer.create();
+
+    @BeforeAll
+    static void loadLibrary() {
+        // the store builds its merge operator when loaded
+        RocksDB.loadLibrary();
+    }
+
+    @BeforeEach
+    void open() throws Exception {
+        store = SearchIndexStore.open(dir.toString());
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        store.close();
+    }
+
+    private DocumentWithTokens doc(String docId, String text, String language) {
+        return doc("ns", docId, text, language);
+    }
+
+    private DocumentWithTokens doc(String namespaceId, String docId, String text, String language) {
+        var doc = new IndexDocument("owner", namespaceId, docId, docId, "file:/" + docId);
+        return tokenizer.tokenize(doc, words.textToTokens(text), language);
+    }
+
+    private List<String> query(String query, Match match) {
+        return hits(query, match, SearchRequest.DEFAULT_LIMIT).stream()
+                .map(SearchHit::docId)
+                .toList();
+    }
+
+    private List<SearchHit> hits(String query, Match match, int limit) {
+        return store.query(new SearchRequest(List.of("ns"), query, match, limit)).join().hits();
+    }
+
+    @Test
+    void stemsQueriesInEveryLanguageOfTheNamespace() {
+        store.insertBatch(List.of(
+                doc("en", "the runners were running through forests", "en"),
+                doc("no", "bilene kjørte forbi huset", "no"))).blockingSubscribe();
+
+        assertThat(query("running", new Match.Term())).containsExactly("en");
+        assertThat(query("bilene", new Match.Term())).containsExactly("no");
+        assertThat(query("forests bilene", new Match.Bool(Match.Operator.OR))).containsExactlyInAnyOrder("en", "no");
+        assertThat(query("running through", new Match.Phrase(0))).containsExactly("en");
+        assertThat(query("forest -running", new Match.Bool(Match.Operator.AND))).isEmpty();
+    }
+
+    @Test
+    void queryResultsFollowANewLanguageOfTheNamespace() {
+        store.insertBatch(List.of(doc("no", "bilene kjørte forbi huset", "no"))).blockingSubscribe();
+        assertThat(query("running", new Match.Term())).isEmpty();
+
+        store.insertBatch(List.of(doc("en", "the runners were running", "en"))).blockingSubscribe();
+
+        assertThat(query("running", new Match.Term())).containsExactly("en");
+    }
+
+    @Test
+    void prefixesMatchWordsAsTypedNotTheirStems() {
+        store.insertBatch(List.of(doc("en", "the runners were running through forests", "en"))).blockingSubscribe();
+
+        // "runni" stems to "runni", which no token starts with
+        assertThat(query("runni", new Match.Prefix())).containsExactly("en");
+        assertThat(query("forests", new Match.Prefix())).containsExactly("en");
+        assertThat(query("fore", new Match.Prefix())).containsExactly("en");
+        assertThat(query("walki", new Match.Prefix())).isEmpty();
+    }
+
+    @Test
+    void refinesBeyondTheHitsOfATruncatedSearch() {
+        var docs = IntStream.range(0, 30)
+                .mapToObj(i -> doc("food" + i, "food food food", "en"))
+                .collect(Collectors.toCollection(ArrayList::new));
+        docs.add(doc("rare", "a long text about many other things that mentions foobar only once", "en"));
+        store.insertBatch(docs).blockingSubscribe();
+
+        var previous = store.query(new SearchRequest(List.of("ns"), "foo", new Match.Prefix(), 20)).join().hits().stream()
+                .map(SearchHit::docId)
+                .toList();
+        assertThat(previous).hasSize(20).doesNotContain("rare");
+
+        var refined = store.refine(new SearchRequest(List.of("ns"), "foob", new Match.Prefix(), 20), previous).join();
+
+        assertThat(refined.hits()).extracting(SearchHit::docId).containsExactly("rare");
+    }
+
+    @Test
+    void refinesAmongThePreviousHitsOfACompleteSearch() {
+        store.insertBatch(List.of(
+                doc("a", "foobar", "en"),
+                doc("b", "foobaz", "en"))).blockingSubscribe();
+
+        var refined = store.refine(new SearchRequest(List.of("ns"), "foob", new Match.Prefix(), 20), List.of("b")).join();
+
+        assertThat(refined.hits()).extracting(SearchHit::docId).containsExactly("b");
+    }
+
+    @Test
+    void prefixesFindTheirNamespaceBehindManyTermsOfOthers() {
+        var others = IntStream.range(0, 40 * SearchIndexStore.MAX_PREFIX_EXPANSIONS)
+                .mapToObj(i -> "ab%05d".formatted(i))
+                .collect(Collectors.joining(" "));
+        store.insertBatch(List.of(
+                doc("other", "many", others, "en"),
+                doc("zebra", "an abzebra", "en"))).blockingSubscribe();
+
+        assertThat(query("ab", new Match.Prefix())).containsExactly("zebra");
+    }
+
+    @Test
+    void ranksShorterDocumentsWithMoreOccurrencesFirst() {
+        store.insertBatch(List.of(
+                doc("long", "apple and a great many other words about orchards harvests and weather", "en"),
+                doc("short", "apple apple", "en"),
+                doc("once", "apple pie", "en"),
+                doc("none", "banana", "en"))).blockingSubscribe();
+
+        var hits = hits("apple", new Match.Term(), 10);
+
+        assertThat(hits).extracting(SearchHit::docId).containsExactly("short", "once", "long");
+        assertThat(hits).extracting(SearchHit::score).isSortedAccordingTo(Comparator.reverseOrder());
+    }
+
+    @Test
+    void rareTermsOutweighCommonOnes() {
+        var docs = IntStream.range(0, 20)
+                .mapToObj(i -> doc("common" + i, "common words number " + i, "en"))
+                .collect(Collectors.toCollection(ArrayList::new));
+        docs.add(doc("rare", "unusual words", "en"));
+        store.insertBatch(docs).blockingSubscribe();
+
+        var hits = hits("common unusual", new Match.Bool(Match.Operator.OR), 30);
+
+        assertThat(hits).hasSize(21);
+        assertThat(hits.get(0).docId()).isEqualTo("rare");
+    }
+
+    @Test
+    void topHitsAreTheHeadOfTheFullRanking() {
+        var vocabulary = List.of("alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel");
+        var random = new Random(7);
+        var docs = IntStream.range(0, 200)
+                .mapToObj(i -> {
+                    var words = IntStream.range(0, 1 + random.nextInt(30))
+                            .mapToObj(w -> vocabulary.get(random.nextInt(vocabulary.size())))
+                            .collect(Collectors.joining(" "));
+                    return doc("doc" + i, words, "en");
+                })
+                .toList();
+        store.insertBatch(docs).blockingSubscribe();
+
+        for (var query : List.of("alpha", "alpha bravo", "charlie delta echo")) {
+            for (var match : List.of(new Match.Bool(Match.Operator.OR), new Match.Bool(Match.Operator.AND), new Match.Prefix())) {
+                var all = hits(query, match, 1000);
+                var top = hits(query, match, 5);
+
+                assertThat(top).as("%s %s", query, match)
+                        .extracting(SearchHit::score)
+                        .containsExactlyElementsOf(all.stream().limit(5).map(SearchHit::score).toList());
+            }
+        }
+    }
+
+    @Test
+    void cachedResultsFollowInsertBatch() {
+        store.insertBatch(List.of(doc("a", "apple", "en"), doc("z", "zebra", "en"))).blockingSubscribe();
+        var request = new SearchRequest(List.of("ns"), "apple");
+        var first = store.query(request).join();
+        assertThat(store.query(request).join()).isSameAs(first);
+        assertThat(query("app", new Match.Prefix())).containsExactly("a");
+        assertThat(query("aple", new Match.Fuzzy())).containsExactly("a");
+
+        store.insertBatch(List.of(doc("y", "yak", "en"))).blockingSubscribe();
+        assertThat(store.query(request).join()).as("unrelated terms keep the result").isSameAs(first);
+
+        store.insertBatch(List.of(doc("b", "apple application", "en"), doc("c", "ample", "en"))).blockingSubscribe();
+
+        assertThat(store.query(request).join().hits()).extracting(SearchHit::docId).containsExactlyInAnyOrder("a", "b");
+        assertThat(query("app", new Match.Prefix())).containsExactlyInAnyOrder("a", "b");
+        assertThat(query("aple", new Match.Fuzzy())).containsExactlyInAnyOrder("a", "b", "c");
+    }
+
+    @Test
+    void cachedResultsFollowDeleteBatch() {
+        store.insertBatch(List.of(doc("a", "apple", "en"), doc("b", "apple pie", "en"))).blockingSubscribe();
+        assertThat(query("apple", new Match.Term())).containsExactlyInAnyOrder("a", "b");
+
+        store.deleteBatch(List.of("a")).blockingSubscribe();
+
+        assertThat(query("apple", new Match.Term())).containsExactly("b");
+    }
+
+    // score is the score of the single hit of query.
+    private static float score(SearchIndexStore store, String query) {
+        var hits = store.query(new SearchRequest(List.of("ns"), query)).join().hits();
+        assertThat(hits).hasSize(1);
+        return hits.get(0).score();
+    }
+
+    @Test
+    void deletedDocumentsNoLongerMatch() {
+        store.insertBatch(List.of(
+                doc("a", "apple pie recipe", "en"),
+                doc("b", "apple tart recipe", "en"))).blockingSubscribe();
+
+        store.deleteBatch(List.of("a", "unknown")).blockingSubscribe();
+
+        assertThat(query("apple", new Match.Term())).containsExactly("b");
+        assertThat(query("app", new Match.Prefix())).containsExactly("b");
+        assertThat(query("aple", new Match.Fuzzy())).containsExactly("b");
+        assertThat(query("apple pie", new Match.Phrase(0))).isEmpty();
+        assertThat(query("recipe -tart", new Match.Bool(Match.Operator.AND))).isEmpty();
+    }
+
+    @Test
+    void reinsertingADocumentReplacesIt() throws Exception {
+        store.insertBatch(List.of(doc("a", "apple", "en"), doc("c", "cherry", "en"))).blockingSubscribe();
+
+        store.insertBatch(List.of(doc("a", "banana", "en"))).blockingSubscribe();
+
+        assertThat(query("apple", new Match.Term())).isEmpty();
+        assertThat(query("banana", new Match.Term())).containsExactly("a");
+        store.close();
+        store = SearchIndexStore.open(dir.toString());
+        assertThat(query("apple", new Match.Term())).isEmpty();
+        assertThat(query("banana", new Match.Term())).containsExactly("a");
+    }
+
+    @Test
+    void purgeDropsDeletedDocumentsFromTheirPostings(@TempDir Path freshDir) throws Exception {
+        store.insertBatch(List.of(
+                doc("a", "apple", "en"),
+                doc("b", "apple pie", "en"),
+                doc("c", "cherry", "en"))).blockingSubscribe();
+        try (var fresh = SearchIndexStore.open(freshDir.toString())) {
+            fresh.insertBatch(List.of(doc("a", "apple", "en"), doc("c", "cherry", "en"))).blockingSubscribe();
+
+            store.deleteBatch(List.of("b")).blockingSubscribe();
+            // the postings still count b until it is purged
+            assertThat(score(store, "apple")).isNotEqualTo(score(fresh, "apple"));
+
+            store.purge();
+            assertThat(score(store, "apple")).isEqualTo(score(fresh, "apple"));
+        }
+        assertThat(query("pie", new Match.Term())).isEmpty();
+    }
+
+    @Test
+    void purgesTombstonesLeftByTheLastRun(@TempDir Path freshDir) throws Exception {
+        store.insertBatch(List.of(
+                doc("a", "apple", "en"),
+                doc("b", "apple pie", "en"),
+                doc("c", "cherry", "en"))).blockingSubscribe();
+        store.deleteBatch(List.of("b")).blockingSubscribe();
+        store.close();
+
+        store = SearchIndexStore.open(dir.toString());
+        assertThat(query("pie", new Match.Term())).isEmpty();
+        // insertBatch purges a few deleted documents as it goes
+        store.insertBatch(List.of(doc("d", "durian", "en"))).blockingSubscribe();
+
+        try (var fresh = SearchIndexStore.open(freshDir.toString())) {
+            fresh.insertBatch(List.of(doc("a", "apple", "en"), doc("c", "cherry", "en"))).blockingSubscribe();
+            fresh.insertBatch(List.of(doc("d", "durian", "en"))).blockingSubscribe();
+
+            assertThat(score(store, "apple")).isEqualTo(score(fresh, "apple"));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.WriteBatch;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TermDictionariesTest {
+    @TempDir
+    Path dir;
+
+    private TestRocksDB db;
+
+    @BeforeEach
+    void open() throws Exception {
+        db = TestRocksDB.open(dir, "term_dictionaries");
+    }
+
+    @AfterEach
+    void close() {
+        db.close();
+    }
+
+    private void write(TermDictionaries dictionaries, String namespaceId, List<String> terms) throws Exception {
+        try (var wb = new WriteBatch()) {
+            var batch = dictionaries.batch(wb);
+            batch.add(namespaceId, terms);
+            db.write(wb);
+            batch.written();
+        }
+    }
+
+    private static List<String> fuzzyTerms(TermDictionaries dictionaries, String term) {
+        return dictionaries.fuzzy("ns", term, 1, 10).stream().map(TermDictionary.FuzzyMatch::term).toList();
+    }
+
+    @Test
+    void termsAreOnlyVisibleOnceTheBatchIsWritten() throws Exception {
+        var dictionaries = new TermDictionaries(db.rocksDB, db.cf);
+
+        try (var wb = new WriteBatch()) {
+            var batch = dictionaries.batch(wb);
+            batch.add("ns", List.of("apple", "apply"));
+            // the write never happens
+
+            assertThat(fuzzyTerms(dictionaries, "appla")).isEmpty();
+        }
+
+        write(dictionaries, "ns", List.of("apple", "apply"));
+        assertThat(fuzzyTerms(dictionaries, "appla")).containsExactly("apple", "apply");
+    }
+
+    @Test
+    void rebuildsOnceEnoughTermsArePendingAndRecoversThem() throws Exception {
+        var dictionaries = new TermDictionaries(db.rocksDB, db.cf);
+        var many = IntStream.range(0, TermDictionaries.REBUILD_THRESHOLD).mapToObj(i -> "t" + i).toList();
+
+        write(dictionaries, "ns", List.of("apple"));
+        write(dictionaries, "ns", many);
+        write(dictionaries, "ns", List.of("apply", "apple"));
+
+        assertThat(fuzzyTerms(dictionaries, "appla")).containsExactly("apple", "apply");
+        var reopened = new TermDictionaries(db.rocksDB, db.cf);
+        assertThat(fuzzyTerms(reopened, "appla")).containsExactly("apple", "apply");
+        assertThat(reopened.fuzzy("ns", "t9999", 0, 10)).extracting(TermDictionary.FuzzyMatch::term).containsExactly("t9999");
+    }
+}
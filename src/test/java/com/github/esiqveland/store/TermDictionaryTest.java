@@ -0,0 +1,107 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TermDictionaryTest {
+
+    // enough terms sharing prefixes to span several restarts
+    private static final List<String> TERMS = IntStream.range(0, 5 * TermDictionary.RESTART_INTERVAL)
+            .mapToObj(i -> "term" + String.format("%03d", i))
+            .toList();
+
+    private static TermDictionary dictionary(List<String> terms) {
+        return TermDictionary.of(terms.stream().sorted().iterator());
+    }
+
+    @Test
+    void containsEveryTermAcrossRestarts() {
+        var dictionary = dictionary(TERMS);
+
+        assertThat(dictionary.size()).isEqualTo(TERMS.size());
+        assertThat(TERMS).allMatch(dictionary::contains);
+        assertThat(dictionary).containsExactlyElementsOf(TERMS);
+    }
+
+    @Test
+    void doesNotContainPrefixesOrExtensionsOfTerms() {
+        var dictionary = dictionary(List.of("run", "runner", "running"));
+
+        assertThat(dictionary.contains("ru")).isFalse();
+        assertThat(dictionary.contains("runn")).isFalse();
+        assertThat(dictionary.contains("runners")).isFalse();
+        assertThat(dictionary.contains("")).isFalse();
+        assertThat(dictionary.contains("a")).isFalse();
+        assertThat(dictionary.contains("zzz")).isFalse();
+        assertThat(TermDictionary.EMPTY.contains("run")).isFalse();
+    }
+
+    @Test
+    void mergeAddsTermsAndDropsDuplicates() {
+        var dictionary = dictionary(List.of("apple", "cherry"));
+
+        var merged = dictionary.merge(List.of("apple", "banana", "date"));
+
+        assertThat(merged).containsExactly("apple", "banana", "cherry", "date");
+        assertThat(dictionary).containsExactly("apple", "cherry");
+    }
+
+    @Test
+    void roundTripsThroughBytes() {
+        var dictionary = dictionary(TERMS);
+
+        var read = TermDictionary.fromBytes(dictionary.toBytes());
+
+        assertThat(read).containsExactlyElementsOf(TERMS);
+        assertThat(read.contains("term042")).isTrue();
+    }
+
+    @Test
+    void fuzzyFindsTermsWithinEditsClosestFirst() {
+        var dictionary = dictionary(List.of("hello", "help", "hold", "jello", "world", "yellow"));
+
+        var matches = dictionary.fuzzy("hello", 1, 10);
+
+        assertThat(matches).containsExactly(
+                new TermDictionary.FuzzyMatch("hello", 0),
+                new TermDictionary.FuzzyMatch("jello", 1));
+        assertThat(dictionary.fuzzy("helo", 1, 10)).extracting(TermDictionary.FuzzyMatch::term)
+                .containsExactly("hello", "help");
+        assertThat(dictionary.fuzzy("yelow", 2, 10)).containsExactly(
+                new TermDictionary.FuzzyMatch("yellow", 1));
+    }
+
+    @Test
+    void fuzzyKeepsTheClosestLimitTerms() {
+        var dictionary = dictionary(TERMS);
+
+        var matches = dictionary.fuzzy("term010", 1, 3);
+
+        assertThat(matches).hasSize(3);
+        assertThat(matches.get(0)).isEqualTo(new TermDictionary.FuzzyMatch("term010", 0));
+        assertThat(matches).allMatch(m -> m.distance() <= 1);
+    }
+
+    @Test
+    void fuzzyAgreesWithDistanceOverEveryTerm() {
+        var terms = new ArrayList<>(List.of("kitten", "sitting", "mitten", "smitten", "kit", "knitting", "bitten"));
+        var dictionary = dictionary(terms);
+
+        for (int maxEdits = 0; maxEdits <= 3; maxEdits++) {
+            int edits = maxEdits;
+            var expected = terms.stream()
+                    .filter(t -> TermDictionary.distance(t, "kitten") <= edits)
+                    .sorted()
+                    .toList();
+            assertThat(dictionary.fuzzy("kitten", maxEdits, 100))
+                    .extracting(TermDictionary.FuzzyMatch::term)
+                    .containsExactlyInAnyOrderElementsOf(expected);
+        }
+        assertThat(TermDictionary.distance("kitten", "sitting")).isEqualTo(3);
+    }
+}
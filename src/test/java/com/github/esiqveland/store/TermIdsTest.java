@@ -0,0 +1,159 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.WriteBatch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TermIdsTest {
+    @TempDir
+    Path dir;
+
+    private TestRocksDB db;
+
+    @BeforeEach
+    void open() throws Exception {
+        db = TestRocksDB.open(dir, "term_ids");
+    }
+
+    @AfterEach
+    void close() {
+        db.close();
+    }
+
+    private TermIds termIds() {
+        return new TermIds(db.rocksDB, db.cf);
+    }
+
+    @Test
+    void assignsIdsOnlyOnceTheBatchIsWritten() throws Exception {
+        var termIds = termIds();
+
+        try (var wb = new WriteBatch()) {
+            var batch = termIds.batch(wb);
+            int run = batch.term("run");
+            int ns = batch.namespace("ns");
+            assertThat(batch.term("run")).isEqualTo(run);
+            assertThat(batch.term("walk")).isNotEqualTo(run);
+            assertThat(termIds.term("run")).isEqualTo(TermIds.UNKNOWN);
+
+            db.write(wb);
+            batch.written();
+
+            assertThat(termIds.term("run")).isEqualTo(run);
+            assertThat(termIds.namespace("ns")).isEqualTo(ns);
+        }
+        assertThat(termIds.term("jump")).isEqualTo(TermIds.UNKNOWN);
+        assertThat(termIds.namespace("other")).isEqualTo(TermIds.UNKNOWN);
+    }
+
+    @Test
+    void continuesAfterTheLastIdWhenReopened() throws Exception {
+        int walk;
+        try (var wb = new WriteBatch()) {
+            var batch = termIds().batch(wb);
+            batch.term("run");
+            walk = batch.term("walk");
+            db.write(wb);
+        }
+
+        var reopened = termIds();
+        try (var wb = new WriteBatch()) {
+            var batch = reopened.batch(wb);
+            assertThat(reopened.term("walk")).isEqualTo(walk);
+            assertThat(batch.term("jump")).isEqualTo(walk + 1);
+        }
+    }
+
+    // scan reads every id of a prefix scan, pageSize at a time.
+    private static List<Integer> scan(TermIds termIds, String prefix, int pageSize) throws Exception {
+        var ids = new ArrayList<Integer>();
+        try (var scan = termIds.scanPrefix(prefix)) {
+            for (var page = scan.next(pageSize); !page.isEmpty(); page = scan.next(pageSize)) {
+                assertThat(page.size()).isLessThanOrEqualTo(pageSize);
+                ids.addAll(page);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    void scansTermsByPrefixInTermOrder() throws Exception {
+        var termIds = termIds();
+        var ids = new HashMap<String, Integer>();
+        try (var wb = new WriteBatch()) {
+            var batch = termIds.batch(wb);
+            for (var term : List.of("runner", "run", "rust", "ruin", "running", "sprint")) {
+                ids.put(term, batch.term(term));
+            }
+            db.write(wb);
+            batch.written();
+        }
+
+        assertThat(scan(termIds, "run", 10)).containsExactly(ids.get("run"), ids.get("runner"), ids.get("running"));
+        assertThat(scan(termIds, "ru", 2)).containsExactly(
+                ids.get("ruin"), ids.get("run"), ids.get("runner"), ids.get("running"), ids.get("rust"));
+        assertThat(scan(termIds, "walk", 10)).isEmpty();
+    }
+
+    @Test
+    void recordsLanguagesOfNamespaces() throws Exception {
+        var termIds = termIds();
+        int ns;
+        try (var wb = new WriteBatch()) {
+            var batch = termIds.batch(wb);
+            ns = batch.namespace("ns");
+            assertThat(batch.language(ns, "en")).isTrue();
+            assertThat(batch.language(ns, "en")).isFalse();
+            assertThat(batch.language(ns, "no")).isTrue();
+            assertThat(termIds.languages(ns)).isEmpty();
+
+            db.write(wb);
+            batch.written();
+        }
+
+        assertThat(termIds.languages(ns)).containsExactlyInAnyOrder("en", "no");
+        assertThat(termIds().languages(ns)).containsExactlyInAnyOrder("en", "no");
+        try (var wb = new WriteBatch()) {
+            assertThat(termIds.batch(wb).language(ns, "en")).isFalse();
+        }
+    }
+
+    @Test
+    void findsStemsByThePrefixOfWordsAsWritten() throws Exception {
+        var termIds = termIds();
+        int run;
+        int runner;
+        try (var wb = new WriteBatch()) {
+            var batch = termIds.batch(wb);
+            run = batch.term("run");
+            runner = batch.term("runner");
+            batch.surface("running", run);
+            batch.surface("runs", run);
+            batch.surface("runners", runner);
+            db.write(wb);
+            batch.written();
+        }
+
+        assertThat(scan(termIds, "runni", 10)).containsExactly(run);
+        // terms come first, then the stems of the words as written, in word order
+        assertThat(scan(termIds, "run", 2)).containsExactly(run, runner, runner, run, run);
+        // surfaces are not terms
+        assertThat(termIds.term("running")).isEqualTo(TermIds.UNKNOWN);
+    }
+
+    @Test
+    void postingKeysOrderByNamespaceThenTerm() {
+        assertThat(TermIds.postingKey(1, 2)).hasSize(8);
+        assertThat(TermIds.packed(1, 2)).isLessThan(TermIds.packed(1, 3));
+        assertThat(TermIds.packed(1, Integer.MAX_VALUE)).isLessThan(TermIds.packed(2, 0));
+    }
+}
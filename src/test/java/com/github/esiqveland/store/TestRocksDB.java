@@ -0,0 +1,56 @@
+package com.github.esiqveland.store;
+
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.DBOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// TestRocksDB opens a RocksDB in a directory with one column family besides the default,
+// for tests of the classes that keep their data in a column family of a shared database.
+final class TestRocksDB implements AutoCloseable {
+    final RocksDB rocksDB;
+    // the column family of the class under test
+    final ColumnFamilyHandle cf;
+    private final DBOptions options;
+    private final List<ColumnFamilyHandle> handles;
+
+    private TestRocksDB(DBOptions options, RocksDB rocksDB, List<ColumnFamilyHandle> handles) {
+        this.options = options;
+        this.rocksDB = rocksDB;
+        this.handles = handles;
+        this.cf = handles.get(1);
+    }
+
+    static TestRocksDB open(Path dir, String columnFamily) throws RocksDBException {
+        RocksDB.loadLibrary();
+        var options = new DBOptions().setCreateIfMissing(true).setCreateMissingColumnFamilies(true);
+        var handles = new ArrayList<ColumnFamilyHandle>();
+        var rocksDB = RocksDB.open(options, dir.toString(), Stream.of(RocksDB.DEFAULT_COLUMN_FAMILY, columnFamily.getBytes(UTF_8))
+                .map(ColumnFamilyDescriptor::new)
+                .toList(), handles);
+        return new TestRocksDB(options, rocksDB, handles);
+    }
+
+    void write(WriteBatch wb) throws RocksDBException {
+        try (var opts = new WriteOptions()) {
+            rocksDB.write(opts, wb);
+        }
+    }
+
+    @Override
+    public void close() {
+        handles.forEach(ColumnFamilyHandle::close);
+        rocksDB.close();
+        options.close();
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopHitsTest {
+    @Test
+    void keepsTheBestKBestFirst() {
+        var random = new Random(42);
+        var scores = new float[1000];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random.nextFloat();
+        }
+        var top = new TopHits(10);
+
+        for (int i = 0; i < scores.length; i++) {
+            top.offer(i, scores[i], "t");
+        }
+
+        var expected = IntStream.range(0, scores.length).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> scores[i]).reversed())
+                .limit(10)
+                .toList();
+        assertThat(top.sorted()).extracting(TopHits.ScoredDoc::ordinal).containsExactlyElementsOf(expected);
+        assertThat(top.threshold()).isEqualTo(scores[expected.get(9)]);
+    }
+
+    @Test
+    void acceptsEverythingUntilFull() {
+        var top = new TopHits(2);
+        assertThat(top.threshold()).isEqualTo(Float.NEGATIVE_INFINITY);
+
+        top.offer(1, 0.5f, "a");
+        assertThat(top.isFull()).isFalse();
+        top.offer(2, 0.1f, "b");
+
+        assertThat(top.isFull()).isTrue();
+        assertThat(top.threshold()).isEqualTo(0.1f);
+        top.offer(3, 0.1f, "c");
+        assertThat(top.sorted()).extracting(TopHits.ScoredDoc::ordinal).containsExactly(1, 2);
+    }
+
+    @Test
+    void keepsNothingForZero() {
+        var top = new TopHits(0);
+
+        top.offer(1, 1f, "a");
+
+        assertThat(top.sorted()).isEmpty();
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.esiqveland.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VarintsTest {
+
+    @Test
+    void roundTripsAcrossByteLengths() {
+        int[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, 0x1FFFFF, 0x200000, 0xFFFFFFF, 0x10000000, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        var out = new ByteArrayOutputStream();
+        for (int value : values) {
+            Varints.write(out, value);
+        }
+
+        var buf = ByteBuffer.wrap(out.toByteArray());
+        for (int value : values) {
+            assertThat(Varints.read(buf)).isEqualTo(value);
+        }
+        assertThat(buf.hasRemaining()).isFalse();
+    }
+
+    @Test
+    void usesOneByteBelow128() {
+        var out = new ByteArrayOutputStream();
+        Varints.write(out, 127);
+        assertThat(out.toByteArray()).containsExactly(0x7F);
+
+        out.reset();
+        Varints.write(out, 128);
+        assertThat(out.toByteArray()).containsExactly(0x80, 0x01);
+    }
+}
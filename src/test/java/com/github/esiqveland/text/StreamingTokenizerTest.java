@@ -0,0 +1,112 @@
+package com.github.esiqveland.text;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingTokenizerTest {
+
+    // tokens returns the positions of every token of text, appended in chunks of chunkSize.
+    private static Map<String, List<Integer>> tokens(String text, int chunkSize) {
+        try (var tokenizer = StreamingTokenizer.open()) {
+            var chars = text.toCharArray();
+            for (int start = 0; start < chars.length; start += chunkSize) {
+                tokenizer.append(chars, start, Math.min(chunkSize, chars.length - start));
+            }
+            return byValue(tokenizer.finish());
+        }
+    }
+
+    private static Map<String, List<Integer>> byValue(List<Tokenizers.Token> tokens) {
+        var byValue = new TreeMap<String, List<Integer>>();
+        tokens.forEach(t -> byValue.put(t.value(), List.copyOf(t.positions())));
+        return byValue;
+    }
+
+    @Test
+    void lowercasesWordsAndNumbersWithTheirPositions() {
+        var tokens = tokens("The quick brown fox, the LAZY dog: 2022!", Integer.MAX_VALUE);
+
+        assertThat(tokens).containsExactlyInAnyOrderEntriesOf(Map.of(
+                "the", List.of(0, 4),
+                "quick", List.of(1),
+                "brown", List.of(2),
+                "fox", List.of(3),
+                "lazy", List.of(5),
+                "dog", List.of(6),
+                "2022", List.of(7)));
+    }
+
+    @Test
+    void shortAndLongWordsTakeAPositionButAreNotKept() {
+        var blob = "x".repeat(StreamingTokenizer.MAX_TOKEN_LENGTH + 1);
+
+        var tokens = tokens("go to " + blob + " market", Integer.MAX_VALUE);
+
+        assertThat(tokens).containsExactlyEntriesOf(Map.of("market", List.of(3)));
+    }
+
+    @Test
+    void joinsTokensSplitAcrossChunks() {
+        var text = "incremental tokenizers join words cut by chunk boundaries, incremental again";
+        var whole = tokens(text, Integer.MAX_VALUE);
+
+        for (int chunkSize = 1; chunkSize <= 13; chunkSize++) {
+            assertThat(tokens(text, chunkSize)).as("chunks of %d", chunkSize).isEqualTo(whole);
+        }
+        assertThat(whole.get("incremental")).containsExactly(0, 8);
+    }
+
+    @Test
+    void joinsSurrogatePairsSplitAcrossChunks() {
+        // U+10400 and U+10428 are the upper and lower case of a Deseret letter, U+1D49C a
+        // mathematical script letter, all outside the BMP
+        var text = "ab\uD801\uDC00cd x\uD835\uDC9Cyz";
+
+        for (int chunkSize = 1; chunkSize <= 4; chunkSize++) {
+            assertThat(tokens(text, chunkSize)).as("chunks of %d", chunkSize).containsExactlyInAnyOrderEntriesOf(Map.of(
+                    "ab\uD801\uDC28cd", List.of(0),
+                    "x\uD835\uDC9Cyz", List.of(1)));
+        }
+    }
+
+    @Test
+    void unpairedSurrogatesEndTheWord() {
+        assertThat(tokens("abc\uD801 def", 4)).containsExactlyInAnyOrderEntriesOf(Map.of("abc", List.of(0), "def", List.of(1)));
+        assertThat(tokens("abc\uDC00def", 4)).containsExactlyInAnyOrderEntriesOf(Map.of("abc", List.of(0), "def", List.of(1)));
+        assertThat(tokens("trailing\uD801", 3)).containsExactlyEntriesOf(Map.of("trailing", List.of(0)));
+    }
+
+    @Test
+    void keepsCombiningMarksWithinWords() {
+        var decomposed = "cafe\u0301 \u0301lone";
+
+        assertThat(tokens(decomposed, 4)).containsExactlyInAnyOrderEntriesOf(Map.of(
+                "cafe\u0301", List.of(0),
+                "lone", List.of(1)));
+    }
+
+    @Test
+    void isEmptyAgainAfterFinish() {
+        try (var tokenizer = StreamingTokenizer.open()) {
+            tokenizer.append("first document");
+            tokenizer.finish();
+            tokenizer.append("second");
+
+            assertThat(byValue(tokenizer.finish())).containsExactlyEntriesOf(Map.of("second", List.of(0)));
+        }
+    }
+
+    @Test
+    void matchesTheWordTokenizer() {
+        var text = "Parsed text streams into the tokenizer, chunk by chunk.";
+
+        var streamed = tokens(text, 7);
+
+        assertThat(streamed).isEqualTo(byValue(Tokenizers.WordTokenizer.create().textToTokens(text)));
+    }
+}